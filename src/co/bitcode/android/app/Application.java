@@ -16,24 +16,41 @@
 
 package co.bitcode.android.app;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.text.MessageFormat;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Build;
 
+import co.bitcode.android.graphics.BitmapPool;
 import co.bitcode.android.util.LoggerFactory;
 
 /**
  * Extends {@link android.app.Application} to provide utility methods.
  * 
+ * {@link OnTrimMemoryListener}s added with {@link #addOnTrimMemoryListener(OnTrimMemoryListener)}
+ * are notified when the system asks to release memory. On Android 4.0 and later trim levels are
+ * received through a <code>ComponentCallbacks2</code> registered with the platform, so that
+ * callbacks registered by other components keep being notified as well. The default
+ * {@link BitmapPool} is always notified.
+ * 
  * @since 1.0.0
  * @author Lorenzo Villani
  */
 public class Application extends android.app.Application {
+    private static final int API_ICE_CREAM_SANDWICH = 14;
     private static final MessageFormat MESSAGE_FORMAT = new MessageFormat("");
     private static Application instance;
     private static Logger logger;
+    private final List<OnTrimMemoryListener> onTrimMemoryListeners =
+            new CopyOnWriteArrayList<OnTrimMemoryListener>();
 
     @Override
     public void onCreate() {
@@ -41,6 +58,50 @@ public class Application extends android.app.Application {
 
         instance = this;
         logger = LoggerFactory.fromContext(this);
+
+        // The default pool has no context to register itself with, and can be replaced.
+        addOnTrimMemoryListener(new OnTrimMemoryListener() {
+            @Override
+            public void onLowMemory() {
+                BitmapPool.getDefault().onLowMemory();
+            }
+
+            @Override
+            public void onTrimMemory(final int level) {
+                BitmapPool.getDefault().onTrimMemory(level);
+            }
+        });
+
+        if (Build.VERSION.SDK_INT >= API_ICE_CREAM_SANDWICH) {
+            registerTrimMemoryCallbacks();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+
+        for (final OnTrimMemoryListener listener : this.onTrimMemoryListeners) {
+            listener.onLowMemory();
+        }
+    }
+
+    /**
+     * @param listener
+     *        The listener to notify when the system asks to release memory.
+     * @since 1.0.0
+     */
+    public void addOnTrimMemoryListener(final OnTrimMemoryListener listener) {
+        this.onTrimMemoryListeners.add(listener);
+    }
+
+    /**
+     * @param listener
+     *        The listener to remove.
+     * @since 1.0.0
+     */
+    public void removeOnTrimMemoryListener(final OnTrimMemoryListener listener) {
+        this.onTrimMemoryListeners.remove(listener);
     }
 
     /**
@@ -69,6 +130,32 @@ public class Application extends android.app.Application {
         }
     }
 
+    /**
+     * Registers a <code>ComponentCallbacks2</code>, which does not exist in the target platform,
+     * through a dynamic proxy. Overriding <code>onTrimMemory()</code> instead would require calling
+     * through to the platform implementation, which cannot be done without compiling against it.
+     */
+    private void registerTrimMemoryCallbacks() {
+        try {
+            final Class<?> callbacksClass = Class.forName("android.content.ComponentCallbacks2");
+            final Object callbacks = Proxy.newProxyInstance(callbacksClass.getClassLoader(),
+                    new Class<?>[] {
+                        callbacksClass
+                    }, new TrimMemoryHandler());
+
+            getClass().getMethod("registerComponentCallbacks",
+                    Class.forName("android.content.ComponentCallbacks")).invoke(this, callbacks);
+        } catch (final ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        } catch (final NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        } catch (final IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (final InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     public static Application getInstance() {
         return instance;
     }
@@ -117,4 +204,29 @@ public class Application extends android.app.Application {
     public static void log(final Level logLevel, final String message, final Throwable thrown) {
         logger.log(logLevel, message, thrown);
     }
+
+    /**
+     * Forwards trim levels to the listeners. Low memory notifications are already forwarded by
+     * {@link Application#onLowMemory()}, configuration changes are ignored.
+     */
+    private final class TrimMemoryHandler implements InvocationHandler {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            final String name = method.getName();
+
+            if ("onTrimMemory".equals(name)) {
+                for (final OnTrimMemoryListener listener : Application.this.onTrimMemoryListeners) {
+                    listener.onTrimMemory((Integer) args[0]);
+                }
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return TrimMemoryHandler.class.getName();
+            }
+
+            return null;
+        }
+    }
 }
@@ -0,0 +1,43 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.app;
+
+/**
+ * Event Listener fired up by {@link Application} when the system asks the process to release
+ * memory.
+ * 
+ * The trim levels mirror the constants of <code>android.content.ComponentCallbacks2</code>, which
+ * is not available on all supported platform versions. {@link #onTrimMemory(int)} is only invoked on
+ * Android 4.0 and later, {@link #onLowMemory()} everywhere.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+/* CHECKSTYLE:OFF */
+public interface OnTrimMemoryListener {
+    int TRIM_MEMORY_COMPLETE = 80;
+    int TRIM_MEMORY_MODERATE = 60;
+    int TRIM_MEMORY_BACKGROUND = 40;
+    int TRIM_MEMORY_UI_HIDDEN = 20;
+    int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    int TRIM_MEMORY_RUNNING_LOW = 10;
+    int TRIM_MEMORY_RUNNING_MODERATE = 5;
+
+    public void onLowMemory();
+
+    public void onTrimMemory(int level);
+}
@@ -16,27 +16,30 @@
 
 package co.bitcode.android.app.impl;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.net.URL;
-import java.net.URLConnection;
 
 import android.content.Context;
 import android.net.Uri;
 
 import co.bitcode.android.R;
+import co.bitcode.android.net.Downloader;
 import co.bitcode.android.os.ProgressDialogTask;
+import co.bitcode.android.os.TaskPool;
 
 /**
- * Asynchronously downloads a file from the network.
+ * Asynchronously downloads a file from the network with a {@link Downloader}. A download
+ * interrupted by cancelling the task is resumed the next time the same file is downloaded.
  * 
  * @since 1.0.0
  * @author Lorenzo Villani
  */
-public class DownloadImageTask extends ProgressDialogTask<Uri, File> {
+public class DownloadImageTask extends ProgressDialogTask<Uri, File> implements
+        Downloader.ProgressListener {
+    private static final Downloader DOWNLOADER = new Downloader();
+
     private final File destFile;
+    private int segmentCount = 1;
 
     /**
      * Constructor.
@@ -51,25 +54,36 @@ public class DownloadImageTask extends ProgressDialogTask<Uri, File> {
         super(context, R.string.generic_loading);
 
         this.destFile = destFile;
+
+        setPool(TaskPool.NETWORK);
+    }
+
+    /**
+     * Sets the number of parallel connections used to download large files. Useful for
+     * multi-megabyte media served by range-capable servers, at the cost of one more request.
+     * 
+     * @param segmentCount
+     *        The number of connections, 1 by default.
+     * @see Downloader#download(URL, File, int, Downloader.ProgressListener)
+     * @since 1.0.0
+     */
+    public void setSegmentCount(final int segmentCount) {
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * Does nothing, override to report the progress of the download.
+     */
+    @Override
+    public void onProgress(final long downloaded, final long total) {
     }
 
     @Override
     protected File doInBackgroundThread(final Uri... params) throws Exception {
         final Uri remoteImage = params[0];
         final File destination = new File(getContext().getFilesDir(), this.destFile.getName());
-        final URLConnection urlConnection = new URL(remoteImage.toString()).openConnection();
-        final BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(
-                destination), 4096);
-        final InputStream input = urlConnection.getInputStream();
-        int read;
-
-        while ((read = input.read()) != -1) {
-            output.write(read);
-        }
-
-        output.close();
-        input.close();
 
-        return destination;
+        return DOWNLOADER.download(new URL(remoteImage.toString()), destination,
+                this.segmentCount, this);
     }
 }
@@ -16,16 +16,37 @@
 
 package co.bitcode.android.graphics;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.os.Build;
+
+import org.apache.commons.io.IOUtils;
 
 /**
  * Operations on {@link Bitmap}s.
  * 
+ * The <code>decode*()</code> methods decode images to a requested size without allocating the full
+ * resolution bitmap: they read the image bounds first, let the decoder subsample the image by the
+ * largest power of two which keeps it at least as large as requested, then downscale the result
+ * with filtering so that it fits exactly within the requested size, preserving its aspect ratio.
+ * Images are never upscaled. Decoded bitmaps may be drawn from and given back to
+ * {@link BitmapPool#getDefault()}.
+ * 
  * @since 1.0.0
  * @author Lorenzo Villani
  */
 public final class BitmapHelper {
+    private static final int API_HONEYCOMB = 11;
+    private static final Field IN_BITMAP_FIELD = getOptionsField("inBitmap");
+    private static final Field IN_MUTABLE_FIELD = getOptionsField("inMutable");
+
     private BitmapHelper() {
     }
 
@@ -42,12 +63,263 @@ public final class BitmapHelper {
      * @since 1.0.0
      */
     public static Bitmap scale(final Bitmap bitmap, final int width, final int height) {
+        return scale(bitmap, width, height, false);
+    }
+
+    /**
+     * Scale a {@link Bitmap}.
+     * 
+     * @param bitmap
+     *        {@link Bitmap} to be scaled.
+     * @param width
+     *        New width.
+     * @param height
+     *        New height.
+     * @param filter
+     *        <code>true</code> to apply bilinear filtering, which is slower but avoids aliasing.
+     * @return Scaled {@link Bitmap}.
+     * @since 1.0.0
+     * @see #scalePooled(Bitmap, int, int, boolean)
+     */
+    public static Bitmap scale(final Bitmap bitmap, final int width, final int height,
+            final boolean filter) {
         final Matrix matrix = new Matrix();
         final int originalHeight = bitmap.getHeight();
         final int originalWidth = bitmap.getWidth();
 
         matrix.postScale(((float) width) / originalWidth, ((float) height) / originalHeight);
 
-        return Bitmap.createBitmap(bitmap, 0, 0, originalWidth, originalHeight, matrix, false);
+        return Bitmap.createBitmap(bitmap, 0, 0, originalWidth, originalHeight, matrix, filter);
+    }
+
+    /**
+     * Scale a {@link Bitmap} into a bitmap obtained from {@link BitmapPool#getDefault()}, which
+     * spares an allocation when a bitmap of the same size has been released before.
+     * 
+     * Unlike {@link #scale(Bitmap, int, int, boolean)}, the result is mutable and may have held
+     * another image: give it back with {@link BitmapPool#release(Bitmap)} once it is no longer
+     * displayed, and do not keep references to it afterwards.
+     * 
+     * @param bitmap
+     *        {@link Bitmap} to be scaled.
+     * @param width
+     *        New width.
+     * @param height
+     *        New height.
+     * @param filter
+     *        <code>true</code> to apply bilinear filtering, which is slower but avoids aliasing.
+     * @return Scaled {@link Bitmap}.
+     * @since 1.0.0
+     */
+    public static Bitmap scalePooled(final Bitmap bitmap, final int width, final int height,
+            final boolean filter) {
+        final Matrix matrix = new Matrix();
+        final Bitmap.Config config = (bitmap.getConfig() != null) ? bitmap.getConfig()
+                : Bitmap.Config.ARGB_8888;
+        final Bitmap scaledBitmap = BitmapPool.getDefault().obtain(width, height, config);
+        final Paint paint = filter ? new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG)
+                : null;
+
+        matrix.postScale(((float) width) / bitmap.getWidth(),
+                ((float) height) / bitmap.getHeight());
+        new Canvas(scaledBitmap).drawBitmap(bitmap, matrix, paint);
+
+        return scaledBitmap;
+    }
+
+    /**
+     * Decodes an image file so that it fits within the requested size.
+     * 
+     * @param path
+     *        The file path.
+     * @param width
+     *        The requested width.
+     * @param height
+     *        The requested height.
+     * @return The decoded {@link Bitmap}, or <code>null</code> if the image cannot be decoded.
+     * @since 1.0.0
+     */
+    public static Bitmap decodeFile(final String path, final int width, final int height) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+
+        if (!prepareDecode(options, width, height)) {
+            return null;
+        }
+
+        Bitmap decoded;
+
+        try {
+            decoded = BitmapFactory.decodeFile(path, options);
+        } catch (final IllegalArgumentException e) {
+            // The pooled bitmap could not be reused.
+            releaseInBitmap(options);
+            decoded = BitmapFactory.decodeFile(path, options);
+        }
+
+        return fit(decoded, width, height);
+    }
+
+    /**
+     * Decodes an image held in a byte array so that it fits within the requested size.
+     * 
+     * @param data
+     *        The image data.
+     * @param offset
+     *        Offset of the image in <code>data</code>.
+     * @param length
+     *        Length of the image.
+     * @param width
+     *        The requested width.
+     * @param height
+     *        The requested height.
+     * @return The decoded {@link Bitmap}, or <code>null</code> if the image cannot be decoded.
+     * @since 1.0.0
+     */
+    public static Bitmap decodeByteArray(final byte[] data, final int offset, final int length,
+            final int width, final int height) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+
+        if (!prepareDecode(options, width, height)) {
+            return null;
+        }
+
+        Bitmap decoded;
+
+        try {
+            decoded = BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (final IllegalArgumentException e) {
+            // The pooled bitmap could not be reused.
+            releaseInBitmap(options);
+            decoded = BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+
+        return fit(decoded, width, height);
+    }
+
+    /**
+     * Decodes an image read from a stream so that it fits within the requested size. Since the
+     * stream has to be read twice, its content is buffered in memory in its compressed form.
+     * 
+     * @param inputStream
+     *        The stream, which is read till its end but not closed.
+     * @param width
+     *        The requested width.
+     * @param height
+     *        The requested height.
+     * @return The decoded {@link Bitmap}, or <code>null</code> if the image cannot be decoded.
+     * @throws IOException
+     *         If the stream cannot be read.
+     * @since 1.0.0
+     */
+    public static Bitmap decodeStream(final InputStream inputStream, final int width,
+            final int height) throws IOException {
+        final byte[] data = IOUtils.toByteArray(inputStream);
+
+        return decodeByteArray(data, 0, data.length, width, height);
+    }
+
+    /**
+     * @param width
+     *        The width of the image.
+     * @param height
+     *        The height of the image.
+     * @param requestedWidth
+     *        The requested width.
+     * @param requestedHeight
+     *        The requested height.
+     * @return The largest power of two by which the image can be subsampled while staying at least
+     *         as large as requested in both dimensions.
+     * @since 1.0.0
+     */
+    public static int computeSampleSize(final int width, final int height,
+            final int requestedWidth, final int requestedHeight) {
+        int sampleSize = 1;
+
+        while (((width / (sampleSize * 2)) >= requestedWidth)
+                && ((height / (sampleSize * 2)) >= requestedHeight)) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * Turns bounds <code>options</code> into decoding options, reusing a pooled bitmap when the
+     * platform allows it.
+     * 
+     * @return <code>false</code> if the bounds could not be read.
+     */
+    private static boolean prepareDecode(final BitmapFactory.Options options, final int width,
+            final int height) {
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            return false;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight, width,
+                height);
+
+        // Before KitKat a bitmap can only be reused to decode an image of its exact size.
+        if ((Build.VERSION.SDK_INT >= API_HONEYCOMB) && (options.inSampleSize == 1)
+                && (IN_BITMAP_FIELD != null) && (IN_MUTABLE_FIELD != null)) {
+            final Bitmap reusable = BitmapPool.getDefault().get(options.outWidth,
+                    options.outHeight, Bitmap.Config.ARGB_8888);
+
+            try {
+                IN_MUTABLE_FIELD.setBoolean(options, true);
+                IN_BITMAP_FIELD.set(options, reusable);
+            } catch (final IllegalAccessException e) {
+                BitmapPool.getDefault().release(reusable);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gives the bitmap which could not be reused back to the pool and decodes without it.
+     */
+    private static void releaseInBitmap(final BitmapFactory.Options options) {
+        try {
+            final Bitmap reusable = (Bitmap) IN_BITMAP_FIELD.get(options);
+
+            IN_BITMAP_FIELD.set(options, null);
+            BitmapPool.getDefault().release(reusable);
+        } catch (final IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Downscales <code>bitmap</code> so that it fits within the requested size.
+     */
+    private static Bitmap fit(final Bitmap bitmap, final int width, final int height) {
+        if ((bitmap == null) || ((bitmap.getWidth() <= width) && (bitmap.getHeight() <= height))) {
+            return bitmap;
+        }
+
+        final float ratio = Math.min(((float) width) / bitmap.getWidth(), ((float) height)
+                / bitmap.getHeight());
+        final int scaledWidth = Math.max(1, Math.round(bitmap.getWidth() * ratio));
+        final int scaledHeight = Math.max(1, Math.round(bitmap.getHeight() * ratio));
+        final Bitmap scaledBitmap = scalePooled(bitmap, scaledWidth, scaledHeight, true);
+
+        BitmapPool.getDefault().release(bitmap);
+
+        return scaledBitmap;
+    }
+
+    private static Field getOptionsField(final String name) {
+        try {
+            return BitmapFactory.Options.class.getField(name);
+        } catch (final NoSuchFieldException e) {
+            return null;
+        }
     }
 }
@@ -0,0 +1,160 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.graphics;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import co.bitcode.android.app.Application;
+import co.bitcode.android.app.OnTrimMemoryListener;
+import co.bitcode.android.net.cache.LruCache;
+
+/**
+ * An in-memory {@link LruCache} of {@link Bitmap}s whose budget is expressed in bytes.
+ * 
+ * Entries are sized by the number of bytes of their pixel buffer, so the cache holds as many
+ * pixels as fit in its budget regardless of the bitmap dimensions. The cache shrinks when the
+ * system asks the process to release memory: see {@link #onTrimMemory(int)}.
+ * 
+ * Caches created with a {@link Context} are referenced by the application until {@link #close()}
+ * is called.
+ * 
+ * @param <K>
+ *        Key type.
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class BitmapLruCache<K> extends LruCache<K, Bitmap> implements OnTrimMemoryListener {
+    /**
+     * Fraction of the per-process memory class used by {@link #BitmapLruCache(Context)}.
+     */
+    public static final float DEFAULT_MEMORY_FRACTION = 1f / 8;
+
+    private static final int BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    /** The application notifying this cache, or <code>null</code>. */
+    private volatile Application application;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize
+     *        Maximum number of bytes held by the cache.
+     * @since 1.0.0
+     */
+    public BitmapLruCache(final int maxSize) {
+        super(maxSize);
+    }
+
+    /**
+     * Constructor. The budget is {@link #DEFAULT_MEMORY_FRACTION} of the memory class of the
+     * device.
+     * 
+     * @param context
+     *        The context.
+     * @since 1.0.0
+     * @see #BitmapLruCache(Context, float)
+     */
+    public BitmapLruCache(final Context context) {
+        this(context, DEFAULT_MEMORY_FRACTION);
+    }
+
+    /**
+     * Constructor. The budget is a fraction of the memory class of the device, that is the heap
+     * size each application should stay within (see {@link ActivityManager#getMemoryClass()}).
+     * 
+     * If the application object is a {@link Application}, the cache registers itself to be notified
+     * when the system asks to release memory. Call {@link #close()} once the cache is no longer
+     * needed, so that the application lets go of it.
+     * 
+     * @param context
+     *        The context.
+     * @param memoryFraction
+     *        Fraction of the memory class, between 0 and 1.
+     * @since 1.0.0
+     */
+    public BitmapLruCache(final Context context, final float memoryFraction) {
+        this(getMaxSize(context, memoryFraction));
+
+        if (context.getApplicationContext() instanceof Application) {
+            this.application = (Application) context.getApplicationContext();
+            this.application.addOnTrimMemoryListener(this);
+        }
+    }
+
+    /**
+     * Empties the cache and stops listening to memory trim notifications. The cache remains usable
+     * afterwards, but it is no longer shrunk when the system runs low on memory.
+     * 
+     * @since 1.0.0
+     */
+    public void close() {
+        final Application currentApplication = this.application;
+
+        if (currentApplication != null) {
+            currentApplication.removeOnTrimMemoryListener(this);
+            this.application = null;
+        }
+
+        evictAll();
+    }
+
+    /**
+     * Empties the cache.
+     */
+    @Override
+    public void onLowMemory() {
+        evictAll();
+    }
+
+    /**
+     * Shrinks the cache according to <code>level</code>: it is emptied when the process is about to
+     * be killed, halved when it is in the background or when the system is running low on memory,
+     * and reduced by a quarter when the system starts running low on memory. The budget is left
+     * untouched, so the cache fills up again as bitmaps are put back.
+     * 
+     * @param level
+     *        The trim level.
+     */
+    @Override
+    public void onTrimMemory(final int level) {
+        if ((level >= TRIM_MEMORY_MODERATE) || (level == TRIM_MEMORY_RUNNING_CRITICAL)) {
+            evictAll();
+        } else if ((level >= TRIM_MEMORY_UI_HIDDEN) || (level == TRIM_MEMORY_RUNNING_LOW)) {
+            trimToSize(maxSize() / 2);
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            trimToSize((maxSize() / 4) * 3);
+        }
+    }
+
+    @Override
+    protected int sizeOf(final K key, final Bitmap value) {
+        return value.getRowBytes() * value.getHeight();
+    }
+
+    private static int getMaxSize(final Context context, final float memoryFraction) {
+        if ((memoryFraction <= 0) || (memoryFraction > 1)) {
+            throw new IllegalArgumentException("memoryFraction must be in (0, 1]");
+        }
+
+        final ActivityManager activityManager = (ActivityManager) context
+                .getSystemService(Context.ACTIVITY_SERVICE);
+
+        return (int) (activityManager.getMemoryClass() * BYTES_PER_MEGABYTE * memoryFraction);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.graphics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import co.bitcode.android.app.OnTrimMemoryListener;
+
+/**
+ * A pool of mutable {@link Bitmap}s which can be reused instead of allocating new ones.
+ * 
+ * Bitmaps are grouped in buckets by width, height and configuration: {@link #obtain(int, int,
+ * Bitmap.Config)} hands out a pooled bitmap of the exact requested size when there is one and
+ * allocates a new bitmap otherwise. Bitmaps given back with {@link #release(Bitmap)} are kept until
+ * the pool exceeds its byte budget, at which point the least recently released ones are recycled.
+ * 
+ * Releasing a bitmap hands it over to the pool: it must not be used, nor displayed, afterwards.
+ * 
+ * The default pool, see {@link #getDefault()}, is trimmed when the system asks to release memory
+ * as long as the application object is a {@link co.bitcode.android.app.Application}. Other pools
+ * must be registered with
+ * {@link co.bitcode.android.app.Application#addOnTrimMemoryListener(OnTrimMemoryListener)}.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class BitmapPool implements OnTrimMemoryListener {
+    /**
+     * Budget of the default pool, in bytes.
+     */
+    public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    private static BitmapPool defaultPool = new BitmapPool(DEFAULT_MAX_SIZE);
+
+    private final Map<Key, LinkedList<Bitmap>> buckets = new HashMap<Key, LinkedList<Bitmap>>();
+    /** All pooled bitmaps, least recently released first. */
+    private final LinkedHashMap<Bitmap, Key> releaseOrder = new LinkedHashMap<Bitmap, Key>();
+    private final int maxSize;
+    private int size;
+    private int requestCount;
+    private int hitCount;
+    private long bytesReused;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize
+     *        Maximum number of bytes held by the pool.
+     * @since 1.0.0
+     */
+    public BitmapPool(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return The pool shared by the library.
+     * @since 1.0.0
+     */
+    public static synchronized BitmapPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Replaces the pool shared by the library, for example with one sized after the memory class
+     * of the device. Use a pool with a budget of 0 to disable pooling.
+     * 
+     * @param pool
+     *        The new default pool.
+     * @since 1.0.0
+     */
+    public static synchronized void setDefault(final BitmapPool pool) {
+        defaultPool = pool;
+    }
+
+    /**
+     * Returns a mutable bitmap of the given size, cleared to transparent.
+     * 
+     * @param width
+     *        The width.
+     * @param height
+     *        The height.
+     * @param config
+     *        The configuration.
+     * @return A pooled or a new bitmap.
+     * @since 1.0.0
+     */
+    public Bitmap obtain(final int width, final int height, final Bitmap.Config config) {
+        final Bitmap pooled = take(width, height, config);
+
+        if (pooled != null) {
+            pooled.eraseColor(Color.TRANSPARENT);
+
+            return pooled;
+        } else {
+            return Bitmap.createBitmap(width, height, config);
+        }
+    }
+
+    /**
+     * Removes a bitmap of the given size from the pool, leaving its pixels untouched. Suitable to
+     * be overwritten entirely, for example by <code>BitmapFactory.Options.inBitmap</code>.
+     * 
+     * @param width
+     *        The width.
+     * @param height
+     *        The height.
+     * @param config
+     *        The configuration.
+     * @return A pooled bitmap or <code>null</code>.
+     * @since 1.0.0
+     */
+    public Bitmap get(final int width, final int height, final Bitmap.Config config) {
+        return take(width, height, config);
+    }
+
+    /**
+     * Gives a bitmap back to the pool. Immutable and recycled bitmaps are ignored.
+     * 
+     * @param bitmap
+     *        The bitmap, which must not be used afterwards. May be <code>null</code>.
+     * @since 1.0.0
+     */
+    public synchronized void release(final Bitmap bitmap) {
+        if ((bitmap == null) || bitmap.isRecycled() || !bitmap.isMutable()
+                || (bitmap.getConfig() == null) || this.releaseOrder.containsKey(bitmap)) {
+            return;
+        }
+
+        final int bitmapSize = sizeOf(bitmap);
+
+        if (bitmapSize > this.maxSize) {
+            bitmap.recycle();
+
+            return;
+        }
+
+        final Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> bucket = this.buckets.get(key);
+
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            this.buckets.put(key, bucket);
+        }
+
+        bucket.addLast(bitmap);
+        this.releaseOrder.put(bitmap, key);
+        this.size += bitmapSize;
+
+        trimToSize(this.maxSize);
+    }
+
+    /**
+     * Recycles the least recently released bitmaps until the pool holds at most
+     * <code>maxSize</code> bytes.
+     * 
+     * @param maxSize
+     *        The size to shrink to.
+     * @since 1.0.0
+     */
+    public synchronized void trimToSize(final int maxSize) {
+        final Iterator<Map.Entry<Bitmap, Key>> iterator = this.releaseOrder.entrySet().iterator();
+
+        while ((this.size > maxSize) && iterator.hasNext()) {
+            final Map.Entry<Bitmap, Key> eldest = iterator.next();
+            final Bitmap bitmap = eldest.getKey();
+            final LinkedList<Bitmap> bucket = this.buckets.get(eldest.getValue());
+
+            iterator.remove();
+            bucket.remove(bitmap);
+
+            if (bucket.isEmpty()) {
+                this.buckets.remove(eldest.getValue());
+            }
+
+            this.size -= sizeOf(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Recycles all pooled bitmaps.
+     * 
+     * @since 1.0.0
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            trimToSize(this.maxSize / 2);
+        }
+    }
+
+    /**
+     * @return The number of bytes held by the pool.
+     * @since 1.0.0
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    public int maxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * @return The fraction of requests served by a pooled bitmap, between 0 and 1.
+     * @since 1.0.0
+     */
+    public synchronized float hitRate() {
+        return (this.requestCount == 0) ? 0 : ((float) this.hitCount) / this.requestCount;
+    }
+
+    /**
+     * @return The number of bytes handed out again instead of being allocated.
+     * @since 1.0.0
+     */
+    public synchronized long bytesReused() {
+        return this.bytesReused;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BitmapPool[size=%d,maxSize=%d,hitRate=%d%%,bytesReused=%d]",
+                this.size, this.maxSize, (int) (hitRate() * 100), this.bytesReused);
+    }
+
+    /**
+     * Removes a bitmap of the given size from the pool.
+     * 
+     * @return The bitmap, as it was released, or <code>null</code> if there are none.
+     */
+    private synchronized Bitmap take(final int width, final int height,
+            final Bitmap.Config config) {
+        final Key key = new Key(width, height, config);
+        final LinkedList<Bitmap> bucket = this.buckets.get(key);
+
+        this.requestCount++;
+
+        if (bucket == null) {
+            return null;
+        }
+
+        // The most recently released bitmap is the least likely to be swapped out.
+        final Bitmap bitmap = bucket.removeLast();
+        final int bitmapSize = sizeOf(bitmap);
+
+        if (bucket.isEmpty()) {
+            this.buckets.remove(key);
+        }
+
+        this.releaseOrder.remove(bitmap);
+        this.size -= bitmapSize;
+        this.hitCount++;
+        this.bytesReused += bitmapSize;
+
+        return bitmap;
+    }
+
+    private static int sizeOf(final Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Bucket key.
+     */
+    private static final class Key {
+        private final int width;
+        private final int height;
+        private final Bitmap.Config config;
+
+        Key(final int width, final int height, final Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) o;
+
+            return (this.width == other.width) && (this.height == other.height)
+                    && (this.config == other.config);
+        }
+
+        @Override
+        public int hashCode() {
+            return (((this.width * 31) + this.height) * 31) + this.config.hashCode();
+        }
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Downloads resources to files.
+ * 
+ * Content is moved in bulk through pooled buffers and written with a {@link FileChannel}; local
+ * sources (e.g.: <code>file:</code> URLs) are transferred channel to channel. Data is first written
+ * to a partial file next to the destination, which is renamed to the destination only once the
+ * download is complete, so that the destination never holds truncated content.
+ * 
+ * An interrupted download leaves its partial file behind. The next download to the same destination
+ * resumes it with an HTTP range request, provided the server sent a strong validator (an
+ * <code>ETag</code> or a <code>Last-Modified</code> date) the first time: the validator is sent
+ * back in an <code>If-Range</code> header, so a resource which has changed in the meantime is
+ * downloaded again from the start.
+ * 
+ * Instances are thread-safe and may be shared.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class Downloader {
+    /**
+     * Size of transfer buffers, in bytes.
+     */
+    public static final int BUFFER_SIZE = 32 * 1024;
+    /**
+     * Minimum delay between two progress notifications used when none is specified, in
+     * milliseconds.
+     */
+    public static final long DEFAULT_PROGRESS_INTERVAL = 250;
+    /**
+     * Suffix appended to the destination file name to obtain the partial file name.
+     */
+    public static final String PARTIAL_SUFFIX = ".part";
+    /**
+     * Minimum number of bytes fetched by each segment of a segmented download.
+     */
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String VALIDATOR_SUFFIX = ".validator";
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final LinkedList<ByteBuffer> BUFFER_POOL = new LinkedList<ByteBuffer>();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private volatile long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private volatile int connectTimeout;
+    private volatile int readTimeout;
+    private final AtomicInteger segmentRetryCount = new AtomicInteger();
+
+    /**
+     * Interface definition for a callback to be invoked on the main thread while a download
+     * progresses.
+     * 
+     * @since 1.0.0
+     * @author Lorenzo Villani
+     */
+    public static interface ProgressListener {
+        /**
+         * Called at most once per progress interval, and once more when the download completes.
+         * 
+         * @param downloaded
+         *        The number of bytes downloaded so far, including resumed ones.
+         * @param total
+         *        The size of the resource, or -1 if unknown.
+         * @since 1.0.0
+         */
+        void onProgress(long downloaded, long total);
+    }
+
+    /**
+     * Sets the minimum delay between two progress notifications.
+     * 
+     * @param progressInterval
+     *        The delay, in milliseconds.
+     * @since 1.0.0
+     */
+    public void setProgressInterval(final long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * Sets the connect timeout of the connections opened by this downloader.
+     * 
+     * @param connectTimeout
+     *        The timeout, in milliseconds, or 0 to wait indefinitely.
+     * @see URLConnection#setConnectTimeout(int)
+     * @since 1.0.0
+     */
+    public void setConnectTimeout(final int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Sets the read timeout of the connections opened by this downloader.
+     * 
+     * @param readTimeout
+     *        The timeout, in milliseconds, or 0 to wait indefinitely.
+     * @see URLConnection#setReadTimeout(int)
+     * @since 1.0.0
+     */
+    public void setReadTimeout(final int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Downloads a resource, resuming a previous partial download if possible.
+     * 
+     * The download stops with an {@link InterruptedIOException} when the calling thread is
+     * interrupted (e.g.: the task running it is cancelled), keeping the partial file.
+     * 
+     * @param url
+     *        The URL of the resource.
+     * @param destination
+     *        The destination file, replaced if it exists.
+     * @param listener
+     *        The progress listener, or <code>null</code>.
+     * @return <code>destination</code>.
+     * @throws IOException
+     *         If the download fails.
+     * @since 1.0.0
+     */
+    public File download(final URL url, final File destination, final ProgressListener listener)
+            throws IOException {
+        final File partialFile = getPartialFile(destination);
+        final File validatorFile = new File(partialFile.getPath() + VALIDATOR_SUFFIX);
+        final URLConnection connection = openConnection(url);
+        long offset = 0;
+
+        // The partial file is resumed or rewritten as a single stream from now on.
+        SegmentedDownload.getStateFile(destination).delete();
+
+        try {
+            if (connection instanceof HttpURLConnection) {
+                offset = requestResume((HttpURLConnection) connection, partialFile, validatorFile);
+
+                final int status = ((HttpURLConnection) connection).getResponseCode();
+
+                if ((status == HTTP_RANGE_NOT_SATISFIABLE) && (offset > 0)) {
+                    // The partial file does not match the resource, start over.
+                    discardPartialFile(destination);
+
+                    return download(url, destination, listener);
+                } else if ((status < HttpURLConnection.HTTP_OK)
+                        || (status >= HttpURLConnection.HTTP_MULT_CHOICE)) {
+                    throw new IOException("Unexpected response: " + status);
+                } else if ((status != HTTP_PARTIAL_CONTENT)
+                        || !isResumed(connection.getHeaderField("Content-Range"), offset)) {
+                    offset = 0;
+                }
+
+                saveValidator(connection, validatorFile);
+            }
+
+            final long contentLength = getContentLength(connection);
+            final long total = (contentLength == -1) ? -1 : offset + contentLength;
+            final long size = transfer(connection.getInputStream(), partialFile, offset, total,
+                    listener);
+
+            if ((total != -1) && (size != total)) {
+                throw new IOException("Truncated content: " + size + " of " + total + " bytes");
+            }
+        } finally {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+
+        commit(partialFile, destination);
+        validatorFile.delete();
+
+        return destination;
+    }
+
+    /**
+     * Downloads a resource fetching up to <code>segmentCount</code> byte ranges in parallel, each
+     * one of at least {@link #MIN_SEGMENT_SIZE} bytes, into a preallocated partial file.
+     * 
+     * The server is first probed with a one byte range request: the resource is downloaded with
+     * {@link #download(URL, File, ProgressListener)} instead if the server does not honor ranges,
+     * does not declare the size of the resource, does not provide a strong validator or if the
+     * resource is too small to be split. Failed segments are retried from where they stopped; if
+     * the server stops honoring ranges midway (e.g.: because the resource has changed) the download
+     * restarts as a single stream.
+     * 
+     * A failed segmented download keeps its partial file along with the progress of each segment,
+     * and the next segmented download to the same destination resumes it unless the resource has
+     * changed. A partial file left by {@link #download(URL, File, ProgressListener)} is resumed as
+     * a single stream instead of being downloaded again in segments.
+     * 
+     * @param url
+     *        The URL of the resource.
+     * @param destination
+     *        The destination file, replaced if it exists.
+     * @param segmentCount
+     *        The maximum number of parallel connections.
+     * @param listener
+     *        The progress listener, or <code>null</code>.
+     * @return <code>destination</code>.
+     * @throws IOException
+     *         If the download fails.
+     * @since 1.0.0
+     */
+    public File download(final URL url, final File destination, final int segmentCount,
+            final ProgressListener listener) throws IOException {
+        if ((segmentCount > 1) && !isResumable(destination)) {
+            final SegmentedDownload segmentedDownload = SegmentedDownload.probe(this, url,
+                    destination, segmentCount, listener);
+
+            if (segmentedDownload != null) {
+                try {
+                    return segmentedDownload.run();
+                } catch (final SegmentedDownload.RangeUnsupportedException e) {
+                    // Fall back to a single stream.
+                }
+            }
+        }
+
+        return download(url, destination, listener);
+    }
+
+    /**
+     * @return The number of times a segment of a segmented download has been retried.
+     * @since 1.0.0
+     */
+    public int segmentRetryCount() {
+        return this.segmentRetryCount.get();
+    }
+
+    /**
+     * Deletes the partial file of a destination, if any, so that the next download starts over.
+     * 
+     * @param destination
+     *        The destination file.
+     * @since 1.0.0
+     */
+    public void discardPartialFile(final File destination) {
+        final File partialFile = getPartialFile(destination);
+
+        partialFile.delete();
+        new File(partialFile.getPath() + VALIDATOR_SUFFIX).delete();
+        SegmentedDownload.getStateFile(destination).delete();
+    }
+
+    /**
+     * @param destination
+     *        The destination file.
+     * @return The file where content is written while downloading to <code>destination</code>.
+     * @since 1.0.0
+     */
+    public static File getPartialFile(final File destination) {
+        return new File(destination.getPath() + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * Opens a connection to a URL, applying the configured timeouts.
+     * 
+     * @param url
+     *        The URL.
+     * @return The connection, not yet connected.
+     * @throws IOException
+     *         If the connection cannot be opened.
+     */
+    URLConnection openConnection(final URL url) throws IOException {
+        final URLConnection connection = url.openConnection();
+
+        connection.setConnectTimeout(this.connectTimeout);
+        connection.setReadTimeout(this.readTimeout);
+
+        return connection;
+    }
+
+    /**
+     * Copies a stream to a file, starting at the given position.
+     * 
+     * @param input
+     *        The source, closed when done.
+     * @param file
+     *        The destination file, truncated to <code>position</code> first.
+     * @param position
+     *        The position of the first byte to write.
+     * @param total
+     *        The total size of the content, for progress notifications.
+     * @param listener
+     *        The progress listener, or <code>null</code>.
+     * @return The size of the file.
+     * @throws IOException
+     *         If the copy fails or the calling thread is interrupted.
+     */
+    long transfer(final InputStream input, final File file, final long position, final long total,
+            final ProgressListener listener) throws IOException {
+        final Progress progress = createProgress(listener, total);
+        final RandomAccessFile output = new RandomAccessFile(file, "rw");
+
+        try {
+            final FileChannel outputChannel = output.getChannel();
+            long written = position;
+
+            outputChannel.truncate(position);
+
+            if (input instanceof FileInputStream) {
+                final FileChannel inputChannel = ((FileInputStream) input).getChannel();
+                long transferred;
+
+                while ((transferred = outputChannel.transferFrom(inputChannel, written,
+                        BUFFER_SIZE)) > 0) {
+                    written += transferred;
+                    checkInterrupted();
+                    progress.update(written);
+                }
+            } else {
+                final ReadableByteChannel inputChannel = Channels.newChannel(input);
+                final ByteBuffer buffer = obtainBuffer();
+
+                try {
+                    while (inputChannel.read(buffer) != -1) {
+                        buffer.flip();
+
+                        while (buffer.hasRemaining()) {
+                            written += outputChannel.write(buffer, written);
+                        }
+
+                        buffer.clear();
+                        checkInterrupted();
+                        progress.update(written);
+                    }
+                } finally {
+                    releaseBuffer(buffer);
+                }
+            }
+
+            progress.finish(written);
+
+            return written;
+        } finally {
+            IOUtils.closeQuietly(output);
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Moves a complete partial file to its destination.
+     * 
+     * @param partialFile
+     *        The partial file.
+     * @param destination
+     *        The destination.
+     * @throws IOException
+     *         If the file cannot be moved.
+     */
+    void commit(final File partialFile, final File destination) throws IOException {
+        if (!partialFile.renameTo(destination)) {
+            FileUtils.deleteQuietly(destination);
+
+            if (!partialFile.renameTo(destination)) {
+                throw new IOException("Unable to rename " + partialFile + " to " + destination);
+            }
+        }
+    }
+
+    /**
+     * @return A progress throttler posting to <code>listener</code>, which may be
+     *         <code>null</code>.
+     */
+    Progress createProgress(final ProgressListener listener, final long total) {
+        return new Progress(listener, total);
+    }
+
+    /**
+     * Counts a segment retry.
+     */
+    void segmentRetried() {
+        this.segmentRetryCount.incrementAndGet();
+    }
+
+    /**
+     * Posts a progress notification to the main thread.
+     */
+    void postProgress(final ProgressListener listener, final long downloaded, final long total) {
+        this.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onProgress(downloaded, total);
+            }
+        });
+    }
+
+    /**
+     * @return A cleared transfer buffer.
+     */
+    static ByteBuffer obtainBuffer() {
+        synchronized (BUFFER_POOL) {
+            if (!BUFFER_POOL.isEmpty()) {
+                return BUFFER_POOL.removeFirst();
+            }
+        }
+
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Gives a buffer obtained with {@link #obtainBuffer()} back to the pool.
+     */
+    static void releaseBuffer(final ByteBuffer buffer) {
+        buffer.clear();
+
+        synchronized (BUFFER_POOL) {
+            if (BUFFER_POOL.size() < MAX_POOLED_BUFFERS) {
+                BUFFER_POOL.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * @throws InterruptedIOException
+     *         If the calling thread has been interrupted.
+     */
+    static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Download interrupted");
+        }
+    }
+
+    /**
+     * @return The value of the <code>Content-Length</code> header, or -1 if unknown.
+     */
+    static long getContentLength(final URLConnection connection) {
+        final String contentLength = connection.getHeaderField("Content-Length");
+
+        if (contentLength == null) {
+            return connection.getContentLength();
+        }
+
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if there is a partial file with a validator, left by a single
+     *         stream download to <code>destination</code>.
+     */
+    private static boolean isResumable(final File destination) {
+        final File partialFile = getPartialFile(destination);
+
+        return (partialFile.length() > 0)
+                && new File(partialFile.getPath() + VALIDATOR_SUFFIX).isFile();
+    }
+
+    /**
+     * Adds range headers to a request if there is a partial file with a validator.
+     * 
+     * @return The offset requested.
+     */
+    private static long requestResume(final HttpURLConnection connection, final File partialFile,
+            final File validatorFile) throws IOException {
+        final long offset = partialFile.length();
+
+        if ((offset == 0) || !validatorFile.isFile()) {
+            return 0;
+        }
+
+        final String validator = FileUtils.readFileToString(validatorFile).trim();
+
+        if (validator.length() == 0) {
+            return 0;
+        }
+
+        connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        connection.setRequestProperty("If-Range", validator);
+
+        return offset;
+    }
+
+    /**
+     * @return <code>true</code> if a <code>Content-Range</code> header starts at
+     *         <code>offset</code>.
+     */
+    static boolean isResumed(final String contentRange, final long offset) {
+        return (contentRange != null) && contentRange.trim().startsWith("bytes " + offset + "-");
+    }
+
+    /**
+     * @return The strong validator of a response, suitable for <code>If-Range</code>, or
+     *         <code>null</code>.
+     */
+    static String getValidator(final URLConnection connection) {
+        final String entityTag = connection.getHeaderField("ETag");
+
+        // Weak entity tags cannot be used with If-Range.
+        if ((entityTag == null) || entityTag.startsWith("W/")) {
+            return connection.getHeaderField("Last-Modified");
+        } else {
+            return entityTag;
+        }
+    }
+
+    /**
+     * Stores the strong validator of a response, or deletes the previous one if there is none.
+     */
+    private static void saveValidator(final URLConnection connection, final File validatorFile)
+            throws IOException {
+        final String validator = getValidator(connection);
+
+        if (validator != null) {
+            FileUtils.writeStringToFile(validatorFile, validator);
+        } else {
+            validatorFile.delete();
+        }
+    }
+
+    /**
+     * Throttles progress notifications. Thread-safe.
+     */
+    final class Progress {
+        private final ProgressListener listener;
+        private final long total;
+        private long lastNotification;
+
+        Progress(final ProgressListener listener, final long total) {
+            this.listener = listener;
+            this.total = total;
+        }
+
+        synchronized void update(final long downloaded) {
+            if (this.listener == null) {
+                return;
+            }
+
+            final long now = System.nanoTime() / NANOS_PER_MILLI;
+
+            if ((now - this.lastNotification) >= Downloader.this.progressInterval) {
+                this.lastNotification = now;
+
+                postProgress(this.listener, downloaded, this.total);
+            }
+        }
+
+        synchronized void finish(final long downloaded) {
+            if (this.listener != null) {
+                postProgress(this.listener, downloaded, this.total);
+            }
+        }
+    }
+}
@@ -16,19 +16,30 @@
 
 package co.bitcode.android.net;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 
 import co.bitcode.android.app.ContextUtils;
 
 /**
- * Provides methods to test for network availability.
+ * Provides methods to test for network availability and to defer work until a network is
+ * available.
  * 
  * @since 1.0.0
  * @author Lorenzo Villani
  */
 public final class NetworkHelper {
+    /** Work waiting for connectivity, guarded by itself. */
+    private static final List<Runnable> PARKED = new ArrayList<Runnable>();
+    private static ConnectivityReceiver receiver;
+
     private NetworkHelper() {
     }
 
@@ -51,4 +62,105 @@ public final class NetworkHelper {
             return false;
         }
     }
+
+    /**
+     * Runs work as soon as the active network interface is connected: immediately, on the calling
+     * thread, if it already is, otherwise on the main thread once Android reports that the
+     * connectivity has been restored.
+     * 
+     * While work is waiting, a single {@link BroadcastReceiver} is registered on the application
+     * context for {@link ConnectivityManager#CONNECTIVITY_ACTION}. It is unregistered as soon as no
+     * more work is waiting. Requires the <code>ACCESS_NETWORK_STATE</code> permission.
+     * 
+     * @param context
+     *        The {@link Context}.
+     * @param runnable
+     *        The work.
+     * @see #cancelRunWhenConnected(Context, Runnable)
+     * @since 1.0.0
+     */
+    public static void runWhenConnected(final Context context, final Runnable runnable) {
+        if (isConnected(context)) {
+            runnable.run();
+
+            return;
+        }
+
+        synchronized (PARKED) {
+            PARKED.add(runnable);
+
+            if (receiver == null) {
+                receiver = new ConnectivityReceiver(context.getApplicationContext());
+                receiver.register();
+            }
+        }
+    }
+
+    /**
+     * Removes work which is waiting for connectivity.
+     * 
+     * @param context
+     *        The {@link Context}.
+     * @param runnable
+     *        The work passed to {@link #runWhenConnected(Context, Runnable)}.
+     * @return <code>true</code> if the work was waiting, <code>false</code> if it has already run
+     *         or was never submitted.
+     * @since 1.0.0
+     */
+    public static boolean cancelRunWhenConnected(final Context context, final Runnable runnable) {
+        synchronized (PARKED) {
+            final boolean removed = PARKED.remove(runnable);
+
+            if (PARKED.isEmpty() && (receiver != null)) {
+                receiver.unregister();
+                receiver = null;
+            }
+
+            return removed;
+        }
+    }
+
+    /**
+     * Runs the parked work once the network is back.
+     */
+    private static final class ConnectivityReceiver extends BroadcastReceiver {
+        private final Context context;
+
+        ConnectivityReceiver(final Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public void onReceive(final Context receiverContext, final Intent intent) {
+            if (!isConnected(this.context)) {
+                return;
+            }
+
+            final List<Runnable> ready;
+
+            synchronized (PARKED) {
+                if (receiver != this) {
+                    return;
+                }
+
+                ready = new ArrayList<Runnable>(PARKED);
+                PARKED.clear();
+                unregister();
+                receiver = null;
+            }
+
+            for (final Runnable runnable : ready) {
+                runnable.run();
+            }
+        }
+
+        void register() {
+            this.context.registerReceiver(this, new IntentFilter(
+                    ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+
+        void unregister() {
+            this.context.unregisterReceiver(this);
+        }
+    }
 }
@@ -0,0 +1,425 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A download split in byte ranges fetched in parallel by {@link Downloader}. Each segment writes
+ * to its own region of a partial file preallocated to the size of the resource.
+ * 
+ * When the download fails, the partial file is kept along with a state file recording the
+ * validator of the resource and how far each segment got. The next segmented download to the same
+ * destination resumes every segment from there, provided the resource has the same validator and
+ * size. If the server stops honoring ranges, the partial file is discarded.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+final class SegmentedDownload {
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final String STATE_SUFFIX = ".segments";
+
+    private final Downloader downloader;
+    private final URL url;
+    private final File destination;
+    private final File partialFile;
+    private final String validator;
+    private final long total;
+    private final int segmentCount;
+    private final long segmentSize;
+    private final Downloader.Progress progress;
+    private final AtomicLong downloaded = new AtomicLong();
+
+    private SegmentedDownload(final Downloader downloader, final URL url, final File destination,
+            final String validator, final long total, final int segmentCount,
+            final Downloader.ProgressListener listener) {
+        this.downloader = downloader;
+        this.url = url;
+        this.destination = destination;
+        this.partialFile = Downloader.getPartialFile(destination);
+        this.validator = validator;
+        this.total = total;
+        this.segmentCount = segmentCount;
+        this.segmentSize = ((total + segmentCount) - 1) / segmentCount;
+        this.progress = downloader.createProgress(listener, total);
+    }
+
+    /**
+     * Asks the server for the first byte of a resource to find out whether it can be downloaded in
+     * segments.
+     * 
+     * @return A segmented download, or <code>null</code> if the resource must be downloaded as a
+     *         single stream.
+     * @throws IOException
+     *         If the server cannot be reached.
+     */
+    static SegmentedDownload probe(final Downloader downloader, final URL url,
+            final File destination, final int maxSegmentCount,
+            final Downloader.ProgressListener listener) throws IOException {
+        final URLConnection connection = downloader.openConnection(url);
+
+        if (!(connection instanceof HttpURLConnection)) {
+            return null;
+        }
+
+        try {
+            connection.setRequestProperty("Range", "bytes=0-0");
+
+            if (((HttpURLConnection) connection).getResponseCode() != HTTP_PARTIAL_CONTENT) {
+                return null;
+            }
+
+            final long total = parseTotal(connection.getHeaderField("Content-Range"));
+            final String validator = Downloader.getValidator(connection);
+            final int segmentCount = (int) Math.min(maxSegmentCount, total
+                    / Downloader.MIN_SEGMENT_SIZE);
+
+            // Without a validator a change of the resource between two segments goes unnoticed.
+            if ((validator == null) || (segmentCount < 2)) {
+                return null;
+            }
+
+            return new SegmentedDownload(downloader, url, destination, validator, total,
+                    segmentCount, listener);
+        } finally {
+            ((HttpURLConnection) connection).disconnect();
+        }
+    }
+
+    /**
+     * @param destination
+     *        The destination file.
+     * @return The file where a failed segmented download to <code>destination</code> records the
+     *         progress of its segments.
+     */
+    static File getStateFile(final File destination) {
+        return new File(Downloader.getPartialFile(destination).getPath() + STATE_SUFFIX);
+    }
+
+    /**
+     * Runs the download on a dedicated pool of threads, one per segment, and waits for it. The
+     * download resumes the partial file of a previous failed attempt, if any.
+     * 
+     * @return The destination file.
+     * @throws RangeUnsupportedException
+     *         If the server has stopped honoring ranges.
+     * @throws IOException
+     *         If a segment fails too many times or the calling thread is interrupted.
+     */
+    File run() throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(this.segmentCount,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "SegmentedDownload");
+
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+        final CompletionService<Void> completionService = new ExecutorCompletionService<Void>(
+                executor);
+        final File stateFile = getStateFile(this.destination);
+        final long[] positions = readState(stateFile);
+        final List<Segment> segments = new ArrayList<Segment>();
+        boolean complete = false;
+        boolean resumable = true;
+
+        if (positions == null) {
+            this.downloader.discardPartialFile(this.destination);
+        }
+
+        final RandomAccessFile file = new RandomAccessFile(this.partialFile, "rw");
+
+        try {
+            final FileChannel channel = file.getChannel();
+            int pending = 0;
+
+            file.setLength(this.total);
+
+            for (long start = 0; start < this.total; start += this.segmentSize) {
+                final Segment segment = new Segment(channel, start, Math.min(start
+                        + this.segmentSize, this.total) - 1);
+
+                if (positions != null) {
+                    segment.position = positions[segments.size()];
+                    this.downloaded.addAndGet(segment.position - start);
+                }
+
+                segments.add(segment);
+
+                if (segment.position <= segment.end) {
+                    completionService.submit(segment);
+                    pending++;
+                }
+            }
+
+            // Wait in completion order so that the first failure stops the others.
+            for (; pending > 0; pending--) {
+                await(completionService);
+            }
+
+            this.progress.finish(this.total);
+            complete = true;
+        } catch (final RangeUnsupportedException e) {
+            resumable = false;
+
+            throw e;
+        } finally {
+            executor.shutdownNow();
+            IOUtils.closeQuietly(file);
+
+            if (complete) {
+                stateFile.delete();
+            } else if (resumable && !segments.isEmpty()) {
+                saveState(stateFile, segments);
+            } else if (!resumable) {
+                this.downloader.discardPartialFile(this.destination);
+            }
+        }
+
+        this.downloader.commit(this.partialFile, this.destination);
+
+        return this.destination;
+    }
+
+    /**
+     * @return The position of each segment recorded by a failed download of the same resource, or
+     *         <code>null</code> if the download must start over.
+     */
+    private long[] readState(final File stateFile) {
+        if (!stateFile.isFile() || (this.partialFile.length() != this.total)) {
+            return null;
+        }
+
+        try {
+            final String[] lines = FileUtils.readFileToString(stateFile).split("\n");
+            final int count = (int) (((this.total + this.segmentSize) - 1) / this.segmentSize);
+            final long[] positions = new long[count];
+
+            if ((lines.length != (count + 2)) || !lines[0].equals(this.validator)
+                    || (Long.parseLong(lines[1]) != this.total)) {
+                return null;
+            }
+
+            for (int i = 0; i < count; i++) {
+                final long start = i * this.segmentSize;
+                final long end = Math.min(start + this.segmentSize, this.total) - 1;
+
+                positions[i] = Long.parseLong(lines[i + 2]);
+
+                if ((positions[i] < start) || (positions[i] > (end + 1))) {
+                    return null;
+                }
+            }
+
+            return positions;
+        } catch (final IOException e) {
+            return null;
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records how far each segment got. Segments still running after a failure may have written
+     * more, which is only downloaded again.
+     */
+    private void saveState(final File stateFile, final List<Segment> segments) {
+        final StringBuilder state = new StringBuilder();
+
+        state.append(this.validator).append('\n').append(this.total).append('\n');
+
+        for (final Segment segment : segments) {
+            state.append(segment.position).append('\n');
+        }
+
+        try {
+            FileUtils.writeStringToFile(stateFile, state.toString());
+        } catch (final IOException e) {
+            // The next download starts over.
+            stateFile.delete();
+        }
+    }
+
+    private static void await(final CompletionService<Void> completionService)
+            throws IOException {
+        try {
+            completionService.take().get();
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("Download interrupted");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return The complete length declared by a <code>Content-Range</code> header (e.g.:
+     *         <code>bytes 0-0/1234</code>), or -1.
+     */
+    private static long parseTotal(final String contentRange) {
+        final int slash = (contentRange != null) ? contentRange.lastIndexOf('/') : -1;
+
+        if (slash == -1) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (final NumberFormatException e) {
+            // Unknown length: "*".
+            return -1;
+        }
+    }
+
+    /**
+     * Thrown when the server answers a range request with the whole resource.
+     */
+    static final class RangeUnsupportedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RangeUnsupportedException() {
+            super("Range requests are not supported");
+        }
+    }
+
+    /**
+     * Fetches a byte range, retrying from where it stopped on failure.
+     */
+    private final class Segment implements Callable<Void> {
+        private final FileChannel channel;
+        private final long end;
+        /** Written by the segment thread, read after a failure to save the state. */
+        private volatile long position;
+
+        Segment(final FileChannel channel, final long start, final long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            for (int attempt = 1;; attempt++) {
+                try {
+                    fetch();
+
+                    return null;
+                } catch (final RangeUnsupportedException e) {
+                    throw e;
+                } catch (final InterruptedIOException e) {
+                    throw e;
+                } catch (final IOException e) {
+                    // An interrupted segment belongs to a download which has given up.
+                    if ((attempt == MAX_SEGMENT_ATTEMPTS)
+                            || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+
+                    SegmentedDownload.this.downloader.segmentRetried();
+                }
+            }
+        }
+
+        private void fetch() throws IOException {
+            final Downloader downloader = SegmentedDownload.this.downloader;
+            final HttpURLConnection connection = (HttpURLConnection) downloader
+                    .openConnection(SegmentedDownload.this.url);
+
+            try {
+                connection.setRequestProperty("Range", "bytes=" + this.position + "-" + this.end);
+                connection.setRequestProperty("If-Range", SegmentedDownload.this.validator);
+
+                final int status = connection.getResponseCode();
+
+                if ((status == HttpURLConnection.HTTP_OK)
+                        || ((status == HTTP_PARTIAL_CONTENT) && !Downloader.isResumed(
+                                connection.getHeaderField("Content-Range"), this.position))) {
+                    throw new RangeUnsupportedException();
+                } else if (status != HTTP_PARTIAL_CONTENT) {
+                    throw new IOException("Unexpected response: " + status);
+                }
+
+                copy(connection.getInputStream());
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private void copy(final InputStream input) throws IOException {
+            final ReadableByteChannel inputChannel = Channels.newChannel(input);
+            final ByteBuffer buffer = Downloader.obtainBuffer();
+
+            try {
+                while (this.position <= this.end) {
+                    buffer.limit((int) Math.min(buffer.capacity(), (this.end - this.position) + 1));
+
+                    if (inputChannel.read(buffer) == -1) {
+                        throw new IOException("Truncated segment");
+                    }
+
+                    buffer.flip();
+
+                    final int read = buffer.remaining();
+
+                    while (buffer.hasRemaining()) {
+                        this.position += this.channel.write(buffer, this.position);
+                    }
+
+                    buffer.clear();
+                    Downloader.checkInterrupted();
+                    SegmentedDownload.this.progress.update(SegmentedDownload.this.downloaded
+                            .addAndGet(read));
+                }
+            } finally {
+                Downloader.releaseBuffer(buffer);
+                IOUtils.closeQuietly(input);
+            }
+        }
+    }
+}
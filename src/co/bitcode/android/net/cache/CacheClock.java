@@ -0,0 +1,52 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache;
+
+import android.os.SystemClock;
+
+/**
+ * Clock of the write times kept in memory by the caches.
+ * 
+ * In-memory write times are measured with {@link SystemClock#elapsedRealtime()}, which keeps
+ * counting during deep sleep and is not affected by changes of the system clock. Times read from
+ * or written to the file system are wall-clock times, see {@link System#currentTimeMillis()}, and
+ * are converted with {@link #fromWallTime(long)} before being compared with in-memory ones.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+final class CacheClock {
+    private CacheClock() {
+    }
+
+    /**
+     * @return The current time, in milliseconds since boot.
+     */
+    static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @param wallTime
+     *        A wall-clock time, e.g.: the modification time of a file.
+     * @return <code>wallTime</code> on the clock of {@link #now()}. A time in the future stays in
+     *         the future.
+     */
+    static long fromWallTime(final long wallTime) {
+        return now() - (System.currentTimeMillis() - wallTime);
+    }
+}
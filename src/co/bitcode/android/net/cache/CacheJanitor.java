@@ -0,0 +1,262 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low-priority background thread which keeps the directories of a set of {@link FileCache} zones
+ * clean.
+ * 
+ * Each pass walks the zone directories and deletes files left behind by crashes (temporary files,
+ * files unknown to the zone journal, orphaned auxiliary files) as well as expired entries, as
+ * decided by {@link FileCache#isCacheFileExpired(File)}. It then enforces a global disk quota:
+ * every zone is entitled to an equal share of it, and the share left unused by smaller zones is
+ * split among the bigger ones. Zones over their share lose their least recently used files.
+ * 
+ * The work is split in short time slices separated by pauses, so that the janitor never holds a
+ * zone for long and leaves the disk to foreground work.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class CacheJanitor {
+    /**
+     * Delay between two passes used when none is specified, in milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL = 15 * 60 * 1000;
+
+    private static final long SLICE_DURATION = 20;
+    private static final long SLICE_PAUSE = 200;
+
+    private final List<FileCache<?, ?>> zones = new CopyOnWriteArrayList<FileCache<?, ?>>();
+    private final long quota;
+    private final long interval;
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicInteger deletedFileCount = new AtomicInteger();
+    /** Serializes passes, which may run on the caller thread too. */
+    private final Object passLock = new Object();
+    private Thread thread;
+    private long sliceStart;
+
+    /**
+     * Constructor. Passes run every {@link #DEFAULT_INTERVAL} milliseconds.
+     * 
+     * @param quota
+     *        Maximum number of bytes stored on disk by all zones together.
+     * @since 1.0.0
+     */
+    public CacheJanitor(final long quota) {
+        this(quota, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param quota
+     *        Maximum number of bytes stored on disk by all zones together.
+     * @param interval
+     *        Delay between two passes, in milliseconds.
+     * @since 1.0.0
+     */
+    public CacheJanitor(final long quota, final long interval) {
+        if (quota <= 0) {
+            throw new IllegalArgumentException("quota <= 0");
+        }
+
+        this.quota = quota;
+        this.interval = interval;
+    }
+
+    /**
+     * Adds a zone to look after.
+     * 
+     * @param zone
+     *        The zone.
+     * @since 1.0.0
+     */
+    public void addZone(final FileCache<?, ?> zone) {
+        this.zones.add(zone);
+    }
+
+    /**
+     * Starts the background thread. The first pass runs immediately.
+     * 
+     * @since 1.0.0
+     */
+    public synchronized void start() {
+        if (this.thread != null) {
+            return;
+        }
+
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        runPass();
+                        Thread.sleep(CacheJanitor.this.interval);
+                    }
+                } catch (final InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        }, "CacheJanitor");
+
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MIN_PRIORITY);
+        this.thread.start();
+    }
+
+    /**
+     * Stops the background thread, interrupting the current pass if any.
+     * 
+     * @since 1.0.0
+     */
+    public synchronized void stop() {
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread = null;
+        }
+    }
+
+    /**
+     * @return The number of bytes reclaimed so far.
+     * @since 1.0.0
+     */
+    public long reclaimedBytes() {
+        return this.reclaimedBytes.get();
+    }
+
+    /**
+     * @return The number of files deleted so far.
+     * @since 1.0.0
+     */
+    public int deletedFileCount() {
+        return this.deletedFileCount.get();
+    }
+
+    /**
+     * Runs a full pass on the calling thread.
+     * 
+     * @return The number of bytes reclaimed by this pass.
+     * @throws InterruptedException
+     *         If the thread is interrupted between two time slices.
+     * @since 1.0.0
+     */
+    public long runPass() throws InterruptedException {
+        synchronized (this.passLock) {
+            final long initialReclaimedBytes = this.reclaimedBytes.get();
+
+            this.sliceStart = System.currentTimeMillis();
+
+            for (final FileCache<?, ?> zone : this.zones) {
+                sweep(zone);
+            }
+
+            enforceQuota();
+
+            return this.reclaimedBytes.get() - initialReclaimedBytes;
+        }
+    }
+
+    private void sweep(final FileCache<?, ?> zone) throws InterruptedException {
+        final Set<String> residentNames = zone.getResidentFileNames();
+        final LinkedList<File> directories = new LinkedList<File>();
+
+        directories.add(zone.getCacheDir());
+
+        while (!directories.isEmpty()) {
+            final File directory = directories.removeFirst();
+            final File[] files = directory.listFiles();
+
+            if (files == null) {
+                continue;
+            }
+
+            // Empty shard directories are kept: there are few of them, and deleting one could race
+            // with a commit which created it before moving a file into it.
+            for (final File file : files) {
+                if (file.isDirectory()) {
+                    directories.add(file);
+                } else {
+                    final long reclaimed = zone.sweep(file, residentNames);
+
+                    if (reclaimed >= 0) {
+                        this.reclaimedBytes.addAndGet(reclaimed);
+                        this.deletedFileCount.incrementAndGet();
+                    }
+                }
+
+                yieldIfSliceElapsed();
+            }
+        }
+    }
+
+    /**
+     * Trims the zones so that each one fits in its fair share of the quota.
+     */
+    private void enforceQuota() throws InterruptedException {
+        final List<FileCache<?, ?>> sortedZones = new ArrayList<FileCache<?, ?>>(this.zones);
+
+        Collections.sort(sortedZones, new Comparator<FileCache<?, ?>>() {
+            @Override
+            public int compare(final FileCache<?, ?> lhs, final FileCache<?, ?> rhs) {
+                final long lhsSize = lhs.diskSize();
+                final long rhsSize = rhs.diskSize();
+
+                return (lhsSize < rhsSize) ? -1 : ((lhsSize == rhsSize) ? 0 : 1);
+            }
+        });
+
+        long remaining = this.quota;
+
+        for (int i = 0; i < sortedZones.size(); i++) {
+            final FileCache<?, ?> zone = sortedZones.get(i);
+            final long share = remaining / (sortedZones.size() - i);
+            final long size = zone.diskSize();
+
+            if (size > share) {
+                final int initialEvictionCount = zone.diskEvictionCount();
+
+                this.reclaimedBytes.addAndGet(zone.trimDiskToSize(share));
+                this.deletedFileCount.addAndGet(zone.diskEvictionCount() - initialEvictionCount);
+            }
+
+            remaining -= Math.min(size, share);
+
+            yieldIfSliceElapsed();
+        }
+    }
+
+    private void yieldIfSliceElapsed() throws InterruptedException {
+        if ((System.currentTimeMillis() - this.sliceStart) >= SLICE_DURATION) {
+            Thread.sleep(SLICE_PAUSE);
+
+            this.sliceStart = System.currentTimeMillis();
+        }
+    }
+}
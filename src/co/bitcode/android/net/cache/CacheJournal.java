@@ -0,0 +1,562 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Append-only journal which keeps track of the files stored in a {@link FileCache} zone.
+ * 
+ * Each line records an operation on a cache file: <code>PUT name size [checksum]</code>,
+ * <code>READ name</code> or <code>REMOVE name</code>. The optional checksum is the CRC-32 of the
+ * file, in hexadecimal. The journal is replayed when the cache is
+ * created to rebuild the access order and the total size of the zone without touching the cache
+ * files themselves. Once enough redundant lines accumulate, the journal is rewritten in the
+ * background with a single <code>PUT</code> line per live entry.
+ * 
+ * Neither compaction nor writes hold the lock of the journal while waiting for the disk, except
+ * for short flushes: compaction writes a snapshot of the index to a temporary file, then only
+ * takes the lock to append the lines recorded in the meantime and swap the files. Appended lines
+ * are flushed in batches on a background thread. Lines lost in a crash are harmless, since the
+ * cache tolerates files missing from the journal and vice versa.
+ * 
+ * If the journal is missing or unreadable, the index is rebuilt by scanning the cache directory
+ * once, ordering files by modification time. Only names without a dot are considered cache files,
+ * the others (temporary files, metadata) being auxiliary files.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+final class CacheJournal {
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String TMP_SUFFIX = ".tmp";
+    static final long NO_CHECKSUM = -1;
+
+    private static final String MAGIC = "co.bitcode.android.net.cache.CacheJournal";
+    private static final String VERSION = "1";
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String CHARSET = "US-ASCII";
+    private static final int COMPACTION_THRESHOLD = 2000;
+
+    private static final ExecutorService COMPACTION_EXECUTOR = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "CacheJournal");
+
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+
+                    return thread;
+                }
+            });
+
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(0, 0.75f,
+            true);
+    private final Map<String, Long> checksums = new HashMap<String, Long>();
+    private long totalSize;
+    private int redundantOpCount;
+    private boolean compactionPending;
+    private boolean flushPending;
+    /** Lines appended while a compaction writes its snapshot, <code>null</code> otherwise. */
+    private List<String> linesSinceSnapshot;
+    private Writer writer;
+
+    /**
+     * Constructor. Replays the journal found in <code>directory</code>, if any.
+     * 
+     * @param directory
+     *        The cache zone directory.
+     */
+    CacheJournal(final File directory) {
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+
+        synchronized (this) {
+            if (!replay()) {
+                this.index.clear();
+                this.checksums.clear();
+                this.totalSize = 0;
+                rebuildFromDirectory();
+
+                // Nobody else can see the journal yet, the lock can be held while writing.
+                final List<String> snapshot = snapshot();
+
+                if (writeCompacted(snapshot)) {
+                    swapCompacted(snapshot.size());
+                }
+
+                openWriter();
+            } else {
+                openWriter();
+            }
+        }
+    }
+
+    /**
+     * @param name
+     *        The cache file name.
+     * @return <code>true</code> if the journal knows about <code>name</code>.
+     */
+    synchronized boolean contains(final String name) {
+        return this.index.containsKey(name);
+    }
+
+    /**
+     * @param name
+     *        The cache file name.
+     * @return The checksum recorded for <code>name</code>, or {@link #NO_CHECKSUM}.
+     */
+    synchronized long checksum(final String name) {
+        final Long checksum = this.checksums.get(name);
+
+        return (checksum != null) ? checksum : NO_CHECKSUM;
+    }
+
+    /**
+     * @return The sum of the sizes of all entries, in bytes.
+     */
+    synchronized long totalSize() {
+        return this.totalSize;
+    }
+
+    /**
+     * @return The name of the least recently used entry, or <code>null</code> if there are none.
+     */
+    synchronized String eldest() {
+        if (this.index.isEmpty()) {
+            return null;
+        } else {
+            return this.index.keySet().iterator().next();
+        }
+    }
+
+    /**
+     * @return The number of entries.
+     */
+    synchronized int entryCount() {
+        return this.index.size();
+    }
+
+    /**
+     * Records that <code>name</code> was written with the given size.
+     * 
+     * @param name
+     *        The cache file name.
+     * @param size
+     *        The size of the cache file, in bytes.
+     * @param checksum
+     *        The CRC-32 of the cache file, or {@link #NO_CHECKSUM}.
+     */
+    synchronized void recordPut(final String name, final long size, final long checksum) {
+        final Long previous = this.index.put(name, size);
+
+        if (previous != null) {
+            this.totalSize -= previous;
+            this.redundantOpCount++;
+        }
+
+        this.totalSize += size;
+        putChecksum(name, checksum);
+
+        append(formatPut(name, size, checksum));
+    }
+
+    /**
+     * Records a read of <code>name</code>, moving it to the head of the access order.
+     * 
+     * @param name
+     *        The cache file name.
+     */
+    synchronized void recordRead(final String name) {
+        if (this.index.get(name) != null) {
+            this.redundantOpCount++;
+
+            append(READ + ' ' + name);
+        }
+    }
+
+    /**
+     * Records the removal of <code>name</code>.
+     * 
+     * @param name
+     *        The cache file name.
+     */
+    synchronized void recordRemove(final String name) {
+        final Long previous = this.index.remove(name);
+
+        this.checksums.remove(name);
+
+        if (previous != null) {
+            this.totalSize -= previous;
+            this.redundantOpCount += 2;
+
+            append(REMOVE + ' ' + name);
+        }
+    }
+
+    /**
+     * Writes the appended lines to the journal file.
+     */
+    synchronized void flush() {
+        this.flushPending = false;
+
+        if (this.writer != null) {
+            try {
+                this.writer.flush();
+            } catch (final IOException e) {
+                // The journal is only an optimization, the next compaction will rewrite it.
+                closeWriter();
+            }
+        }
+    }
+
+    private void append(final String line) {
+        if (this.linesSinceSnapshot != null) {
+            this.linesSinceSnapshot.add(line);
+        }
+
+        if (this.writer != null) {
+            try {
+                this.writer.write(line);
+                this.writer.write('\n');
+            } catch (final IOException e) {
+                closeWriter();
+            }
+        }
+
+        if ((this.writer != null) && !this.flushPending) {
+            this.flushPending = true;
+
+            COMPACTION_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+
+        if (isCompactionRequired() && !this.compactionPending) {
+            this.compactionPending = true;
+
+            COMPACTION_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compact();
+                }
+            });
+        }
+    }
+
+    private boolean isCompactionRequired() {
+        return (this.writer == null)
+                || ((this.redundantOpCount >= COMPACTION_THRESHOLD) && (this.redundantOpCount >= this.index
+                        .size()));
+    }
+
+    /**
+     * Rewrites the journal with one line per live entry, in access order. Runs on the compaction
+     * thread.
+     */
+    private void compact() {
+        final List<String> snapshot;
+
+        synchronized (this) {
+            this.compactionPending = false;
+            snapshot = snapshot();
+            this.linesSinceSnapshot = new ArrayList<String>();
+        }
+
+        final boolean written = writeCompacted(snapshot);
+
+        synchronized (this) {
+            final List<String> lines = this.linesSinceSnapshot;
+
+            this.linesSinceSnapshot = null;
+
+            if (written && appendCompacted(lines)) {
+                closeWriter();
+                swapCompacted(snapshot.size() + lines.size());
+            } else {
+                this.journalFileTmp.delete();
+            }
+
+            if (this.writer == null) {
+                openWriter();
+            }
+        }
+    }
+
+    /**
+     * @return One <code>PUT</code> line per live entry, in access order.
+     */
+    private List<String> snapshot() {
+        final List<String> lines = new ArrayList<String>(this.index.size());
+
+        for (final Map.Entry<String, Long> entry : this.index.entrySet()) {
+            lines.add(formatPut(entry.getKey(), entry.getValue(), checksum(entry.getKey())));
+        }
+
+        return lines;
+    }
+
+    /**
+     * Writes a new journal made of <code>lines</code> to the temporary journal file.
+     * 
+     * @return <code>true</code> on success.
+     */
+    private boolean writeCompacted(final List<String> lines) {
+        Writer tmpWriter = null;
+
+        try {
+            tmpWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    this.journalFileTmp), CHARSET));
+            tmpWriter.write(MAGIC + '\n' + VERSION + '\n');
+
+            for (final String line : lines) {
+                tmpWriter.write(line);
+                tmpWriter.write('\n');
+            }
+
+            tmpWriter.close();
+            tmpWriter = null;
+
+            return true;
+        } catch (final IOException e) {
+            this.journalFileTmp.delete();
+
+            return false;
+        } finally {
+            IOUtils.closeQuietly(tmpWriter);
+        }
+    }
+
+    /**
+     * Appends the lines recorded while the snapshot was written to the temporary journal file.
+     * 
+     * @return <code>true</code> on success.
+     */
+    private boolean appendCompacted(final List<String> lines) {
+        if (lines.isEmpty()) {
+            return true;
+        }
+
+        Writer tmpWriter = null;
+
+        try {
+            tmpWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    this.journalFileTmp, true), CHARSET));
+
+            for (final String line : lines) {
+                tmpWriter.write(line);
+                tmpWriter.write('\n');
+            }
+
+            tmpWriter.close();
+            tmpWriter = null;
+
+            return true;
+        } catch (final IOException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(tmpWriter);
+        }
+    }
+
+    /**
+     * Replaces the journal with the temporary journal file, made of <code>lineCount</code> lines.
+     * The writer must be closed.
+     */
+    private void swapCompacted(final int lineCount) {
+        if (this.journalFileTmp.renameTo(this.journalFile)) {
+            this.redundantOpCount = lineCount - this.index.size();
+        } else {
+            this.journalFileTmp.delete();
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the journal is missing or was written by an incompatible
+     *         version.
+     */
+    private boolean replay() {
+        if (!this.journalFile.exists()) {
+            return false;
+        }
+
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.journalFile),
+                    CHARSET));
+
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                return false;
+            }
+
+            int lineCount = 0;
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                replayLine(line);
+                lineCount++;
+            }
+
+            this.redundantOpCount = lineCount - this.index.size();
+
+            return true;
+        } catch (final IOException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    private void replayLine(final String line) {
+        final String[] parts = line.split(" ");
+
+        // A truncated trailing line, left over by a crash, is silently ignored.
+        if (((parts.length == 3) || (parts.length == 4)) && PUT.equals(parts[0])) {
+            try {
+                final long size = Long.parseLong(parts[2]);
+                final long checksum = (parts.length == 4) ? Long.parseLong(parts[3], 16)
+                        : NO_CHECKSUM;
+                final Long previous = this.index.put(parts[1], size);
+
+                if (previous != null) {
+                    this.totalSize -= previous;
+                }
+
+                this.totalSize += size;
+                putChecksum(parts[1], checksum);
+            } catch (final NumberFormatException e) {
+                return;
+            }
+        } else if ((parts.length == 2) && READ.equals(parts[0])) {
+            this.index.get(parts[1]);
+        } else if ((parts.length == 2) && REMOVE.equals(parts[0])) {
+            final Long previous = this.index.remove(parts[1]);
+
+            this.checksums.remove(parts[1]);
+
+            if (previous != null) {
+                this.totalSize -= previous;
+            }
+        }
+    }
+
+    private void putChecksum(final String name, final long checksum) {
+        if (checksum == NO_CHECKSUM) {
+            this.checksums.remove(name);
+        } else {
+            this.checksums.put(name, checksum);
+        }
+    }
+
+    private static String formatPut(final String name, final long size, final long checksum) {
+        if (checksum == NO_CHECKSUM) {
+            return PUT + ' ' + name + ' ' + size;
+        } else {
+            return PUT + ' ' + name + ' ' + size + ' ' + Long.toHexString(checksum);
+        }
+    }
+
+    private void rebuildFromDirectory() {
+        final List<File> entries = new ArrayList<File>();
+
+        listFiles(this.directory, entries);
+
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long lhsModified = lhs.lastModified();
+                final long rhsModified = rhs.lastModified();
+
+                return (lhsModified < rhsModified) ? -1 : ((lhsModified == rhsModified) ? 0 : 1);
+            }
+        });
+
+        for (final File file : entries) {
+            final long size = file.length();
+
+            this.index.put(file.getName(), size);
+            this.totalSize += size;
+        }
+    }
+
+    /**
+     * Collects cache files found in <code>directory</code> and, recursively, its sub-directories.
+     */
+    private void listFiles(final File directory, final List<File> entries) {
+        final File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (final File file : files) {
+            final String name = file.getName();
+
+            if (file.isDirectory()) {
+                listFiles(file, entries);
+            } else if (!JOURNAL_FILE.equals(name) && (name.indexOf('.') == -1)) {
+                entries.add(file);
+            }
+        }
+    }
+
+    private void openWriter() {
+        try {
+            this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    this.journalFile, true), CHARSET));
+        } catch (final IOException e) {
+            this.writer = null;
+        }
+    }
+
+    private void closeWriter() {
+        IOUtils.closeQuietly(this.writer);
+        this.writer = null;
+    }
+}
@@ -0,0 +1,624 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lock-striped variant of {@link LruCache}.
+ * 
+ * Keys are spread over a fixed number of segments, each one being an access-ordered map guarded by
+ * its own monitor, so that lookups of different keys do not contend on a single lock. A hit only
+ * writes to its own segment: each segment keeps its own access clock and its own hit and miss
+ * counts. The total size is tracked globally and, when it exceeds the maximum size, the least
+ * recently used entries of a few segments, taken in rotation, are compared and the one which has
+ * gone unused for the most accesses to its segment is evicted. Eviction order is therefore an
+ * approximation of the global LRU order, which relies on keys being spread evenly over segments.
+ * 
+ * The public contract is the same as {@link LruCache}: subclasses may override
+ * {@link #create(Object)}, {@link #sizeOf(Object, Object)} and
+ * {@link #entryRemoved(boolean, Object, Object, Object)}.
+ * 
+ * @param <K>
+ *        Key type.
+ * @param <V>
+ *        Value type.
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class ConcurrentLruCache<K, V> {
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    private static final int MAX_SEGMENTS = 1 << 16;
+    /** Number of non-empty segments compared to pick the entry to evict. */
+    private static final int EVICTION_SAMPLE_SIZE = 4;
+
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final int maxSize;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger evictionCursor = new AtomicInteger();
+
+    private final AtomicInteger putCount = new AtomicInteger();
+    private final AtomicInteger createCount = new AtomicInteger();
+    private final AtomicInteger evictionCount = new AtomicInteger();
+
+    /**
+     * A cached value along with its size and last access stamp, guarded by its segment.
+     */
+    private static final class Entry<V> {
+        private final V value;
+        private final int size;
+        private long stamp;
+
+        Entry(final V value, final int size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * An entry copied by {@link ConcurrentLruCache#snapshot()}.
+     */
+    private static final class AgedEntry<K, V> {
+        private final K key;
+        private final V value;
+        private final long age;
+
+        AgedEntry(final K key, final V value, final long age) {
+            this.key = key;
+            this.value = value;
+            this.age = age;
+        }
+    }
+
+    /**
+     * A single access-ordered stripe. All accesses must be synchronized on the segment itself.
+     */
+    private static final class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+        private static final long serialVersionUID = 1L;
+
+        /** Number of accesses to this segment, used to stamp its entries. */
+        private long clock;
+        private int hitCount;
+        private int missCount;
+
+        Segment() {
+            super(0, 0.75f, true);
+        }
+
+        /**
+         * Stamps an entry as the most recently used one of this segment.
+         */
+        void touch(final Entry<V> entry) {
+            entry.stamp = ++this.clock;
+        }
+
+        /**
+         * @return The number of accesses to this segment since <code>entry</code> was last used.
+         */
+        long age(final Entry<V> entry) {
+            return this.clock - entry.stamp;
+        }
+
+        Map.Entry<K, Entry<V>> eldest() {
+            final Iterator<Map.Entry<K, Entry<V>>> iterator = entrySet().iterator();
+
+            if (iterator.hasNext()) {
+                return iterator.next();
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Constructor. Uses a default concurrency level.
+     * 
+     * @param maxSize
+     *        for caches that do not override {@link #sizeOf(Object, Object)}, this is the maximum
+     *        number of entries in the cache. For all other caches, this is the maximum sum of the
+     *        sizes of the entries in this cache.
+     * @since 1.0.0
+     */
+    public ConcurrentLruCache(final int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize
+     *        for caches that do not override {@link #sizeOf(Object, Object)}, this is the maximum
+     *        number of entries in the cache. For all other caches, this is the maximum sum of the
+     *        sizes of the entries in this cache.
+     * @param concurrencyLevel
+     *        Estimated number of concurrently accessing threads. It is rounded up to the next power
+     *        of two and used as the number of segments.
+     * @since 1.0.0
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCache(final int maxSize, final int concurrencyLevel) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel <= 0");
+        }
+
+        int segmentCount = 1;
+
+        while ((segmentCount < concurrencyLevel) && (segmentCount < MAX_SEGMENTS)) {
+            segmentCount <<= 1;
+        }
+
+        this.maxSize = maxSize;
+        this.segmentMask = segmentCount - 1;
+        this.segments = new Segment[segmentCount];
+
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment<K, V>();
+        }
+    }
+
+    /**
+     * Returns the value for <code>key</code> if it exists in the cache or can be created by
+     * {@link #create(Object)}. If a value was returned, it is moved to the head of the queue of its
+     * segment. This returns <code>null</code> if a value is not cached and cannot be created.
+     * 
+     * @param key
+     *        The key.
+     * @return The cached value or <code>null</code>.
+     * @since 1.0.0
+     */
+    public V get(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Segment<K, V> segment = segmentFor(key);
+        Entry<V> mapValue;
+
+        synchronized (segment) {
+            mapValue = segment.get(key);
+
+            if (mapValue != null) {
+                segment.touch(mapValue);
+                segment.hitCount++;
+            } else {
+                segment.missCount++;
+            }
+        }
+
+        if (mapValue != null) {
+            return mapValue.value;
+        }
+
+        /*
+         * Same as LruCache: create() runs without holding any lock and, if a conflicting value was
+         * added in the meantime, the created value is released.
+         */
+        final V createdValue = create(key);
+
+        if (createdValue == null) {
+            return null;
+        }
+
+        final Entry<V> createdEntry = newEntry(key, createdValue);
+
+        this.createCount.incrementAndGet();
+
+        synchronized (segment) {
+            mapValue = segment.get(key);
+
+            if (mapValue == null) {
+                segment.touch(createdEntry);
+                segment.put(key, createdEntry);
+                this.size.addAndGet(createdEntry.size);
+            }
+        }
+
+        if (mapValue != null) {
+            entryRemoved(false, key, createdValue, mapValue.value);
+
+            return mapValue.value;
+        } else {
+            trimToSize(this.maxSize);
+
+            return createdValue;
+        }
+    }
+
+    /**
+     * Caches <code>value</code> for <code>key</code>. The value is moved to the head of the queue
+     * of its segment.
+     * 
+     * @param key
+     *        The key.
+     * @param value
+     *        The value.
+     * @return The previous value mapped by <code>key</code>.
+     * @since 1.0.0
+     */
+    public V put(final K key, final V value) {
+        if ((key == null) || (value == null)) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final Segment<K, V> segment = segmentFor(key);
+        final Entry<V> entry = newEntry(key, value);
+        final Entry<V> previous;
+
+        this.putCount.incrementAndGet();
+
+        synchronized (segment) {
+            segment.touch(entry);
+            previous = segment.put(key, entry);
+            this.size.addAndGet(entry.size);
+
+            if (previous != null) {
+                this.size.addAndGet(-previous.size);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(this.maxSize);
+
+        if (previous != null) {
+            return previous.value;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Removes the entry for <code>key</code> if it exists.
+     * 
+     * @param key
+     *        The key.
+     * @return The previous value mapped by <code>key</code>.
+     * @since 1.0.0
+     */
+    public final V remove(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Segment<K, V> segment = segmentFor(key);
+        final Entry<V> previous;
+
+        synchronized (segment) {
+            previous = segment.remove(key);
+
+            if (previous != null) {
+                this.size.addAndGet(-previous.size);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, null);
+
+            return previous.value;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved(boolean, Object, Object, Object)} on each
+     * removed entry.
+     * 
+     * @since 1.0.0
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf(Object, Object)}, this returns the number of
+     * entries in the cache. For all other caches, this returns the sum of the sizes of the entries
+     * in this cache.
+     * 
+     * @return The current size.
+     * @since 1.0.0
+     */
+    public final int size() {
+        return this.size.get();
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf(Object, Object)}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the maximum sum of the
+     * sizes of the entries in this cache.
+     * 
+     * @return The maximum size.
+     * @since 1.0.0
+     */
+    public final int maxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * @return The number of times {@link #get(Object)} returned a value.
+     * @since 1.0.0
+     */
+    public final int hitCount() {
+        int hits = 0;
+
+        for (final Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                hits += segment.hitCount;
+            }
+        }
+
+        return hits;
+    }
+
+    /**
+     * @return The number of times {@link #get(Object)} returned <code>null</code> or required a new
+     *         value to be created.
+     * @since 1.0.0
+     */
+    public final int missCount() {
+        int misses = 0;
+
+        for (final Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                misses += segment.missCount;
+            }
+        }
+
+        return misses;
+    }
+
+    /**
+     * @return The number of times {@link #create(Object)} returned a value.
+     * @since 1.0.0
+     */
+    public final int createCount() {
+        return this.createCount.get();
+    }
+
+    /**
+     * @return The number of times {@link #put(Object, Object)} was called.
+     * @since 1.0.0
+     */
+    public final int putCount() {
+        return this.putCount.get();
+    }
+
+    /**
+     * @return The number of values that have been evicted.
+     * @since 1.0.0
+     */
+    public final int evictionCount() {
+        return this.evictionCount.get();
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least recently accessed to
+     * most recently accessed, with the same approximation used for eviction. Since segments are
+     * copied one at a time, the snapshot is not atomic with respect to concurrent writers.
+     * 
+     * @return A copy of the cache contents.
+     * @since 1.0.0
+     */
+    public final Map<K, V> snapshot() {
+        final List<AgedEntry<K, V>> entries = new ArrayList<AgedEntry<K, V>>();
+
+        for (final Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                for (final Map.Entry<K, Entry<V>> entry : segment.entrySet()) {
+                    entries.add(new AgedEntry<K, V>(entry.getKey(), entry.getValue().value,
+                            segment.age(entry.getValue())));
+                }
+            }
+        }
+
+        Collections.sort(entries, new Comparator<AgedEntry<K, V>>() {
+            @Override
+            public int compare(final AgedEntry<K, V> lhs, final AgedEntry<K, V> rhs) {
+                // Oldest first.
+                return (lhs.age > rhs.age) ? -1 : ((lhs.age == rhs.age) ? 0 : 1);
+            }
+        });
+
+        final Map<K, V> snapshot = new LinkedHashMap<K, V>(entries.size());
+
+        for (final AgedEntry<K, V> entry : entries) {
+            snapshot.put(entry.key, entry.value);
+        }
+
+        return snapshot;
+    }
+
+    @Override
+    public final String toString() {
+        final int hits = hitCount();
+        final int accesses = hits + missCount();
+        final int hitPercent = (accesses != 0) ? ((100 * hits) / accesses) : 0;
+
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                this.maxSize, hits, accesses - hits, hitPercent);
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. The default implementation does
+     * nothing.
+     * 
+     * The method is called without synchronization: other threads may access the cache while this
+     * method is executing.
+     * 
+     * @param evicted
+     *        <code>true</code> if the entry is being removed to make space, <code>false</code> if
+     *        the removal was caused by a {@link #put(Object, Object)} or {@link #remove(Object)}.
+     * @param key
+     *        The key.
+     * @param oldValue
+     *        The value being removed.
+     * @param newValue
+     *        The new value for <code>key</code>, if it exists.
+     * @since 1.0.0
+     * @see LruCache#entryRemoved(boolean, Object, Object, Object)
+     */
+    protected void entryRemoved(final boolean evicted, final K key, final V oldValue,
+            final V newValue) {
+    }
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key. The default
+     * implementation returns <code>null</code>.
+     * 
+     * The method is called without synchronization: other threads may access the cache while this
+     * method is executing.
+     * 
+     * @param key
+     *        The key.
+     * @return The computed value or <code>null</code> if no value can be computed.
+     * @since 1.0.0
+     * @see LruCache#create(Object)
+     */
+    protected V create(final K key) {
+        return null;
+    }
+
+    /**
+     * Returns the size of the entry for <code>key</code> and <code>value</code> in user-defined
+     * units. The default implementation returns 1.
+     * 
+     * An entry's size must not change while it is in the cache.
+     * 
+     * @param key
+     *        The key.
+     * @param value
+     *        The value.
+     * @return The size of the entry.
+     * @since 1.0.0
+     * @see LruCache#sizeOf(Object, Object)
+     */
+    protected int sizeOf(final K key, final V value) {
+        return 1;
+    }
+
+    private Entry<V> newEntry(final K key, final V value) {
+        final int result = sizeOf(key, value);
+
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+
+        return new Entry<V>(value, result);
+    }
+
+    private Segment<K, V> segmentFor(final K key) {
+        // Spread bits so that hash codes differing only in the upper bits pick different segments.
+        int hash = key.hashCode();
+
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return this.segments[hash & this.segmentMask];
+    }
+
+    private void trimToSize(final int targetSize) {
+        while (true) {
+            final int currentSize = this.size.get();
+
+            if (currentSize < 0) {
+                throw new IllegalStateException(getClass().getName()
+                        + ".sizeOf() is reporting inconsistent results!");
+            }
+
+            if (currentSize <= targetSize) {
+                break;
+            }
+
+            final Segment<K, V> victimSegment = findVictimSegment();
+
+            if (victimSegment == null) {
+                break;
+            }
+
+            final K key;
+            final Entry<V> value;
+
+            synchronized (victimSegment) {
+                final Map.Entry<K, Entry<V>> toEvict = victimSegment.eldest();
+
+                if (toEvict == null) {
+                    // Raced with another evicting thread, look again.
+                    continue;
+                }
+
+                key = toEvict.getKey();
+                value = toEvict.getValue();
+                victimSegment.remove(key);
+                this.size.addAndGet(-value.size);
+            }
+
+            this.evictionCount.incrementAndGet();
+
+            entryRemoved(true, key, value.value, null);
+        }
+    }
+
+    /**
+     * Samples up to {@link #EVICTION_SAMPLE_SIZE} non-empty segments, starting from a position
+     * which rotates at each eviction. Empty segments are skipped, so all the segments are only
+     * visited when few of them hold entries.
+     * 
+     * @return The sampled segment whose least recently used entry has gone unused for the most
+     *         accesses, or <code>null</code> if all segments are empty.
+     */
+    private Segment<K, V> findVictimSegment() {
+        final int start = this.evictionCursor.getAndIncrement();
+        Segment<K, V> victimSegment = null;
+        long victimAge = -1;
+        int sampled = 0;
+
+        for (int i = 0; (i < this.segments.length) && (sampled < EVICTION_SAMPLE_SIZE); i++) {
+            final Segment<K, V> segment = this.segments[(start + i) & this.segmentMask];
+
+            synchronized (segment) {
+                final Map.Entry<K, Entry<V>> eldest = segment.eldest();
+
+                if (eldest != null) {
+                    final long age = segment.age(eldest.getValue());
+
+                    sampled++;
+
+                    if (age > victimAge) {
+                        victimSegment = segment;
+                        victimAge = age;
+                    }
+                }
+            }
+        }
+
+        return victimSegment;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache;
+
+/**
+ * Decides which entries an {@link LruCache} keeps when it runs out of space.
+ * 
+ * The cache always proposes its least recently used entry as the eviction victim. The policy can
+ * then decide to reject the newly inserted entry instead, which keeps frequently used entries
+ * around when a burst of one-off entries (e.g.: a scroll through a long list) goes through the
+ * cache.
+ * 
+ * Implementations are always invoked while holding the cache lock, so they do not need to be
+ * thread-safe.
+ * 
+ * @param <K>
+ *        Key type.
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public interface EvictionPolicy<K> {
+    /**
+     * Records an access (hit, miss or insertion) to <code>key</code>.
+     * 
+     * @param key
+     *        The accessed key.
+     * @since 1.0.0
+     */
+    void recordAccess(final K key);
+
+    /**
+     * Called when the cache is over capacity right after <code>candidate</code> has been inserted.
+     * 
+     * @param candidate
+     *        The key which has just been inserted.
+     * @param victim
+     *        The least recently used key, which is going to be evicted.
+     * @return <code>true</code> to keep <code>candidate</code> and evict <code>victim</code>,
+     *         <code>false</code> to evict <code>candidate</code> instead.
+     * @since 1.0.0
+     */
+    boolean admit(final K candidate, final K victim);
+}
@@ -17,17 +17,62 @@
 package co.bitcode.android.net.cache;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 
 /**
  * Write-through cache with time-based expiration.
  * 
+ * Expired entries are normally deleted. Subclasses can keep them around for revalidation by
+ * overriding {@link #isRevalidatable(Object)}: such entries are no longer returned by
+ * {@link #get(Object)}, but can still be obtained through {@link #getStale(Object)} until they are
+ * refreshed with {@link #touch(Object)} or replaced.
+ * 
+ * In stale-while-revalidate mode, enabled with {@link #setHardExpiryTime(long)}, the expiration
+ * time becomes a soft limit: entries older than that but younger than the hard expiration time are
+ * still returned by {@link #get(Object)}, and a single background refresh per key is scheduled
+ * through {@link #refresh(Object)}. Entries older than the hard expiration time are handled as
+ * expired.
+ * 
+ * Write times and expiration times of the entries held in memory are kept in memory too, so that
+ * freshness checks on memory hits neither touch the file system nor call
+ * {@link #getExpiryTime(Object)}. They are measured with a monotonic clock which keeps
+ * counting during deep sleep. Entries written in the future, according to the system time, are
+ * handled as stale.
+ * 
+ * Lookups do not hold the lock of the cache while checking freshness or loading from disk, so
+ * concurrent misses on the same key share a single load (see {@link #setCoalescingLoads(boolean)}).
+ * 
  * @since 1.0.0
  * @author Lorenzo Villani
  */
 public abstract class ExpirationFileCache<K, V> extends FileCache<K, V> {
+    private static final ExecutorService REFRESH_EXECUTOR = Executors
+            .newFixedThreadPool(2, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ExpirationFileCache");
+
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+
+                    return thread;
+                }
+            });
+
     private final long expiryTime;
+    private final Set<K> refreshing = new HashSet<K>();
+    private final ConcurrentMap<K, WriteTime> writeTimes = new ConcurrentHashMap<K, WriteTime>();
+    private final AtomicInteger staleServeCount = new AtomicInteger();
+    private volatile long hardExpiryTime;
 
     /**
      * Constructor.
@@ -46,7 +91,29 @@ public abstract class ExpirationFileCache<K, V> extends FileCache<K, V> {
      */
     public ExpirationFileCache(final Context context, final int maxSize, final long expiryTime,
             final String cacheZone) {
-        super(context, maxSize, cacheZone);
+        this(context, maxSize, DEFAULT_MAX_DISK_SIZE, expiryTime, cacheZone);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param context
+     *        Application context.
+     * @param maxSize
+     *        for caches that do not override {@link #sizeOf(Object, Object)}, this is the maximum
+     *        number of entries held in memory. For all other caches, this is the maximum sum of the
+     *        sizes of the entries held in memory.
+     * @param maxDiskSize
+     *        Maximum number of bytes stored on disk.
+     * @param expiryTime
+     *        Cache expiration time in milliseconds.
+     * @param cacheZone
+     *        Cache zone name, without spaces and/or path separators.
+     * @since 1.0.0
+     */
+    public ExpirationFileCache(final Context context, final int maxSize, final long maxDiskSize,
+            final long expiryTime, final String cacheZone) {
+        super(context, maxSize, maxDiskSize, cacheZone);
 
         this.expiryTime = expiryTime;
     }
@@ -55,12 +122,59 @@ public abstract class ExpirationFileCache<K, V> extends FileCache<K, V> {
         return this.expiryTime;
     }
 
+    /**
+     * Enables or disables the stale-while-revalidate mode.
+     * 
+     * @param hardExpiryTime
+     *        Age, in milliseconds, past which entries are no longer served at all. It should be
+     *        greater than the expiration time. Use <code>0</code> to disable the mode (default).
+     * @since 1.0.0
+     */
+    public void setHardExpiryTime(final long hardExpiryTime) {
+        this.hardExpiryTime = hardExpiryTime;
+    }
+
+    /**
+     * @return The hard expiration time in milliseconds, or <code>0</code> if the
+     *         stale-while-revalidate mode is disabled.
+     * @since 1.0.0
+     */
+    public long getHardExpiryTime() {
+        return this.hardExpiryTime;
+    }
+
+    /**
+     * @return The number of times an entry past its expiration time has been served because it was
+     *         still within its hard expiration time.
+     * @since 1.0.0
+     */
+    public int staleServeCount() {
+        return this.staleServeCount.get();
+    }
+
+    /**
+     * @return The number of background refreshes currently scheduled or running.
+     * @since 1.0.0
+     */
+    public int refreshInFlightCount() {
+        synchronized (this.refreshing) {
+            return this.refreshing.size();
+        }
+    }
+
     @Override
-    public synchronized V get(final K key) {
+    public V get(final K key) {
         final V value = super.get(key);
 
-        if ((value != null) && isFreshEnough(getCacheFile(key))) {
+        if ((value != null) && isFreshEnough(key)) {
+            return value;
+        } else if ((value != null) && isStaleServable(key)) {
+            this.staleServeCount.incrementAndGet();
+            scheduleRefresh(key);
+
             return value;
+        } else if ((value != null) && isRevalidatable(key)) {
+            return null;
         } else {
             remove(key);
 
@@ -68,22 +182,251 @@ public abstract class ExpirationFileCache<K, V> extends FileCache<K, V> {
         }
     }
 
+    /**
+     * Returns the value for <code>key</code> whether it is fresh or not, as long as it is still
+     * cached. Expired entries which are not revalidatable are deleted when first looked up, so they
+     * are usually gone.
+     * 
+     * @param key
+     *        The key.
+     * @return The cached value or <code>null</code>.
+     * @since 1.0.0
+     */
+    public V getStale(final K key) {
+        return super.get(key);
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+        final V ret = super.put(key, value);
+
+        this.writeTimes.put(key, new WriteTime(CacheClock.now(), getExpiryTime(key)));
+
+        return ret;
+    }
+
+    /**
+     * The new file is considered written now, whatever the age of the file it replaces.
+     */
+    @Override
+    public boolean putFile(final K key, final File source) {
+        final boolean committed = super.putFile(key, source);
+
+        if (committed) {
+            // The value is not held in memory, the write time is read back from the file.
+            getCacheFile(key).setLastModified(System.currentTimeMillis());
+            this.writeTimes.remove(key);
+        }
+
+        return committed;
+    }
+
+    /**
+     * Marks the entry for <code>key</code> as fresh again, for example after the origin confirmed
+     * that it did not change.
+     * 
+     * @param key
+     *        The key.
+     * @since 1.0.0
+     */
+    public void touch(final K key) {
+        if (has(key)) {
+            getCacheFile(key).setLastModified(System.currentTimeMillis());
+            this.writeTimes.replace(key, new WriteTime(CacheClock.now(), getExpiryTime(key)));
+        }
+    }
+
+    /**
+     * @param key
+     *        The key.
+     * @return The expiration time, in milliseconds, of the entry for <code>key</code>. The default
+     *         implementation returns {@link #getExpiryTime()} for all entries. The result is kept
+     *         along with the write time of the entry: call {@link #expiryTimeChanged(Object)} when
+     *         it changes.
+     * @since 1.0.0
+     */
+    protected long getExpiryTime(final K key) {
+        return this.expiryTime;
+    }
+
+    /**
+     * Computes again the expiration time kept for the entry for <code>key</code>, if any.
+     * 
+     * @param key
+     *        The key.
+     * @since 1.0.0
+     */
+    protected void expiryTimeChanged(final K key) {
+        final WriteTime writeTime = this.writeTimes.get(key);
+
+        if (writeTime != null) {
+            this.writeTimes.replace(key, writeTime, new WriteTime(writeTime.time,
+                    getExpiryTime(key)));
+        }
+    }
+
+    /**
+     * @param key
+     *        The key.
+     * @return <code>true</code> if the entry for <code>key</code> should be kept once it expires
+     *         because it can be revalidated. The default implementation returns <code>false</code>.
+     * @since 1.0.0
+     */
+    protected boolean isRevalidatable(final K key) {
+        return false;
+    }
+
+    /**
+     * Produces a new value for an entry served stale in stale-while-revalidate mode. Called on a
+     * background thread, without holding the cache lock; the result, if any, replaces the entry.
+     * Implementations may also update the entry themselves, for example with
+     * {@link #putFile(Object, File)} or {@link #touch(Object)}, and return <code>null</code>. The
+     * default implementation returns <code>null</code>, leaving the entry untouched.
+     * 
+     * @param key
+     *        The key.
+     * @return The new value or <code>null</code>.
+     * @throws Exception
+     *         If the value cannot be refreshed. The stale entry is left untouched.
+     * @since 1.0.0
+     */
+    protected V refresh(final K key) throws Exception {
+        return null;
+    }
+
     @Override
-    protected synchronized V create(final K key) {
-        final File cacheFile = getCacheFile(key);
+    protected V create(final K key) {
+        if (!has(key)) {
+            return null;
+        }
 
-        if (cacheFile.exists() && isFreshEnough(cacheFile)) {
-            return load(cacheFile);
+        if (isFreshEnough(key) || isStaleServable(key) || isRevalidatable(key)) {
+            return super.create(key);
         } else {
-            cacheFile.delete();
+            deleteCacheFile(key);
 
             return null;
         }
     }
 
-    private boolean isFreshEnough(final File cacheFile) {
-        final long delta = Math.abs(System.currentTimeMillis() - cacheFile.lastModified());
+    /**
+     * Cache files are expired once they are older than both the expiration time and the hard
+     * expiration time.
+     */
+    @Override
+    protected boolean isCacheFileExpired(final File cacheFile) {
+        return isCacheFileOlderThan(cacheFile, Math.max(this.expiryTime, this.hardExpiryTime));
+    }
+
+    /**
+     * @param cacheFile
+     *        A cache file.
+     * @param age
+     *        An age, in milliseconds.
+     * @return <code>true</code> if <code>cacheFile</code> was written more than <code>age</code>
+     *         milliseconds ago, or in the future.
+     * @since 1.0.0
+     */
+    protected boolean isCacheFileOlderThan(final File cacheFile, final long age) {
+        final long fileAge = System.currentTimeMillis() - cacheFile.lastModified();
+
+        return (fileAge < 0) || (fileAge >= age);
+    }
 
-        return delta < this.expiryTime;
+    /**
+     * Forgets the write time along with the file, so that a file written again for the same key is
+     * not mistaken for the deleted one.
+     */
+    @Override
+    protected void deleteCacheFile(final K key) {
+        super.deleteCacheFile(key);
+
+        this.writeTimes.remove(key);
+    }
+
+    /**
+     * Forgets the write time of entries leaving memory. It is read again from the cache file when
+     * the entry is loaded back.
+     */
+    @Override
+    protected void entryRemoved(final boolean evicted, final K key, final V oldValue,
+            final V newValue) {
+        super.entryRemoved(evicted, key, oldValue, newValue);
+
+        if (newValue == null) {
+            this.writeTimes.remove(key);
+        }
+    }
+
+    private void scheduleRefresh(final K key) {
+        synchronized (this.refreshing) {
+            if (!this.refreshing.add(key)) {
+                return;
+            }
+        }
+
+        REFRESH_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final V value = refresh(key);
+
+                    if (value != null) {
+                        put(key, value);
+                    }
+                } catch (final Exception e) {
+                    // The stale entry keeps being served until the hard expiration time.
+                } finally {
+                    synchronized (ExpirationFileCache.this.refreshing) {
+                        ExpirationFileCache.this.refreshing.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    private boolean isFreshEnough(final K key) {
+        final WriteTime writeTime = getWriteTime(key);
+        final long age = CacheClock.now() - writeTime.time;
+
+        return (age >= 0) && (age < writeTime.expiryTime);
+    }
+
+    private boolean isStaleServable(final K key) {
+        final long age = CacheClock.now() - getWriteTime(key).time;
+
+        return (this.hardExpiryTime > 0) && (age >= 0) && (age < this.hardExpiryTime);
+    }
+
+    /**
+     * @return The write time of the entry for <code>key</code>, read from the cache file unless it
+     *         is known. Entries written in the future get a negative age.
+     */
+    private WriteTime getWriteTime(final K key) {
+        WriteTime writeTime = this.writeTimes.get(key);
+
+        if (writeTime == null) {
+            final long time = isWritePending(key) ? CacheClock.now() : CacheClock
+                    .fromWallTime(getCacheFile(key).lastModified());
+            final WriteTime created = new WriteTime(time, getExpiryTime(key));
+            final WriteTime previous = this.writeTimes.putIfAbsent(key, created);
+
+            writeTime = (previous != null) ? previous : created;
+        }
+
+        return writeTime;
+    }
+
+    /**
+     * Write time, on the clock of {@link CacheClock#now()}, and expiration time of an entry.
+     */
+    private static final class WriteTime {
+        private final long time;
+        private final long expiryTime;
+
+        WriteTime(final long time, final long expiryTime) {
+            this.time = time;
+            this.expiryTime = expiryTime;
+        }
     }
 }
@@ -17,10 +17,25 @@
 package co.bitcode.android.net.cache;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 import android.content.Context;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 /**
  * Builds a two-level (in-memory and on-storage), write through cache upon {@link LruCache}.
@@ -28,6 +43,32 @@ import org.apache.commons.io.FileUtils;
  * It provides hooks so that subclasses can manage the mechanisms trough which data is stored on
  * disk.
  * 
+ * The two levels have independent budgets: the memory level is bounded by the maximum size of the
+ * underlying {@link LruCache} (in bytes for subclasses which size entries by byte count), while the
+ * disk level is bounded by a maximum number of bytes stored in the cache zone. Entries evicted from
+ * memory are demoted to disk rather than deleted, and disk hits are promoted back to memory.
+ * 
+ * By default values are written to disk by the thread calling {@link #put(Object, Object)}. Call
+ * {@link #setWriteBehind(int)} to hand writes over to a background thread instead, and
+ * {@link #close()} to stop that thread.
+ * 
+ * Files stored on disk are tracked by a journal kept in the cache zone directory, so that lookups
+ * do not need to probe the filesystem and the zone size is known right after a restart.
+ * 
+ * Cache files are named after the MD5 digest of the key and spread over two levels of
+ * sub-directories (e.g.: <code>ab/cd/abcd...</code>). Files written by older versions were named
+ * after the 32-bit hash code of the key, so they may hold the value of a colliding key: they are
+ * deleted when the cache is created.
+ * 
+ * Values are stored into a temporary file which is renamed to the cache file once complete, so a
+ * crash never exposes a truncated entry. See {@link #setDurability(Durability)} and
+ * {@link #setChecksumEnabled(boolean)} to protect entries against power losses as well.
+ * 
+ * Disk I/O never runs under the lock of the memory level, so memory hits do not wait for loads or
+ * writes. Files are guarded by a set of locks picked by file name instead, which are held while
+ * a file is loaded, renamed into place or deleted. They are never held while calling into the
+ * memory level.
+ * 
  * @param <K>
  *        Key type.
  * @param <V>
@@ -36,10 +77,59 @@ import org.apache.commons.io.FileUtils;
  * @author Lorenzo Villani
  */
 public abstract class FileCache<K, V> extends LruCache<K, V> {
+    /**
+     * Disk budget used by constructors which do not specify one, in bytes.
+     */
+    public static final long DEFAULT_MAX_DISK_SIZE = 10 * 1024 * 1024;
+
+    private static final int CACHE_FILE_NAMES_SIZE = 512;
+    private static final int FILE_LOCK_COUNT = 32;
+    /** Names of files written by older versions are 32-bit hash codes in hexadecimal. */
+    private static final int LEGACY_NAME_MAX_LENGTH = 8;
+    private static final int CHECKSUM_BUFFER_SIZE = 8192;
+    private static final long TMP_FILE_MAX_AGE = 60 * 60 * 1000;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
     private final File cacheDir;
+    private final CacheJournal journal;
+    private final long maxDiskSize;
+    /** Names of the files of recently used keys, whose digests are expensive to compute. */
+    private final LruCache<K, String> cacheFileNames = new LruCache<K, String>(
+            CACHE_FILE_NAMES_SIZE);
+
+    /** Locks guarding cache files, see {@link #getFileLock(String)}. */
+    private final Object[] fileLocks = new Object[FILE_LOCK_COUNT];
+
+    private final AtomicInteger diskHitCount = new AtomicInteger();
+    private final AtomicInteger diskMissCount = new AtomicInteger();
+    private final AtomicInteger promoteCount = new AtomicInteger();
+    private final AtomicInteger demoteCount = new AtomicInteger();
+    private final AtomicInteger diskEvictionCount = new AtomicInteger();
+    private final AtomicInteger corruptionCount = new AtomicInteger();
+    private volatile Durability durability = Durability.NONE;
+    private volatile boolean checksumEnabled;
+
+    /** Values waiting to be written to disk, in submission order. Guards the write-behind state. */
+    private final LinkedHashMap<K, V> pendingWrites = new LinkedHashMap<K, V>();
+    private int writeBehindCapacity;
+    /** The write-behind thread, or <code>null</code> once stopped. */
+    private Thread writer;
+    private K writingKey;
+    private V writingValue;
+    private boolean writingCancelled;
 
     /**
-     * Constructor.
+     * Constructor. The disk level is bounded by {@link #DEFAULT_MAX_DISK_SIZE}.
      * 
      * @param context
      *        Application context.
@@ -52,10 +142,47 @@ public abstract class FileCache<K, V> extends LruCache<K, V> {
      * @since 1.0.0
      */
     public FileCache(final Context context, final int maxSize, final String cacheZone) {
+        this(context, maxSize, DEFAULT_MAX_DISK_SIZE, cacheZone);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param context
+     *        Application context.
+     * @param maxSize
+     *        for caches that do not override {@link #sizeOf(Object, Object)}, this is the maximum
+     *        number of entries held in memory. For all other caches, this is the maximum sum of the
+     *        sizes of the entries held in memory.
+     * @param maxDiskSize
+     *        Maximum number of bytes stored on disk.
+     * @param cacheZone
+     *        Cache zone name, without spaces and/or path separators.
+     * @since 1.0.0
+     */
+    public FileCache(final Context context, final int maxSize, final long maxDiskSize,
+            final String cacheZone) {
         super(maxSize);
 
+        if (maxDiskSize <= 0) {
+            throw new IllegalArgumentException("maxDiskSize <= 0");
+        }
+
+        this.maxDiskSize = maxDiskSize;
+
+        for (int i = 0; i < FILE_LOCK_COUNT; i++) {
+            this.fileLocks[i] = new Object();
+        }
+
+        // Concurrent misses on the same key would otherwise read and decode the same file.
+        setCoalescingLoads(true);
+
         this.cacheDir = FileUtils.getFile(context.getCacheDir(), cacheZone);
         this.cacheDir.mkdirs();
+        this.journal = new CacheJournal(this.cacheDir);
+
+        deleteLegacyFiles();
+        trimDiskToSize();
     }
 
     /**
@@ -65,7 +192,186 @@ public abstract class FileCache<K, V> extends LruCache<K, V> {
      * @since 1.0.0
      */
     public boolean has(final K key) {
-        return getCacheFile(key).exists();
+        return isWritePending(key) || this.journal.contains(getCacheFile(key).getName());
+    }
+
+    /**
+     * @return The sum of the sizes of all files stored on disk by this cache, in bytes.
+     * @since 1.0.0
+     */
+    public long diskSize() {
+        return this.journal.totalSize();
+    }
+
+    /**
+     * @return The maximum number of bytes stored on disk.
+     * @since 1.0.0
+     */
+    public long maxDiskSize() {
+        return this.maxDiskSize;
+    }
+
+    /**
+     * @return The number of memory misses which were served from disk.
+     * @since 1.0.0
+     */
+    public int diskHitCount() {
+        return this.diskHitCount.get();
+    }
+
+    /**
+     * @return The number of memory misses which could not be served from disk either.
+     * @since 1.0.0
+     */
+    public int diskMissCount() {
+        return this.diskMissCount.get();
+    }
+
+    /**
+     * @return The number of entries loaded from disk and moved back to memory.
+     * @since 1.0.0
+     */
+    public int promoteCount() {
+        return this.promoteCount.get();
+    }
+
+    /**
+     * @return The number of entries evicted from memory and kept on disk.
+     * @since 1.0.0
+     */
+    public int demoteCount() {
+        return this.demoteCount.get();
+    }
+
+    /**
+     * @return The number of files deleted to keep the disk level within its budget.
+     * @since 1.0.0
+     */
+    public int diskEvictionCount() {
+        return this.diskEvictionCount.get();
+    }
+
+    /**
+     * @return The number of cache files dropped because their checksum did not match.
+     * @since 1.0.0
+     */
+    public int corruptionCount() {
+        return this.corruptionCount.get();
+    }
+
+    /**
+     * Sets how hard new cache files are pushed to the storage device before being renamed into
+     * place. Files are always written to a temporary file first, so a crash never leaves a partial
+     * file behind a cache name; {@link Durability#SYNC} additionally guarantees that a renamed file
+     * survives a power loss with its content.
+     * 
+     * @param durability
+     *        The durability level. Defaults to {@link Durability#NONE}.
+     * @since 1.0.0
+     */
+    public void setDurability(final Durability durability) {
+        this.durability = durability;
+    }
+
+    public Durability getDurability() {
+        return this.durability;
+    }
+
+    /**
+     * Enables or disables checksums. When enabled, the CRC-32 of new cache files is recorded in the
+     * journal and verified on load: corrupt files are deleted and reported as misses. Files written
+     * while checksums were disabled are never verified.
+     * 
+     * @param checksumEnabled
+     *        <code>true</code> to enable checksums. Defaults to <code>false</code>.
+     * @since 1.0.0
+     */
+    public void setChecksumEnabled(final boolean checksumEnabled) {
+        this.checksumEnabled = checksumEnabled;
+    }
+
+    public boolean isChecksumEnabled() {
+        return this.checksumEnabled;
+    }
+
+    /**
+     * Enables write-behind: values passed to {@link #put(Object, Object)} are queued and written to
+     * disk by a dedicated background thread, so that callers do not block on I/O.
+     * 
+     * Repeated puts of the same key are merged while waiting in the queue. When the queue holds
+     * <code>queueCapacity</code> distinct keys, further puts block until the writer catches up.
+     * Values still waiting in the queue are served by {@link #get(Object)} and {@link #has(Object)}.
+     * 
+     * @param queueCapacity
+     *        Maximum number of queued writes.
+     * @since 1.0.0
+     * @see #flush()
+     * @see #close()
+     */
+    public void setWriteBehind(final int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity <= 0");
+        }
+
+        synchronized (this.pendingWrites) {
+            if (this.writer == null) {
+                this.writer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeBehindLoop();
+                    }
+                }, "FileCache-" + this.cacheDir.getName());
+
+                this.writer.setDaemon(true);
+                this.writer.setPriority(Thread.MIN_PRIORITY);
+                this.writer.start();
+            }
+
+            this.writeBehindCapacity = queueCapacity;
+            this.pendingWrites.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until all queued writes have reached the disk, then writes out the journal. Returns
+     * immediately after the latter if write-behind is not enabled.
+     * 
+     * @throws InterruptedException
+     *         If the calling thread is interrupted while waiting.
+     * @since 1.0.0
+     */
+    public void flush() throws InterruptedException {
+        synchronized (this.pendingWrites) {
+            while (!this.pendingWrites.isEmpty() || (this.writingKey != null)) {
+                this.pendingWrites.wait();
+            }
+        }
+
+        this.journal.flush();
+    }
+
+    /**
+     * Disables write-behind: blocks until all queued writes have reached the disk, then stops the
+     * background thread. The cache stays usable, subsequent values are written inline. Returns
+     * immediately if write-behind is not enabled.
+     * 
+     * Call this method once the cache is no longer needed, since the background thread keeps it
+     * reachable.
+     * 
+     * @throws InterruptedException
+     *         If the calling thread is interrupted while waiting, in which case write-behind stays
+     *         enabled.
+     * @since 1.0.0
+     */
+    public void close() throws InterruptedException {
+        synchronized (this.pendingWrites) {
+            flush();
+
+            // Puts enqueue under this lock, so none can slip in before the writer stops.
+            this.writeBehindCapacity = 0;
+            this.writer = null;
+            this.pendingWrites.notifyAll();
+        }
     }
 
     /**
@@ -75,20 +381,74 @@ public abstract class FileCache<K, V> extends LruCache<K, V> {
      *        The key.
      * @param value
      *        The value.
-     * @param writeThrough
-     *        Whether to write the cached value on disk.
-     * @return
+     * @return The previous value mapped by <code>key</code>.
      * @since 1.0.0
      */
     @Override
-    public synchronized V put(final K key, final V value) {
+    public V put(final K key, final V value) {
         final V ret = super.put(key, value);
 
-        store(getCacheFile(key), value);
+        writeToDisk(key, value);
 
         return ret;
     }
 
+    /**
+     * Creates an empty temporary file in the cache zone, suitable to be moved into the cache with
+     * {@link #putFile(Object, File)}.
+     * 
+     * @return A new temporary file.
+     * @throws IOException
+     *         If the file cannot be created.
+     * @since 1.0.0
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile("entry", CacheJournal.TMP_SUFFIX, this.cacheDir);
+    }
+
+    /**
+     * Moves a file written elsewhere into the cache as the disk copy of <code>key</code>. The value
+     * held in memory for <code>key</code>, if any, is dropped so that the next lookup loads the new
+     * content.
+     * 
+     * @param key
+     *        The key.
+     * @param source
+     *        The file to move, usually obtained through {@link #createTempFile()}. It must live on
+     *        the same file system as the cache.
+     * @return <code>true</code> on success, <code>false</code> if the file could not be moved, in
+     *         which case <code>source</code> is deleted.
+     * @since 1.0.0
+     */
+    public boolean putFile(final K key, final File source) {
+        remove(key);
+
+        final long checksum;
+
+        try {
+            checksum = prepareCommit(source);
+        } catch (final IOException e) {
+            source.delete();
+            deleteCacheFile(key);
+
+            return false;
+        }
+
+        final File cacheFile = getCacheFile(key);
+        final boolean committed;
+
+        cancelPendingWrite(key);
+
+        synchronized (getFileLock(cacheFile.getName())) {
+            deleteCacheFile(cacheFile);
+            committed = commit(cacheFile, source, checksum);
+        }
+
+        trimDiskToSize();
+
+        return committed;
+    }
+
     /**
      * Callback method invoked upon a cache miss in the first level cache.
      * 
@@ -103,7 +463,8 @@ public abstract class FileCache<K, V> extends LruCache<K, V> {
      * Callback method invoked when a new value is put into the first level cache.
      * 
      * @param cacheFile
-     *        Destination file.
+     *        Destination file. This is a new, empty, temporary file which is renamed to the actual
+     *        cache file once this method returns. If this method throws, the write is discarded.
      * @param value
      *        The value to be written on disk.
      * @since 1.0.0
@@ -111,23 +472,641 @@ public abstract class FileCache<K, V> extends LruCache<K, V> {
     protected abstract void store(final File cacheFile, final V value);
 
     @Override
-    protected synchronized V create(final K key) {
+    protected V create(final K key) {
+        final V pendingValue = getPendingWrite(key);
+
+        if (pendingValue != null) {
+            this.diskHitCount.incrementAndGet();
+            this.promoteCount.incrementAndGet();
+
+            return pendingValue;
+        }
+
         final File cacheFile = getCacheFile(key);
+        final String name = cacheFile.getName();
 
-        if (cacheFile.exists()) {
-            return load(cacheFile);
-        } else {
-            return null;
+        synchronized (getFileLock(name)) {
+            if (!this.journal.contains(name)) {
+                this.diskMissCount.incrementAndGet();
+
+                return null;
+            }
+
+            if (!isChecksumValid(cacheFile)) {
+                deleteCacheFile(cacheFile);
+                this.corruptionCount.incrementAndGet();
+                this.diskMissCount.incrementAndGet();
+
+                return null;
+            }
+
+            try {
+                final V value = load(cacheFile);
+
+                this.journal.recordRead(name);
+
+                if (value != null) {
+                    this.diskHitCount.incrementAndGet();
+                    this.promoteCount.incrementAndGet();
+                } else {
+                    this.diskMissCount.incrementAndGet();
+                }
+
+                return value;
+            } catch (final RuntimeException e) {
+                if (!cacheFile.exists()) {
+                    // Deleted behind our back, forget about it.
+                    this.journal.recordRemove(name);
+                    onCacheFileDeleted(cacheFile);
+                    this.diskMissCount.incrementAndGet();
+
+                    return null;
+                } else {
+                    throw e;
+                }
+            }
         }
     }
 
+    /**
+     * Evictions from memory demote the entry to disk, writing it again if the disk level dropped it
+     * in the meantime. Explicit removals delete the file, while replacements leave it to
+     * {@link #put(Object, Object)}.
+     */
     @Override
-    protected synchronized void entryRemoved(final boolean evicted, final K key, final V oldValue,
+    protected void entryRemoved(final boolean evicted, final K key, final V oldValue,
             final V newValue) {
-        getCacheFile(key).delete();
+        if (evicted) {
+            demote(key, oldValue);
+        } else if (newValue == null) {
+            deleteCacheFile(key);
+        }
+    }
+
+    /**
+     * Deletes the file backing <code>key</code> and removes it from the journal.
+     * 
+     * @param key
+     *        The key.
+     * @since 1.0.0
+     */
+    protected void deleteCacheFile(final K key) {
+        final File cacheFile = getCacheFile(key);
+
+        cancelPendingWrite(key);
+
+        synchronized (getFileLock(cacheFile.getName())) {
+            deleteCacheFile(cacheFile);
+        }
+    }
+
+    /**
+     * Callback method invoked after a cache file has been deleted, either explicitly or to keep the
+     * disk level within its budget. Subclasses which keep auxiliary files next to cache files
+     * should delete them here. The default implementation does nothing.
+     * 
+     * The lock of the file is held while this method runs, so implementations must not call back
+     * into the memory level.
+     * 
+     * @param cacheFile
+     *        The deleted cache file.
+     * @since 1.0.0
+     */
+    protected void onCacheFileDeleted(final File cacheFile) {
+    }
+
+    /**
+     * @param key
+     *        The key.
+     * @return <code>true</code> if the value for <code>key</code> is queued for, or in the middle
+     *         of, a write-behind.
+     * @since 1.0.0
+     */
+    protected boolean isWritePending(final K key) {
+        synchronized (this.pendingWrites) {
+            return this.pendingWrites.containsKey(key) || isWriting(key);
+        }
+    }
+
+    /**
+     * Drops the queued write of <code>key</code>, if any, and cancels it if it is in progress.
+     */
+    private void cancelPendingWrite(final K key) {
+        synchronized (this.pendingWrites) {
+            this.pendingWrites.remove(key);
+
+            if (isWriting(key)) {
+                this.writingCancelled = true;
+            }
+
+            this.pendingWrites.notifyAll();
+        }
+    }
+
+    private boolean isWriting(final K key) {
+        return (this.writingKey != null) && this.writingKey.equals(key);
+    }
+
+    /**
+     * Callback method invoked by {@link CacheJanitor} on files whose entry is not held in memory.
+     * The default implementation returns <code>false</code>.
+     * 
+     * @param cacheFile
+     *        The cache file.
+     * @return <code>true</code> if <code>cacheFile</code> can be deleted because it expired.
+     * @since 1.0.0
+     */
+    protected boolean isCacheFileExpired(final File cacheFile) {
+        return false;
+    }
+
+    /**
+     * @return The directory of this cache zone.
+     */
+    File getCacheDir() {
+        return this.cacheDir;
+    }
+
+    /**
+     * @return The names of the cache files of the entries held in memory.
+     */
+    Set<String> getResidentFileNames() {
+        final Set<String> names = new HashSet<String>();
+
+        for (final K key : snapshot().keySet()) {
+            names.add(getCacheFile(key).getName());
+        }
+
+        return names;
+    }
+
+    /**
+     * Deletes <code>file</code> if it is a stale temporary file, an auxiliary file without a cache
+     * file, a file unknown to the journal or an expired cache file.
+     * 
+     * @param file
+     *        A file found in the cache directory.
+     * @param residentNames
+     *        Names returned by {@link #getResidentFileNames()}, whose files are never considered
+     *        expired since the in-memory copy would bring them back.
+     * @return The number of bytes reclaimed, or <code>-1</code> if the file was kept.
+     */
+    long sweep(final File file, final Set<String> residentNames) {
+        final String name = file.getName();
+        final int dot = name.indexOf('.');
+
+        // Auxiliary files share the lock of their cache file.
+        synchronized (getFileLock((dot != -1) ? name.substring(0, dot) : name)) {
+            return sweep(file, name, dot, residentNames);
+        }
+    }
+
+    private long sweep(final File file, final String name, final int dot,
+            final Set<String> residentNames) {
+        final boolean deletable;
+
+        if (CacheJournal.JOURNAL_FILE.equals(name) || CacheJournal.JOURNAL_FILE_TMP.equals(name)) {
+            deletable = false;
+        } else if (name.endsWith(CacheJournal.TMP_SUFFIX)) {
+            final long age = System.currentTimeMillis() - file.lastModified();
+
+            // Younger temporary files may still be written to, those from the future are stale.
+            deletable = (age < 0) || (age > TMP_FILE_MAX_AGE);
+        } else if (dot != -1) {
+            // Auxiliary file left behind by its cache file.
+            deletable = !this.journal.contains(name.substring(0, dot));
+        } else if (!this.journal.contains(name)) {
+            // Cache files are renamed into place and journaled under the lock held here.
+            deletable = true;
+        } else if (!residentNames.contains(name) && isCacheFileExpired(file)) {
+            final long length = file.length();
+
+            file.delete();
+            this.journal.recordRemove(name);
+            onCacheFileDeleted(file);
+
+            return length;
+        } else {
+            deletable = false;
+        }
+
+        if (deletable) {
+            final long length = file.length();
+
+            file.delete();
+
+            return length;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the disk level fits in <code>limit</code>.
+     * 
+     * @param limit
+     *        The disk budget, in bytes.
+     * @return The number of bytes reclaimed.
+     */
+    long trimDiskToSize(final long limit) {
+        long reclaimed = 0;
+
+        while (this.journal.totalSize() > limit) {
+            final String name = this.journal.eldest();
+
+            if (name == null) {
+                break;
+            }
+
+            synchronized (getFileLock(name)) {
+                // Another thread may have deleted it while we were waiting for the lock.
+                if (this.journal.contains(name)) {
+                    final File cacheFile = getCacheFile(name);
+
+                    reclaimed += cacheFile.length();
+                    deleteCacheFile(cacheFile);
+                    this.diskEvictionCount.incrementAndGet();
+                }
+            }
+        }
+
+        return reclaimed;
+    }
+
+    private V getPendingWrite(final K key) {
+        synchronized (this.pendingWrites) {
+            final V value = this.pendingWrites.get(key);
+
+            if ((value == null) && isWriting(key) && !this.writingCancelled) {
+                return this.writingValue;
+            } else {
+                return value;
+            }
+        }
+    }
+
+    private void demote(final K key, final V value) {
+        if (!isWritePending(key) && !this.journal.contains(getCacheFile(key).getName())) {
+            writeToDisk(key, value);
+        }
+
+        this.demoteCount.incrementAndGet();
+    }
+
+    /**
+     * @param name
+     *        A cache file name.
+     * @return The lock guarding the cache file called <code>name</code> and its auxiliary files.
+     */
+    private Object getFileLock(final String name) {
+        return this.fileLocks[(name.hashCode() & Integer.MAX_VALUE) % FILE_LOCK_COUNT];
+    }
+
+    /**
+     * Deletes <code>cacheFile</code> and removes it from the journal. The caller must hold the lock
+     * of the file.
+     */
+    private void deleteCacheFile(final File cacheFile) {
+        cacheFile.delete();
+        this.journal.recordRemove(cacheFile.getName());
+        onCacheFileDeleted(cacheFile);
+    }
+
+    /**
+     * Writes <code>value</code> inline or queues it, depending on whether write-behind is enabled.
+     */
+    private void writeToDisk(final K key, final V value) {
+        synchronized (this.pendingWrites) {
+            if (this.writeBehindCapacity > 0) {
+                enqueueWrite(key, value);
+
+                return;
+            }
+        }
+
+        final File tempFile = storeToTempFile(value);
+        final long checksum;
+
+        try {
+            checksum = prepareCommit(tempFile);
+        } catch (final IOException e) {
+            tempFile.delete();
+
+            throw new RuntimeException(e);
+        }
+
+        final File cacheFile = getCacheFile(key);
+
+        synchronized (getFileLock(cacheFile.getName())) {
+            commit(cacheFile, tempFile, checksum);
+        }
+
+        trimDiskToSize();
+    }
+
+    /**
+     * Queues a write-behind. The caller must hold the lock of the queue.
+     */
+    private void enqueueWrite(final K key, final V value) {
+        boolean interrupted = false;
+
+        // Back-pressure: wait for room in the queue unless this write can be merged.
+        while ((this.pendingWrites.size() >= this.writeBehindCapacity)
+                && !this.pendingWrites.containsKey(key)) {
+            try {
+                this.pendingWrites.wait();
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        this.pendingWrites.put(key, value);
+        this.pendingWrites.notifyAll();
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBehindLoop() {
+        while (true) {
+            final K key;
+            final V value;
+
+            synchronized (this.pendingWrites) {
+                while (this.pendingWrites.isEmpty() && (this.writer == Thread.currentThread())) {
+                    try {
+                        this.pendingWrites.wait();
+                    } catch (final InterruptedException e) {
+                        // Only close() stops the writer.
+                        continue;
+                    }
+                }
+
+                // Stopped by close(), maybe replaced by a new writer since.
+                if (this.writer != Thread.currentThread()) {
+                    return;
+                }
+
+                final Iterator<Map.Entry<K, V>> iterator = this.pendingWrites.entrySet()
+                        .iterator();
+                final Map.Entry<K, V> entry = iterator.next();
+
+                key = entry.getKey();
+                value = entry.getValue();
+                iterator.remove();
+
+                this.writingKey = key;
+                this.writingValue = value;
+                this.writingCancelled = false;
+
+                this.pendingWrites.notifyAll();
+            }
+
+            File tempFile = null;
+            long checksum = CacheJournal.NO_CHECKSUM;
+
+            try {
+                tempFile = storeToTempFile(value);
+                checksum = prepareCommit(tempFile);
+            } catch (final IOException e) {
+                tempFile.delete();
+                tempFile = null;
+                /* CHECKSTYLE IGNORE ALL CHECKS NEXT LINE */
+            } catch (final RuntimeException e) {
+                tempFile = null;
+            }
+
+            if (tempFile != null) {
+                // Failures leave the previous file (if any) untouched.
+                commitWriteBehind(key, tempFile, checksum);
+            }
+
+            synchronized (this.pendingWrites) {
+                this.writingKey = null;
+                this.writingValue = null;
+                this.pendingWrites.notifyAll();
+            }
+        }
     }
 
+    /**
+     * Commits the file written by the write-behind thread, unless the write was cancelled in the
+     * meantime.
+     */
+    private void commitWriteBehind(final K key, final File tempFile, final long checksum) {
+        final File cacheFile = getCacheFile(key);
+        final boolean cancelled;
+
+        // Deletions cancel the write before taking the lock of the file, so checking under that
+        // lock is enough to never resurrect a deleted entry.
+        synchronized (getFileLock(cacheFile.getName())) {
+            synchronized (this.pendingWrites) {
+                cancelled = this.writingCancelled;
+            }
+
+            if (cancelled) {
+                tempFile.delete();
+            } else {
+                commit(cacheFile, tempFile, checksum);
+            }
+        }
+
+        if (!cancelled) {
+            trimDiskToSize();
+        }
+    }
+
+    /**
+     * Stores <code>value</code> into a new temporary file. The file is deleted if
+     * {@link #store(File, Object)} throws.
+     */
+    private File storeToTempFile(final V value) {
+        final File tempFile;
+
+        try {
+            tempFile = createTempFile();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        try {
+            store(tempFile, value);
+            /* CHECKSTYLE IGNORE ALL CHECKS NEXT LINE */
+        } catch (final RuntimeException e) {
+            tempFile.delete();
+
+            throw e;
+        }
+
+        return tempFile;
+    }
+
+    /**
+     * Flushes <code>file</code> to the storage device according to the durability level.
+     * 
+     * @return The checksum of <code>file</code>, or {@link CacheJournal#NO_CHECKSUM} if checksums
+     *         are disabled.
+     */
+    private long prepareCommit(final File file) throws IOException {
+        if (this.durability == Durability.SYNC) {
+            final FileOutputStream outputStream = new FileOutputStream(file, true);
+
+            try {
+                outputStream.getFD().sync();
+            } finally {
+                IOUtils.closeQuietly(outputStream);
+            }
+        }
+
+        return this.checksumEnabled ? computeChecksum(file) : CacheJournal.NO_CHECKSUM;
+    }
+
+    /**
+     * Renames a prepared temporary file to <code>cacheFile</code>. If the rename fails, the
+     * previous cache file is deleted too since it no longer matches the value held in memory. The
+     * caller must hold the lock of the file, and trim the disk level once it has been released.
+     */
+    private boolean commit(final File cacheFile, final File tempFile, final long checksum) {
+        cacheFile.getParentFile().mkdirs();
+
+        if (!tempFile.renameTo(cacheFile)) {
+            tempFile.delete();
+            deleteCacheFile(cacheFile);
+
+            return false;
+        }
+
+        this.journal.recordPut(cacheFile.getName(), cacheFile.length(), checksum);
+
+        return true;
+    }
+
+    private boolean isChecksumValid(final File cacheFile) {
+        final long expected = this.journal.checksum(cacheFile.getName());
+
+        if (expected == CacheJournal.NO_CHECKSUM) {
+            return true;
+        }
+
+        try {
+            return computeChecksum(cacheFile) == expected;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    private static long computeChecksum(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+        final InputStream inputStream = new FileInputStream(file);
+
+        try {
+            int read;
+
+            while ((read = inputStream.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Deletes the least recently used files until the disk level fits in its budget.
+     */
+    private void trimDiskToSize() {
+        trimDiskToSize(this.maxDiskSize);
+    }
+
+    /**
+     * Returns the file backing <code>key</code>.
+     * 
+     * @param key
+     *        The key.
+     * @return The cache file, which might not exist.
+     * @since 1.0.0
+     */
     protected File getCacheFile(final K key) {
-        return FileUtils.getFile(this.cacheDir, Integer.toHexString(key.toString().hashCode()));
+        String name = this.cacheFileNames.get(key);
+
+        if (name == null) {
+            name = getCacheFileName(key);
+            this.cacheFileNames.put(key, name);
+        }
+
+        return getCacheFile(name);
+    }
+
+    private File getCacheFile(final String name) {
+        return FileUtils.getFile(this.cacheDir, name.substring(0, 2), name.substring(2, 4), name);
+    }
+
+    /**
+     * Deletes the files written by older versions, which are stored at the top level of the cache
+     * directory and named after the 32-bit hash code of their key. Such a file cannot be told
+     * apart from the one of a colliding key, so it is safer to fetch its value again.
+     */
+    private void deleteLegacyFiles() {
+        final File[] files = this.cacheDir.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (final File file : files) {
+            final String name = file.getName();
+            final int dot = name.indexOf('.');
+            // Auxiliary files are named after their cache file.
+            final String cacheFileName = (dot != -1) ? name.substring(0, dot) : name;
+
+            if (file.isFile() && (cacheFileName.length() <= LEGACY_NAME_MAX_LENGTH)
+                    && !CacheJournal.JOURNAL_FILE.equals(cacheFileName)
+                    && !name.endsWith(CacheJournal.TMP_SUFFIX)) {
+                file.delete();
+                this.journal.recordRemove(cacheFileName);
+            }
+        }
+    }
+
+    private static String getCacheFileName(final Object key) {
+        final MessageDigest digest = DIGEST.get();
+        final byte[] hash;
+
+        try {
+            hash = digest.digest(key.toString().getBytes("UTF-8"));
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+
+        final char[] name = new char[hash.length * 2];
+
+        for (int i = 0; i < hash.length; i++) {
+            name[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            name[(2 * i) + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+
+        return new String(name);
+    }
+
+    /**
+     * How hard new cache files are pushed to the storage device.
+     * 
+     * @since 1.0.0
+     * @see FileCache#setDurability(Durability)
+     */
+    public enum Durability {
+        /**
+         * Files are renamed into place as soon as they are written. A power loss may leave an empty
+         * or corrupt file, which checksums can detect.
+         */
+        NONE,
+
+        /**
+         * Files are synced to the storage device before being renamed into place.
+         */
+        SYNC
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 Ben Manes. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.bitcode.android.net.cache;
+
+/**
+ * A count-min sketch of 4-bit counters used to estimate how often a key has been seen.
+ * 
+ * Each <code>long</code> in the table holds sixteen counters. Every key maps to four counters,
+ * each one in a different row, and its estimated frequency is the minimum among them. Once the
+ * number of recorded accesses reaches ten times the expected number of entries all counters are
+ * halved, so that the sketch forgets about keys which were popular a long time ago.
+ * 
+ * Not thread-safe.
+ * 
+ * Adapted from <code>com.github.benmanes.caffeine.cache.FrequencySketch</code>, part of the
+ * Caffeine caching library (https://github.com/ben-manes/caffeine), released under the Apache
+ * License, Version 2.0. Unlike the original, the table is sized once at construction rather than
+ * through <code>ensureCapacity</code>.
+ * 
+ * @since 1.0.0
+ * @author Ben Manes
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+    private static final int SAMPLE_FACTOR = 10;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Constructor.
+     * 
+     * @param expectedEntries
+     *        Expected number of distinct keys the cache will hold.
+     */
+    FrequencySketch(final int expectedEntries) {
+        final int maximum = Math.max(expectedEntries, 1);
+        int tableSize = 1;
+
+        while ((tableSize < maximum) && (tableSize < (1 << 30))) {
+            tableSize <<= 1;
+        }
+
+        this.table = new long[tableSize];
+        this.tableMask = tableSize - 1;
+        this.sampleSize = (maximum > (Integer.MAX_VALUE / SAMPLE_FACTOR)) ? Integer.MAX_VALUE
+                : (SAMPLE_FACTOR * maximum);
+    }
+
+    /**
+     * @param key
+     *        The key.
+     * @return The estimated number of times <code>key</code> was seen, between 0 and 15.
+     */
+    int frequency(final Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) ((this.table[index] >>> ((start + i) << 2)) & 0xfL);
+
+            frequency = Math.min(frequency, count);
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Records one occurrence of <code>key</code>.
+     * 
+     * @param key
+     *        The key.
+     */
+    void increment(final Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && (++this.additions >= this.sampleSize)) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(final int index, final int counter) {
+        final int offset = counter << 2;
+        final long mask = 0xfL << offset;
+
+        if ((this.table[index] & mask) != mask) {
+            this.table[index] += 1L << offset;
+
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < this.table.length; i++) {
+            this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+        }
+
+        this.additions /= 2;
+    }
+
+    private int indexOf(final int hash, final int row) {
+        long value = (hash + SEEDS[row]) * SEEDS[row];
+
+        value += value >>> 32;
+
+        return ((int) value) & this.tableMask;
+    }
+
+    private static int spread(final int hashCode) {
+        int hash = hashCode;
+
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+
+        return (hash >>> 16) ^ hash;
+    }
+}
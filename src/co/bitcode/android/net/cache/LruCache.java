@@ -16,8 +16,12 @@
 
 package co.bitcode.android.net.cache;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Static library version of {@link android.util.LruCache}. Used to write apps
@@ -28,6 +32,11 @@ import java.util.Map;
  */
 public class LruCache<K, V> {
     private final LinkedHashMap<K, V> map;
+    private final EvictionPolicy<? super K> evictionPolicy;
+
+    /** In-flight calls to {@link #create}, used when loads are coalesced. */
+    private final Map<K, FutureTask<V>> loads = new HashMap<K, FutureTask<V>>();
+    private boolean coalescingLoads;
 
     /** Size of this cache in units. Not necessarily the number of elements. */
     private int size;
@@ -38,6 +47,7 @@ public class LruCache<K, V> {
     private int evictionCount;
     private int hitCount;
     private int missCount;
+    private int coalescedCount;
 
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
@@ -45,11 +55,26 @@ public class LruCache<K, V> {
      *     this is the maximum sum of the sizes of the entries in this cache.
      */
     public LruCache(int maxSize) {
+        this(maxSize, new LruEvictionPolicy<K>());
+    }
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     * @param evictionPolicy decides whether a newly inserted entry may
+     *     replace the least recently used one when the cache is full.
+     */
+    public LruCache(int maxSize, EvictionPolicy<? super K> evictionPolicy) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
+        if (evictionPolicy == null) {
+            throw new NullPointerException("evictionPolicy == null");
+        }
         this.maxSize = maxSize;
         this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
+        this.evictionPolicy = evictionPolicy;
     }
 
     /**
@@ -65,6 +90,7 @@ public class LruCache<K, V> {
 
         V mapValue;
         synchronized (this) {
+            evictionPolicy.recordAccess(key);
             mapValue = map.get(key);
             if (mapValue != null) {
                 hitCount++;
@@ -73,6 +99,98 @@ public class LruCache<K, V> {
             missCount++;
         }
 
+        if (isCoalescingLoads()) {
+            return load(key);
+        }
+
+        return createAndCache(key);
+    }
+
+    /**
+     * Makes concurrent misses on the same key wait for a single call to
+     * {@link #create} instead of computing one value per thread. All waiting
+     * callers receive the same value.
+     *
+     * @param coalescingLoads true to coalesce concurrent loads of one key.
+     */
+    public synchronized final void setCoalescingLoads(boolean coalescingLoads) {
+        this.coalescingLoads = coalescingLoads;
+    }
+
+    /**
+     * Returns true if concurrent misses on the same key share a single call
+     * to {@link #create}.
+     */
+    public synchronized final boolean isCoalescingLoads() {
+        return coalescingLoads;
+    }
+
+    private V load(final K key) {
+        FutureTask<V> task;
+        boolean owner = false;
+        synchronized (this) {
+            /*
+             * Another thread may have created and cached the value since the
+             * miss was recorded, then removed its load.
+             */
+            V mapValue = map.get(key);
+            if (mapValue != null) {
+                coalescedCount++;
+                return mapValue;
+            }
+
+            task = loads.get(key);
+            if (task == null) {
+                task = new FutureTask<V>(new Callable<V>() {
+                    @Override
+                    public V call() {
+                        return createAndCache(key);
+                    }
+                });
+                loads.put(key, task);
+                owner = true;
+            } else {
+                coalescedCount++;
+            }
+        }
+
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    loads.remove(key);
+                }
+            }
+        }
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private V createAndCache(K key) {
+        V mapValue;
+
         /*
          * Attempt to create a value. This may take a long time, and the map
          * may be different when create() returns. If a conflicting value was
@@ -101,7 +219,7 @@ public class LruCache<K, V> {
             entryRemoved(false, key, createdValue, mapValue);
             return mapValue;
         } else {
-            trimToSize(maxSize);
+            trimToSize(maxSize, key);
             return createdValue;
         }
     }
@@ -120,6 +238,7 @@ public class LruCache<K, V> {
         V previous;
         synchronized (this) {
             putCount++;
+            evictionPolicy.recordAccess(key);
             size += safeSizeOf(key, value);
             previous = map.put(key, value);
             if (previous != null) {
@@ -131,15 +250,18 @@ public class LruCache<K, V> {
             entryRemoved(false, key, previous, value);
         }
 
-        trimToSize(maxSize);
+        trimToSize(maxSize, key);
         return previous;
     }
 
     /**
      * @param maxSize the maximum size of the cache before returning. May be -1
      *     to evict even 0-sized elements.
+     * @param candidate the key which has just been inserted, or null. While
+     *     it is in the cache, the eviction policy may decide to evict it in
+     *     place of the least recently used entry.
      */
-    private void trimToSize(int maxSize) {
+    private void trimToSize(int maxSize, K candidate) {
         while (true) {
             K key;
             V value;
@@ -156,6 +278,15 @@ public class LruCache<K, V> {
                 Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
                 key = toEvict.getKey();
                 value = toEvict.getValue();
+
+                if (candidate != null && !candidate.equals(key)
+                        && map.containsKey(candidate)
+                        && !evictionPolicy.admit(candidate, key)) {
+                    key = candidate;
+                    value = map.get(candidate);
+                }
+                candidate = null;
+
                 map.remove(key);
                 size -= safeSizeOf(key, value);
                 evictionCount++;
@@ -249,7 +380,19 @@ public class LruCache<K, V> {
      * Clear the cache, calling {@link #entryRemoved} on each removed entry.
      */
     public final void evictAll() {
-        trimToSize(-1); // -1 will evict 0-sized elements
+        trimToSize(-1, null); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * Remove the eldest entries until the total of remaining entries is at or
+     * below {@code maxSize}, calling {@link #entryRemoved} on each removed
+     * entry. The maximum size of the cache is left unchanged.
+     *
+     * @param maxSize the size to shrink to. May be -1 to evict even 0-sized
+     *     elements.
+     */
+    public void trimToSize(int maxSize) {
+        trimToSize(maxSize, null);
     }
 
     /**
@@ -285,6 +428,15 @@ public class LruCache<K, V> {
         return missCount;
     }
 
+    /**
+     * Returns the number of times {@link #get} waited for a value being
+     * created by another thread, or found one created since its miss, instead
+     * of calling {@link #create} itself.
+     */
+    public synchronized final int coalescedCount() {
+        return coalescedCount;
+    }
+
     /**
      * Returns the number of times {@link #create(Object)} returned a value.
      */
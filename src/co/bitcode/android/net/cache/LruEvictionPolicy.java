@@ -0,0 +1,37 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache;
+
+/**
+ * Plain access-order LRU: every new entry is admitted and the least recently used one is evicted.
+ * This is the default policy of {@link LruCache}.
+ * 
+ * @param <K>
+ *        Key type.
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class LruEvictionPolicy<K> implements EvictionPolicy<K> {
+    @Override
+    public void recordAccess(final K key) {
+    }
+
+    @Override
+    public boolean admit(final K candidate, final K victim) {
+        return true;
+    }
+}
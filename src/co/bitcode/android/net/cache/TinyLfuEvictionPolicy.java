@@ -0,0 +1,54 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache;
+
+/**
+ * TinyLFU admission policy.
+ * 
+ * Access frequencies are estimated by a {@link FrequencySketch}. A new entry is admitted only if
+ * it has been requested more often than the least recently used entry it would replace, so that a
+ * long sequence of entries which are seen only once cannot flush out the working set.
+ * 
+ * @param <K>
+ *        Key type.
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class TinyLfuEvictionPolicy<K> implements EvictionPolicy<K> {
+    private final FrequencySketch sketch;
+
+    /**
+     * Constructor.
+     * 
+     * @param expectedEntries
+     *        Expected number of entries held by the cache. Used to size the frequency sketch.
+     * @since 1.0.0
+     */
+    public TinyLfuEvictionPolicy(final int expectedEntries) {
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public void recordAccess(final K key) {
+        this.sketch.increment(key);
+    }
+
+    @Override
+    public boolean admit(final K candidate, final K victim) {
+        return this.sketch.frequency(candidate) > this.sketch.frequency(victim);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache.restlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.CacheDirective;
+import org.restlet.data.Tag;
+import org.restlet.representation.Representation;
+
+/**
+ * HTTP validators and freshness information of a cached response.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+final class CacheMetadata {
+    static final long UNKNOWN = -1;
+
+    private static final String DIRECTIVE_MAX_AGE = "max-age";
+    private static final String DIRECTIVE_NO_CACHE = "no-cache";
+    private static final String DIRECTIVE_NO_STORE = "no-store";
+    private static final String PROPERTY_TAG = "tag";
+    private static final String PROPERTY_LAST_MODIFIED = "lastModified";
+    private static final String PROPERTY_MAX_AGE = "maxAge";
+
+    private final String tag;
+    private final long lastModified;
+    private final long maxAge;
+
+    /**
+     * Constructor.
+     * 
+     * @param tag
+     *        The formatted entity tag, or <code>null</code>.
+     * @param lastModified
+     *        The modification date in milliseconds, or {@link #UNKNOWN}.
+     * @param maxAge
+     *        The freshness lifetime in milliseconds, or {@link #UNKNOWN}.
+     */
+    CacheMetadata(final String tag, final long lastModified, final long maxAge) {
+        this.tag = tag;
+        this.lastModified = lastModified;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param response
+     *        A response.
+     * @return <code>true</code> if the response carries a <code>no-store</code> directive.
+     */
+    static boolean isNoStore(final Response response) {
+        return findDirective(response.getCacheDirectives(), DIRECTIVE_NO_STORE) != null;
+    }
+
+    /**
+     * @param request
+     *        A request.
+     * @return <code>true</code> if the request carries a <code>no-cache</code> or
+     *         <code>no-store</code> directive, meaning it must not be answered from the cache.
+     */
+    static boolean isCacheBypassed(final Request request) {
+        final List<CacheDirective> directives = request.getCacheDirectives();
+
+        return (findDirective(directives, DIRECTIVE_NO_CACHE) != null)
+                || (findDirective(directives, DIRECTIVE_NO_STORE) != null);
+    }
+
+    /**
+     * Extracts validators and freshness information from <code>response</code>.
+     * 
+     * @param response
+     *        The response.
+     * @param previous
+     *        Metadata known so far, used for values missing from <code>response</code> (e.g.: a
+     *        <code>304 Not Modified</code> response). May be <code>null</code>.
+     * @return The metadata.
+     */
+    static CacheMetadata fromResponse(final Response response, final CacheMetadata previous) {
+        final Representation entity = response.getEntity();
+        String tag = (previous != null) ? previous.tag : null;
+        long lastModified = (previous != null) ? previous.lastModified : UNKNOWN;
+        long maxAge = (previous != null) ? previous.maxAge : UNKNOWN;
+
+        if (entity != null) {
+            final Tag entityTag = entity.getTag();
+            final Date modificationDate = entity.getModificationDate();
+
+            if (entityTag != null) {
+                tag = entityTag.format();
+            }
+
+            if (modificationDate != null) {
+                lastModified = modificationDate.getTime();
+            }
+        }
+
+        final List<CacheDirective> directives = response.getCacheDirectives();
+
+        if (findDirective(directives, DIRECTIVE_NO_CACHE) != null) {
+            maxAge = 0;
+        } else {
+            final CacheDirective maxAgeDirective = findDirective(directives, DIRECTIVE_MAX_AGE);
+
+            if ((maxAgeDirective != null) && (maxAgeDirective.getValue() != null)) {
+                try {
+                    maxAge = Long.parseLong(maxAgeDirective.getValue().trim()) * 1000;
+                } catch (final NumberFormatException e) {
+                    maxAge = 0;
+                }
+            }
+        }
+
+        return new CacheMetadata(tag, lastModified, maxAge);
+    }
+
+    /**
+     * @param file
+     *        The metadata file.
+     * @return The metadata read from <code>file</code>, or <code>null</code> if it cannot be read.
+     */
+    static CacheMetadata read(final File file) {
+        final Properties properties = new Properties();
+        InputStream inputStream = null;
+
+        try {
+            inputStream = new FileInputStream(file);
+            properties.load(inputStream);
+
+            return new CacheMetadata(properties.getProperty(PROPERTY_TAG), Long.parseLong(properties
+                    .getProperty(PROPERTY_LAST_MODIFIED, String.valueOf(UNKNOWN))),
+                    Long.parseLong(properties.getProperty(PROPERTY_MAX_AGE, String.valueOf(UNKNOWN))));
+        } catch (final IOException e) {
+            return null;
+        } catch (final NumberFormatException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Writes this metadata to <code>file</code>. Failures are ignored: the entry will simply not be
+     * revalidated.
+     * 
+     * @param file
+     *        The metadata file.
+     */
+    void write(final File file) {
+        final Properties properties = new Properties();
+        OutputStream outputStream = null;
+
+        if (this.tag != null) {
+            properties.setProperty(PROPERTY_TAG, this.tag);
+        }
+
+        properties.setProperty(PROPERTY_LAST_MODIFIED, String.valueOf(this.lastModified));
+        properties.setProperty(PROPERTY_MAX_AGE, String.valueOf(this.maxAge));
+
+        try {
+            outputStream = new FileOutputStream(file);
+            properties.store(outputStream, null);
+        } catch (final IOException e) {
+            file.delete();
+        } finally {
+            IOUtils.closeQuietly(outputStream);
+        }
+    }
+
+    String getTag() {
+        return this.tag;
+    }
+
+    long getLastModified() {
+        return this.lastModified;
+    }
+
+    long getMaxAge() {
+        return this.maxAge;
+    }
+
+    /**
+     * @return <code>true</code> if a conditional request can be built from this metadata.
+     */
+    boolean hasValidators() {
+        return (this.tag != null) || (this.lastModified != UNKNOWN);
+    }
+
+    private static CacheDirective findDirective(final List<CacheDirective> directives,
+            final String name) {
+        if (directives != null) {
+            for (final CacheDirective directive : directives) {
+                if (name.equalsIgnoreCase(directive.getName())) {
+                    return directive;
+                }
+            }
+        }
+
+        return null;
+    }
+}
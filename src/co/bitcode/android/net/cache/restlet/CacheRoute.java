@@ -0,0 +1,128 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache.restlet;
+
+import java.util.regex.Pattern;
+
+import org.restlet.Request;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.representation.Representation;
+
+/**
+ * A routing rule of {@link RestletCacheFilter}: sends requests matching a method, a URL pattern
+ * and a media type to a cache zone. Criteria set to <code>null</code> match anything.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class CacheRoute {
+    private final String zone;
+    private final Method method;
+    private final Pattern urlPattern;
+    private final MediaType mediaType;
+
+    /**
+     * Constructor.
+     * 
+     * @param zone
+     *        The name of the destination zone.
+     * @param method
+     *        The request method, or <code>null</code>.
+     * @param urlPattern
+     *        A regular expression matched against the whole resource URL, or <code>null</code>.
+     * @param mediaType
+     *        The media type of the entity, which may contain wildcards (e.g.:
+     *        {@link MediaType#IMAGE_ALL}), or <code>null</code>.
+     * @since 1.0.0
+     */
+    public CacheRoute(final String zone, final Method method, final String urlPattern,
+            final MediaType mediaType) {
+        this.zone = zone;
+        this.method = method;
+        this.urlPattern = (urlPattern != null) ? Pattern.compile(urlPattern) : null;
+        this.mediaType = mediaType;
+    }
+
+    /**
+     * @param zone
+     *        The name of the destination zone.
+     * @param mediaType
+     *        The media type of the entity.
+     * @return A route matching entities of the given media type.
+     * @since 1.0.0
+     */
+    public static CacheRoute forMediaType(final String zone, final MediaType mediaType) {
+        return new CacheRoute(zone, null, null, mediaType);
+    }
+
+    /**
+     * @param zone
+     *        The name of the destination zone.
+     * @param urlPattern
+     *        A regular expression matched against the whole resource URL.
+     * @return A route matching resources whose URL matches <code>urlPattern</code>.
+     * @since 1.0.0
+     */
+    public static CacheRoute forUrl(final String zone, final String urlPattern) {
+        return new CacheRoute(zone, null, urlPattern, null);
+    }
+
+    /**
+     * @return The name of the destination zone.
+     * @since 1.0.0
+     */
+    public String getZone() {
+        return this.zone;
+    }
+
+    /**
+     * @return <code>true</code> if this route does not depend on the media type of the response,
+     *         thus can be resolved before the request is handled.
+     * @since 1.0.0
+     */
+    public boolean isRequestOnly() {
+        return this.mediaType == null;
+    }
+
+    /**
+     * @param request
+     *        The request.
+     * @return <code>true</code> if the method and the URL of <code>request</code> match.
+     * @since 1.0.0
+     */
+    public boolean matches(final Request request) {
+        return ((this.method == null) || this.method.equals(request.getMethod()))
+                && ((this.urlPattern == null) || this.urlPattern.matcher(
+                        request.getResourceRef().toString()).matches());
+    }
+
+    /**
+     * @param request
+     *        The request.
+     * @param entity
+     *        The response entity.
+     * @return <code>true</code> if both <code>request</code> and the media type of
+     *         <code>entity</code> match.
+     * @since 1.0.0
+     */
+    public boolean matches(final Request request, final Representation entity) {
+        return matches(request)
+                && ((this.mediaType == null) || ((entity.getMediaType() != null) && this.mediaType
+                        .includes(entity.getMediaType())));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache.restlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.io.IOUtils;
+import org.restlet.data.MediaType;
+import org.restlet.representation.ChannelRepresentation;
+
+/**
+ * A {@link ChannelRepresentation} which serves the content of a file through a read-only
+ * {@link MappedByteBuffer}.
+ * 
+ * The file content is never copied to the Java heap as a whole: streams and channels read straight
+ * from the mapping, which is shared by all readers. Unlike stream-based representations, this
+ * representation is not transient and can be read any number of times.
+ * 
+ * The file must not be truncated or rewritten in place while the representation is in use. Replace
+ * it by deleting or renaming instead.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class MappedFileRepresentation extends ChannelRepresentation {
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Constructor. Maps the whole file in memory.
+     * 
+     * @param file
+     *        The file to map.
+     * @param mediaType
+     *        The representation's media type.
+     * @throws IOException
+     *         If the file cannot be mapped.
+     * @since 1.0.0
+     */
+    public MappedFileRepresentation(final File file, final MediaType mediaType) throws IOException {
+        super(mediaType);
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+
+            // The mapping stays valid after the channel is closed.
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            IOUtils.closeQuietly(randomAccessFile);
+        }
+
+        setSize(this.buffer.capacity());
+        setTransient(false);
+    }
+
+    @Override
+    public ReadableByteChannel getChannel() throws IOException {
+        final ByteBuffer source = this.buffer.duplicate();
+
+        return new ReadableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int read(final ByteBuffer destination) throws IOException {
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+
+                final int count = Math.min(source.remaining(), destination.remaining());
+                final ByteBuffer slice = source.slice();
+
+                slice.limit(count);
+                destination.put(slice);
+                source.position(source.position() + count);
+
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return this.open;
+            }
+
+            @Override
+            public void close() {
+                this.open = false;
+            }
+        };
+    }
+
+    @Override
+    public InputStream getStream() throws IOException {
+        final ByteBuffer source = this.buffer.duplicate();
+
+        return new InputStream() {
+            @Override
+            public int read() {
+                if (source.hasRemaining()) {
+                    return source.get() & 0xff;
+                } else {
+                    return -1;
+                }
+            }
+
+            @Override
+            public int read(final byte[] bytes, final int offset, final int length) {
+                if (length == 0) {
+                    return 0;
+                }
+
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+
+                final int count = Math.min(source.remaining(), length);
+
+                source.get(bytes, offset, count);
+
+                return count;
+            }
+
+            @Override
+            public long skip(final long count) {
+                final int skipped = (int) Math.max(0, Math.min(source.remaining(), count));
+
+                source.position(source.position() + skipped);
+
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return source.remaining();
+            }
+        };
+    }
+
+    @Override
+    public void write(final OutputStream outputStream) throws IOException {
+        final ByteBuffer source = this.buffer.duplicate();
+        final byte[] chunk = new byte[Math.min(COPY_BUFFER_SIZE, Math.max(1, source.remaining()))];
+
+        while (source.hasRemaining()) {
+            final int count = Math.min(chunk.length, source.remaining());
+
+            source.get(chunk, 0, count);
+            outputStream.write(chunk, 0, count);
+        }
+    }
+
+    @Override
+    public void write(final WritableByteChannel writableChannel) throws IOException {
+        final ByteBuffer source = this.buffer.duplicate();
+
+        while (source.hasRemaining()) {
+            writableChannel.write(source);
+        }
+    }
+}
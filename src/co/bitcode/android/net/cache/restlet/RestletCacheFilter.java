@@ -16,73 +16,280 @@
 
 package co.bitcode.android.net.cache.restlet;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 
+import co.bitcode.android.net.cache.LruCache;
+
+import org.apache.commons.io.IOUtils;
 import org.restlet.Request;
 import org.restlet.Response;
+import org.restlet.Restlet;
 import org.restlet.data.MediaType;
-import org.restlet.engine.io.BufferingRepresentation;
+import org.restlet.data.Method;
+import org.restlet.data.Reference;
+import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.representation.Representation;
 import org.restlet.resource.ClientResource;
 import org.restlet.routing.Filter;
 
 /**
- * A filter which serves responses from the cache. It tries to cache both images and JSON responses.
+ * A filter which serves responses from the cache.
+ * 
+ * The cache is made of named zones, each one a {@link RestletFileCache} with its own memory, disk
+ * and expiration budgets. {@link CacheRoute}s decide which zone a resource belongs to, by method,
+ * URL or media type: the first matching route wins. Lookups touch a single zone, remembered from
+ * the last time the resource was stored or resolved through routes which do not depend on the
+ * media type. Resources found in no zone are remembered as well, so that repeated misses do not
+ * probe every zone. The default configuration caches images in the {@link #ZONE_IMAGE} zone and
+ * JSON/XML entities in the {@link #ZONE_ENTITY} zone, recognizing them by URL extension before the
+ * request is sent and by media type otherwise.
+ * 
+ * Only <code>GET</code> and <code>HEAD</code> requests go through the cache, and only
+ * <code>200 OK</code> responses are cached. Requests with other methods are always sent to the
+ * next Restlet, even if their URL has been cached.
+ * 
+ * Responses are not buffered: they are copied to the cache while the client reads them, through a
+ * {@link TeeRepresentation}, and committed only once they have been read completely. There is no
+ * need to enable entity buffering with {@link ClientResource#setEntityBuffering(boolean)}.
  * 
- * <strong>Make sure to enable entity buffering by calling
- * {@link ClientResource#setEntityBuffering(boolean)}.</strong>
+ * Cache directives are honored: requests carrying <code>no-cache</code> or <code>no-store</code>
+ * skip the cache, responses carrying <code>no-store</code> are not cached, and <code>max-age</code>
+ * overrides the expiration time of the zone. Expired entries which carry an <code>ETag</code> or a
+ * modification date are revalidated with a conditional request; on <code>304 Not Modified</code>
+ * the cached copy is served and marked as fresh again.
+ * 
+ * Zones created by the filter refresh entries served stale in stale-while-revalidate mode (see
+ * {@link RestletFileCache#setHardExpiryTime(long)}) in the background, sending conditional requests
+ * to the next Restlet.
  * 
  * @since 1.0.0
  * @author Lorenzo Villani
  */
 public class RestletCacheFilter extends Filter {
-    private static final String ZONE_ENTITY = "entity";
-    private static final String ZONE_IMAGE = "image";
-    private static final int ENTITY_CACHE_SIZE = 100;
-    private static final int IMAGE_CACHE_SIZE = 50;
+    public static final String ZONE_ENTITY = "entity";
+    public static final String ZONE_IMAGE = "image";
+    public static final int DEFAULT_ENTITY_CACHE_SIZE = 256 * 1024;
+    public static final int DEFAULT_IMAGE_CACHE_SIZE = 2 * 1024 * 1024;
+    public static final long DEFAULT_ENTITY_DISK_CACHE_SIZE = 2 * 1024 * 1024;
+    public static final long DEFAULT_IMAGE_DISK_CACHE_SIZE = 16 * 1024 * 1024;
+
+    private static final int KNOWN_ZONES_SIZE = 1024;
+    private static final int DRAIN_BUFFER_SIZE = 8192;
+    /** Remembered for resources found in no zone. Not a valid directory name, thus zone name. */
+    private static final String NO_ZONE = "";
+    private static final String IMAGE_URL_PATTERN =
+            "(?i)[^?#]*\\.(?:png|jpe?g|gif|bmp|webp)(?:[?#].*)?";
+    private static final String ENTITY_URL_PATTERN = "(?i)[^?#]*\\.(?:json|xml)(?:[?#].*)?";
+    private static final String ATTRIBUTE_STALE_ENTITY = RestletCacheFilter.class.getName()
+            + ".staleEntity";
+    private static final String ATTRIBUTE_STALE_CACHE = RestletCacheFilter.class.getName()
+            + ".staleCache";
 
-    private final List<RestletFileCache> cachePool = new ArrayList<RestletFileCache>(2);
-    private final RestletFileCache entityCache;
-    private final RestletFileCache imageCache;
+    private final Context context;
+    private final Map<String, RestletFileCache> zones =
+            new ConcurrentHashMap<String, RestletFileCache>();
+    private final List<CacheRoute> routes = new CopyOnWriteArrayList<CacheRoute>();
+    private final LruCache<Reference, String> knownZones = new LruCache<Reference, String>(
+            KNOWN_ZONES_SIZE);
+    private final AtomicInteger revalidationCount = new AtomicInteger();
+    private final AtomicInteger notModifiedCount = new AtomicInteger();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Constructor. The filter has no zones and no routes, add them with
+     * {@link #addZone(String, int, long, long)} and {@link #addRoute(CacheRoute)}.
+     * 
+     * @param context
+     *        The application context.
+     * @since 1.0.0
+     */
+    public RestletCacheFilter(final Context context) {
+        this.context = context;
+    }
 
     /**
-     * Constructor.
+     * Constructor. Uses the default zone sizes.
      * 
      * @param context
      *        The application context.
+     * @param imageCacheExpiryTime
+     *        Expiration time of images, in milliseconds.
+     * @param entityCacheExpiryTime
+     *        Expiration time of JSON/XML entities, in milliseconds.
      * @since 1.0.0
      */
     public RestletCacheFilter(final Context context, final long imageCacheExpiryTime,
             final long entityCacheExpiryTime) {
-        this.imageCache = new RestletFileCache(context, IMAGE_CACHE_SIZE, imageCacheExpiryTime,
-                ZONE_IMAGE);
-        this.entityCache = new RestletFileCache(context, ENTITY_CACHE_SIZE, entityCacheExpiryTime,
-                ZONE_ENTITY);
+        this(context, DEFAULT_IMAGE_CACHE_SIZE, DEFAULT_IMAGE_DISK_CACHE_SIZE,
+                imageCacheExpiryTime, DEFAULT_ENTITY_CACHE_SIZE, DEFAULT_ENTITY_DISK_CACHE_SIZE,
+                entityCacheExpiryTime);
+    }
 
-        this.cachePool.add(this.imageCache);
-        this.cachePool.add(this.entityCache);
+    /**
+     * Constructor. Caches images (<code>image/*</code>) and JSON/XML entities retrieved with
+     * <code>GET</code> in two zones. Resources whose URL ends with a well-known extension (e.g.:
+     * <code>.png</code>, <code>.json</code>) are routed without waiting for the response.
+     * 
+     * @param context
+     *        The application context.
+     * @param imageCacheSize
+     *        Memory budget of images, in bytes.
+     * @param imageDiskCacheSize
+     *        Disk budget of images, in bytes.
+     * @param imageCacheExpiryTime
+     *        Expiration time of images, in milliseconds.
+     * @param entityCacheSize
+     *        Memory budget of JSON/XML entities, in bytes.
+     * @param entityDiskCacheSize
+     *        Disk budget of JSON/XML entities, in bytes.
+     * @param entityCacheExpiryTime
+     *        Expiration time of JSON/XML entities, in milliseconds.
+     * @since 1.0.0
+     */
+    public RestletCacheFilter(final Context context, final int imageCacheSize,
+            final long imageDiskCacheSize, final long imageCacheExpiryTime,
+            final int entityCacheSize, final long entityDiskCacheSize,
+            final long entityCacheExpiryTime) {
+        this(context);
+
+        addZone(ZONE_IMAGE, imageCacheSize, imageDiskCacheSize, imageCacheExpiryTime);
+        addZone(ZONE_ENTITY, entityCacheSize, entityDiskCacheSize, entityCacheExpiryTime);
+
+        addRoute(new CacheRoute(ZONE_IMAGE, Method.GET, IMAGE_URL_PATTERN, null));
+        addRoute(new CacheRoute(ZONE_ENTITY, Method.GET, ENTITY_URL_PATTERN, null));
+        addRoute(new CacheRoute(ZONE_IMAGE, Method.GET, null, MediaType.IMAGE_ALL));
+        addRoute(new CacheRoute(ZONE_ENTITY, Method.GET, null, MediaType.APPLICATION_JSON));
+        addRoute(new CacheRoute(ZONE_ENTITY, Method.GET, null, MediaType.APPLICATION_XML));
+        addRoute(new CacheRoute(ZONE_ENTITY, Method.GET, null, MediaType.TEXT_XML));
+    }
+
+    /**
+     * Creates a cache zone.
+     * 
+     * @param name
+     *        The zone name, also used as the cache directory name.
+     * @param maxSize
+     *        Memory budget, in bytes.
+     * @param maxDiskSize
+     *        Disk budget, in bytes.
+     * @param expiryTime
+     *        Expiration time of entries, in milliseconds.
+     * @return The zone cache.
+     * @since 1.0.0
+     */
+    public RestletFileCache addZone(final String name, final int maxSize, final long maxDiskSize,
+            final long expiryTime) {
+        final RestletFileCache cache = new RestletFileCache(this.context, maxSize, maxDiskSize,
+                expiryTime, name);
+
+        cache.setFilter(this);
+        this.zones.put(name, cache);
+
+        return cache;
+    }
+
+    /**
+     * Appends a routing rule. Rules are evaluated in insertion order.
+     * 
+     * @param route
+     *        The route.
+     * @since 1.0.0
+     */
+    public void addRoute(final CacheRoute route) {
+        if (!this.zones.containsKey(route.getZone())) {
+            throw new IllegalArgumentException("Unknown zone: " + route.getZone());
+        }
+
+        this.routes.add(route);
+    }
+
+    /**
+     * @param name
+     *        The zone name.
+     * @return The zone cache, or <code>null</code>.
+     * @since 1.0.0
+     */
+    public RestletFileCache getCache(final String name) {
+        return this.zones.get(name);
     }
 
     public RestletFileCache getImageCache() {
-        return this.imageCache;
+        return this.zones.get(ZONE_IMAGE);
     }
 
     public RestletFileCache getEntityCache() {
-        return this.entityCache;
+        return this.zones.get(ZONE_ENTITY);
+    }
+
+    /**
+     * @return The number of conditional requests sent to revalidate stale entries.
+     * @since 1.0.0
+     */
+    public int getRevalidationCount() {
+        return this.revalidationCount.get();
+    }
+
+    /**
+     * @return The number of revalidations answered with <code>304 Not Modified</code>.
+     * @since 1.0.0
+     */
+    public int getNotModifiedCount() {
+        return this.notModifiedCount.get();
+    }
+
+    /**
+     * @return The number of bytes served from the cache instead of being downloaded again thanks to
+     *         <code>304 Not Modified</code> responses.
+     * @since 1.0.0
+     */
+    public long getBytesSaved() {
+        return this.bytesSaved.get();
     }
 
     @Override
     protected int beforeHandle(final Request request, final Response response) {
-        for (final RestletFileCache cache : this.cachePool) {
-            final Representation cachedRepresentation = cache.get(request.getResourceRef());
+        if (!isCacheable(request) || CacheMetadata.isCacheBypassed(request)) {
+            return CONTINUE;
+        }
 
-            if (cachedRepresentation != null) {
-                response.setEntity(cachedRepresentation);
+        final RestletFileCache cache = findCache(request);
 
-                return STOP;
+        if (cache == null) {
+            return CONTINUE;
+        }
+
+        final Reference key = request.getResourceRef();
+        final Representation cachedRepresentation = cache.get(key);
+
+        if (cachedRepresentation != null) {
+            response.setEntity(cachedRepresentation);
+
+            return STOP;
+        }
+
+        final CacheMetadata metadata = cache.getMetadata(key);
+
+        if ((metadata != null) && metadata.hasValidators()) {
+            final Representation staleRepresentation = cache.getStale(key);
+
+            if (staleRepresentation != null) {
+                addValidators(request, metadata);
+
+                request.getAttributes().put(ATTRIBUTE_STALE_ENTITY, staleRepresentation);
+                request.getAttributes().put(ATTRIBUTE_STALE_CACHE, cache);
+                this.revalidationCount.incrementAndGet();
             }
         }
 
@@ -91,21 +298,164 @@ public class RestletCacheFilter extends Filter {
 
     @Override
     protected void afterHandle(final Request request, final Response response) {
-        if (response.isEntityAvailable()) {
-            final MediaType mediaType = response.getEntity().getMediaType();
+        if (!isCacheable(request)) {
+            return;
+        }
+
+        final Representation staleRepresentation = (Representation) request.getAttributes().remove(
+                ATTRIBUTE_STALE_ENTITY);
+        final RestletFileCache staleCache = (RestletFileCache) request.getAttributes().remove(
+                ATTRIBUTE_STALE_CACHE);
+
+        if ((staleRepresentation != null)
+                && Status.REDIRECTION_NOT_MODIFIED.equals(response.getStatus())) {
+            final Reference key = request.getResourceRef();
+
+            staleCache.revalidated(key,
+                    CacheMetadata.fromResponse(response, staleCache.getMetadata(key)));
+
+            response.setStatus(Status.SUCCESS_OK);
+            response.setEntity(staleRepresentation);
+
+            this.notModifiedCount.incrementAndGet();
+
+            if (staleRepresentation.getSize() != Representation.UNKNOWN_SIZE) {
+                this.bytesSaved.addAndGet(staleRepresentation.getSize());
+            }
+        } else if (CacheMetadata.isNoStore(response)) {
+            final RestletFileCache cache = findCache(request);
+
+            if (cache != null) {
+                cache.remove(request.getResourceRef());
+            }
+        } else if (Status.SUCCESS_OK.equals(response.getStatus()) && response.isEntityAvailable()) {
+            for (final CacheRoute route : this.routes) {
+                if (route.matches(request, response.getEntity())) {
+                    store(route.getZone(), request, response);
+
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Refreshes an entry of <code>cache</code> with a conditional request sent to the next Restlet.
+     * On <code>304 Not Modified</code> the entry is marked as fresh again, while a new
+     * <code>200 OK</code> response replaces the cache file. Called on a background thread.
+     * 
+     * @param cache
+     *        The cache holding the entry.
+     * @param key
+     *        The key of the entry.
+     * @throws IOException
+     *         If the new content cannot be read.
+     */
+    void refresh(final RestletFileCache cache, final Reference key) throws IOException {
+        final Restlet next = getNext();
+
+        if (next == null) {
+            return;
+        }
+
+        final Request request = new Request(Method.GET, key);
+        final Response response = new Response(request);
+        final CacheMetadata metadata = cache.getMetadata(key);
 
-            if ("image".equals(mediaType.getMainType())) {
-                store(this.imageCache, request, response);
+        if ((metadata != null) && metadata.hasValidators()) {
+            addValidators(request, metadata);
+            this.revalidationCount.incrementAndGet();
+        }
+
+        next.handle(request, response);
+
+        if (Status.REDIRECTION_NOT_MODIFIED.equals(response.getStatus())) {
+            cache.revalidated(key, CacheMetadata.fromResponse(response, metadata));
+            this.notModifiedCount.incrementAndGet();
+        } else if (CacheMetadata.isNoStore(response)) {
+            cache.remove(key);
+        } else if (Status.SUCCESS_OK.equals(response.getStatus()) && response.isEntityAvailable()) {
+            // Nobody consumes the response: read it through so that the tee commits it.
+            final InputStream inputStream = new TeeRepresentation(response.getEntity(), cache, key,
+                    CacheMetadata.fromResponse(response, null)).getStream();
+            final byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+
+            try {
+                while (inputStream.read(buffer) != -1) {
+                    continue;
+                }
+            } finally {
+                IOUtils.closeQuietly(inputStream);
+            }
+        } else if (response.getEntity() != null) {
+            response.getEntity().release();
+        }
+    }
+
+    /**
+     * Resolves the zone of the resource targeted by <code>request</code>, trying in order: the zone
+     * remembered for the resource, routes which do not depend on the media type and, as a last
+     * resort, the indexes of all zones. The outcome of the last step is remembered, misses
+     * included, since probing every zone is the slow path of cold lookups.
+     */
+    private RestletFileCache findCache(final Request request) {
+        final Reference key = request.getResourceRef();
+        final String knownZone = this.knownZones.get(key);
+
+        if (knownZone != null) {
+            return this.zones.get(knownZone);
+        }
+
+        for (final CacheRoute route : this.routes) {
+            if (route.isRequestOnly() && route.matches(request)) {
+                return this.zones.get(route.getZone());
+            }
+        }
+
+        for (final Map.Entry<String, RestletFileCache> zone : this.zones.entrySet()) {
+            if (zone.getValue().has(key)) {
+                this.knownZones.put(key, zone.getKey());
+
+                return zone.getValue();
             }
-            // else if (MediaType.APPLICATION_JSON.equals(mediaType)) {
-            // store(this.entityCache, request, response);
-            // }
         }
+
+        // Replaced as soon as the resource is stored.
+        this.knownZones.put(key, NO_ZONE);
+
+        return null;
+    }
+
+    /**
+     * @return <code>true</code> if the method of <code>request</code> is safe to serve from the
+     *         cache. Checked before any zone lookup, which would otherwise find entries cached for
+     *         other methods.
+     */
+    private static boolean isCacheable(final Request request) {
+        return Method.GET.equals(request.getMethod()) || Method.HEAD.equals(request.getMethod());
     }
 
-    private void store(final RestletFileCache cache, final Request request, final Response response) {
-        response.setEntity(new BufferingRepresentation(response.getEntity()));
+    private static void addValidators(final Request request, final CacheMetadata metadata) {
+        if (metadata.getTag() != null) {
+            request.getConditions().setNoneMatch(
+                    Collections.singletonList(Tag.parse(metadata.getTag())));
+        }
+
+        if (metadata.getLastModified() != CacheMetadata.UNKNOWN) {
+            request.getConditions().setModifiedSince(new Date(metadata.getLastModified()));
+        }
+    }
+
+    private void store(final String zone, final Request request, final Response response) {
+        final Reference key = request.getResourceRef();
+        final String previousZone = this.knownZones.put(key, zone);
+
+        if ((previousZone != null) && !previousZone.equals(zone)
+                && !NO_ZONE.equals(previousZone)) {
+            this.zones.get(previousZone).remove(key);
+        }
 
-        cache.put(request.getResourceRef(), response.getEntity());
+        response.setEntity(new TeeRepresentation(response.getEntity(), this.zones.get(zone), key,
+                CacheMetadata.fromResponse(response, null)));
     }
 }
@@ -20,6 +20,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import android.content.Context;
 
@@ -28,6 +30,7 @@ import co.bitcode.android.net.cache.FileCache;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.restlet.data.MediaType;
 import org.restlet.data.Reference;
 import org.restlet.engine.io.BufferingRepresentation;
 import org.restlet.representation.ByteArrayRepresentation;
@@ -36,19 +39,49 @@ import org.restlet.representation.Representation;
 /**
  * A {@link FileCache} customized for use with the RESTLet library.
  * 
+ * Entries are sized by their byte count, so the memory budget is expressed in bytes.
+ * 
+ * Small entries are read in memory when loaded from disk, while entries larger than the mapping
+ * threshold are served through a {@link MappedFileRepresentation}, which avoids copying the whole
+ * file on the Java heap. Mapped entries still count at their file length against the memory
+ * budget, since each one holds a mapping of that size in the address space of the process.
+ * 
+ * HTTP validators and freshness information of each entry are kept in a small metadata file next
+ * to the cache file. Entries carrying a <code>max-age</code> expire accordingly, and expired
+ * entries carrying validators are kept so that they can be revalidated with a conditional request.
+ * 
+ * In stale-while-revalidate mode, entries served stale are refreshed in the background through
+ * the {@link RestletCacheFilter} which created the cache, see
+ * {@link RestletCacheFilter#addZone(String, int, long, long)}. Caches created otherwise serve stale
+ * entries until their hard expiration time without refreshing them.
+ * 
  * @since 1.0.0
  * @author Lorenzo Villani
  */
 public class RestletFileCache extends ExpirationFileCache<Reference, Representation> {
+    /**
+     * Default size, in bytes, above which cache files are memory-mapped instead of buffered.
+     */
+    public static final long DEFAULT_MAPPING_THRESHOLD = 64 * 1024;
+
+    private static final String METADATA_SUFFIX = ".meta";
+
+    private volatile long mappingThreshold = DEFAULT_MAPPING_THRESHOLD;
+    private volatile RestletCacheFilter filter;
+
+    /**
+     * Metadata by cache file name, for the entries held in memory. Metadata files are read and
+     * written without holding its lock, so that lookups never wait for I/O.
+     */
+    private final Map<String, CacheMetadata> metadata = new HashMap<String, CacheMetadata>();
+
     /**
      * Constructor.
      * 
      * @param context
      *        Application context.
      * @param maxSize
-     *        for caches that do not override {@link #sizeOf(Object, Object)}, this is the maximum
-     *        number of entries in the cache. For all other caches, this is the maximum sum of the
-     *        sizes of the entries in this cache.
+     *        Maximum number of bytes held in memory.
      * @param expiryTime
      *        Cache expiration time.
      * @param cacheZone
@@ -60,9 +93,192 @@ public class RestletFileCache extends ExpirationFileCache<Reference, Representat
         super(context, maxSize, expiryTime, cacheZone);
     }
 
+    /**
+     * Constructor.
+     * 
+     * @param context
+     *        Application context.
+     * @param maxSize
+     *        Maximum number of bytes held in memory.
+     * @param maxDiskSize
+     *        Maximum number of bytes stored on disk.
+     * @param expiryTime
+     *        Cache expiration time.
+     * @param cacheZone
+     *        Cache zone name, without spaces and/or path separators.
+     * @since 1.0.0
+     */
+    public RestletFileCache(final Context context, final int maxSize, final long maxDiskSize,
+            final long expiryTime, final String cacheZone) {
+        super(context, maxSize, maxDiskSize, expiryTime, cacheZone);
+    }
+
+    public long getMappingThreshold() {
+        return this.mappingThreshold;
+    }
+
+    /**
+     * @param mappingThreshold
+     *        Size, in bytes, above which cache files are memory-mapped instead of being read on the
+     *        heap.
+     * @since 1.0.0
+     */
+    public void setMappingThreshold(final long mappingThreshold) {
+        this.mappingThreshold = mappingThreshold;
+    }
+
+    /**
+     * @param filter
+     *        The filter which sends conditional requests to refresh stale entries.
+     */
+    void setFilter(final RestletCacheFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Refreshes the entry through the filter which created the cache, if any. The entry is updated
+     * in place, either marked as fresh or replaced by a new file, so this method always returns
+     * <code>null</code>.
+     */
+    @Override
+    protected Representation refresh(final Reference key) throws Exception {
+        final RestletCacheFilter currentFilter = this.filter;
+
+        if (currentFilter != null) {
+            currentFilter.refresh(this, key);
+        }
+
+        return null;
+    }
+
+    @Override
+    protected long getExpiryTime(final Reference key) {
+        final CacheMetadata entryMetadata = getMetadata(key);
+
+        if ((entryMetadata != null) && (entryMetadata.getMaxAge() != CacheMetadata.UNKNOWN)) {
+            return entryMetadata.getMaxAge();
+        } else {
+            return super.getExpiryTime(key);
+        }
+    }
+
+    @Override
+    protected boolean isRevalidatable(final Reference key) {
+        final CacheMetadata entryMetadata = getMetadata(key);
+
+        return (entryMetadata != null) && entryMetadata.hasValidators();
+    }
+
+    /**
+     * Entries which can be revalidated are kept, those with a <code>max-age</code> expire
+     * accordingly.
+     */
+    @Override
+    protected boolean isCacheFileExpired(final File cacheFile) {
+        // Not cached in memory: the janitor visits every file.
+        final CacheMetadata entryMetadata = getMetadata(cacheFile, false);
+
+        if ((entryMetadata != null) && entryMetadata.hasValidators()) {
+            return false;
+        } else if ((entryMetadata != null)
+                && (entryMetadata.getMaxAge() != CacheMetadata.UNKNOWN)) {
+            return isCacheFileOlderThan(cacheFile,
+                    Math.max(entryMetadata.getMaxAge(), getHardExpiryTime()));
+        } else {
+            return super.isCacheFileExpired(cacheFile);
+        }
+    }
+
+    /**
+     * Forgets the metadata of entries leaving memory. It is read again from the metadata file when
+     * the entry is loaded back.
+     */
+    @Override
+    protected void entryRemoved(final boolean evicted, final Reference key,
+            final Representation oldValue, final Representation newValue) {
+        super.entryRemoved(evicted, key, oldValue, newValue);
+
+        if (newValue == null) {
+            synchronized (this.metadata) {
+                this.metadata.remove(getCacheFile(key).getName());
+            }
+        }
+    }
+
+    @Override
+    protected void onCacheFileDeleted(final File cacheFile) {
+        synchronized (this.metadata) {
+            this.metadata.remove(cacheFile.getName());
+        }
+
+        getMetadataFile(cacheFile).delete();
+    }
+
+    /**
+     * @param key
+     *        The key.
+     * @return The metadata of the entry for <code>key</code>, or <code>null</code>.
+     */
+    CacheMetadata getMetadata(final Reference key) {
+        return getMetadata(getCacheFile(key), true);
+    }
+
+    /**
+     * Replaces the metadata of the entry for <code>key</code>.
+     * 
+     * @param key
+     *        The key.
+     * @param entryMetadata
+     *        The new metadata.
+     */
+    void setMetadata(final Reference key, final CacheMetadata entryMetadata) {
+        final File cacheFile = getCacheFile(key);
+
+        entryMetadata.write(getMetadataFile(cacheFile));
+
+        synchronized (this.metadata) {
+            this.metadata.put(cacheFile.getName(), entryMetadata);
+        }
+
+        expiryTimeChanged(key);
+    }
+
+    /**
+     * Marks the entry for <code>key</code> as fresh after the origin server confirmed it did not
+     * change.
+     * 
+     * @param key
+     *        The key.
+     * @param entryMetadata
+     *        Updated metadata.
+     */
+    void revalidated(final Reference key, final CacheMetadata entryMetadata) {
+        setMetadata(key, entryMetadata);
+        touch(key);
+    }
+
+    /**
+     * Representations of unknown size count as one byte. Memory-mapped ones count at their file
+     * length: they do not live on the heap, but evicting them is what releases their mapping.
+     */
+    @Override
+    protected int sizeOf(final Reference key, final Representation value) {
+        final long size = value.getSize();
+
+        if (size < 0) {
+            return 1;
+        } else {
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+    }
+
     @Override
     protected Representation load(final File cacheFile) {
         try {
+            if (cacheFile.length() > this.mappingThreshold) {
+                return new MappedFileRepresentation(cacheFile, MediaType.APPLICATION_OCTET_STREAM);
+            }
+
             return new BufferingRepresentation(new ByteArrayRepresentation(
                     FileUtils.readFileToByteArray(cacheFile)));
         } catch (final IOException e) {
@@ -83,6 +299,53 @@ public class RestletFileCache extends ExpirationFileCache<Reference, Representat
         }
     }
 
+    /**
+     * @param cacheFile
+     *        A cache file.
+     * @param remember
+     *        <code>true</code> to keep the metadata in memory if it has to be read from disk.
+     *        Missing metadata is not kept, so that misses do not fill the map.
+     * @return The metadata of <code>cacheFile</code>, or <code>null</code>.
+     */
+    private CacheMetadata getMetadata(final File cacheFile, final boolean remember) {
+        final String name = cacheFile.getName();
+
+        synchronized (this.metadata) {
+            final CacheMetadata knownMetadata = this.metadata.get(name);
+
+            if (knownMetadata != null) {
+                return knownMetadata;
+            }
+        }
+
+        final CacheMetadata entryMetadata = readMetadata(cacheFile);
+
+        if (remember && (entryMetadata != null)) {
+            synchronized (this.metadata) {
+                final CacheMetadata knownMetadata = this.metadata.get(name);
+
+                // Keep metadata set in the meantime, which is newer.
+                if (knownMetadata != null) {
+                    return knownMetadata;
+                }
+
+                this.metadata.put(name, entryMetadata);
+            }
+        }
+
+        return entryMetadata;
+    }
+
+    private static File getMetadataFile(final File cacheFile) {
+        return new File(cacheFile.getPath() + METADATA_SUFFIX);
+    }
+
+    private static CacheMetadata readMetadata(final File cacheFile) {
+        final File metadataFile = getMetadataFile(cacheFile);
+
+        return metadataFile.exists() ? CacheMetadata.read(metadataFile) : null;
+    }
+
     private OutputStream getOutputStream(final File file) {
         try {
             return new FileOutputStream(file);
@@ -0,0 +1,278 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache.restlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import co.bitcode.android.net.cache.FileCache;
+
+import org.apache.commons.io.IOUtils;
+import org.restlet.data.Reference;
+import org.restlet.representation.Representation;
+import org.restlet.util.WrapperRepresentation;
+
+/**
+ * Wraps a transient {@link Representation} and copies its bytes to a temporary file while they are
+ * read by the consumer.
+ * 
+ * When the consumer reaches the end of the stream, and the number of bytes matches the declared
+ * size (if any), the temporary file is moved into a {@link RestletFileCache} with
+ * {@link FileCache#putFile(Object, File)}. So is it when the stream is closed right after the
+ * declared size has been read, since many consumers stop there without waiting for the end of the
+ * stream. The file is dropped if reading fails or if the stream is closed before all the content
+ * has been read.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class TeeRepresentation extends WrapperRepresentation {
+    private final RestletFileCache cache;
+    private final Reference key;
+    private final CacheMetadata metadata;
+
+    /**
+     * Constructor.
+     * 
+     * @param wrappedRepresentation
+     *        The representation to cache.
+     * @param cache
+     *        The destination cache.
+     * @param key
+     *        The key under which the content is cached.
+     * @since 1.0.0
+     */
+    public TeeRepresentation(final Representation wrappedRepresentation,
+            final RestletFileCache cache, final Reference key) {
+        this(wrappedRepresentation, cache, key, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param wrappedRepresentation
+     *        The representation to cache.
+     * @param cache
+     *        The destination cache.
+     * @param key
+     *        The key under which the content is cached.
+     * @param metadata
+     *        Metadata to store along with the content, or <code>null</code>.
+     */
+    TeeRepresentation(final Representation wrappedRepresentation, final RestletFileCache cache,
+            final Reference key, final CacheMetadata metadata) {
+        super(wrappedRepresentation);
+
+        this.cache = cache;
+        this.key = key;
+        this.metadata = metadata;
+    }
+
+    @Override
+    public InputStream getStream() throws IOException {
+        final InputStream source = getWrappedRepresentation().getStream();
+
+        if (source == null) {
+            return null;
+        }
+
+        final File tempFile = this.cache.createTempFile();
+
+        try {
+            return new TeeInputStream(source, new FileOutputStream(tempFile), tempFile);
+        } catch (final IOException e) {
+            tempFile.delete();
+            IOUtils.closeQuietly(source);
+
+            throw e;
+        }
+    }
+
+    @Override
+    public ReadableByteChannel getChannel() throws IOException {
+        return Channels.newChannel(getStream());
+    }
+
+    @Override
+    public Reader getReader() throws IOException {
+        if (getCharacterSet() != null) {
+            return new InputStreamReader(getStream(), getCharacterSet().getName());
+        } else {
+            return new InputStreamReader(getStream());
+        }
+    }
+
+    @Override
+    public String getText() throws IOException {
+        final StringWriter writer = new StringWriter();
+
+        write(writer);
+
+        return writer.toString();
+    }
+
+    @Override
+    public void write(final OutputStream outputStream) throws IOException {
+        final InputStream inputStream = getStream();
+
+        try {
+            IOUtils.copyLarge(inputStream, outputStream);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    @Override
+    public void write(final Writer writer) throws IOException {
+        final Reader reader = getReader();
+
+        try {
+            IOUtils.copy(reader, writer);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    @Override
+    public void write(final WritableByteChannel writableChannel) throws IOException {
+        write(Channels.newOutputStream(writableChannel));
+    }
+
+    /**
+     * Copies everything read from the source to the temporary file and commits it at the end of
+     * the stream.
+     */
+    private final class TeeInputStream extends InputStream {
+        private final InputStream source;
+        private final OutputStream sink;
+        private final File tempFile;
+        /** Buffer of {@link #read()}, so that single byte reads do not allocate. */
+        private final byte[] single = new byte[1];
+        private long count;
+        private boolean done;
+
+        TeeInputStream(final InputStream source, final OutputStream sink, final File tempFile) {
+            this.source = source;
+            this.sink = sink;
+            this.tempFile = tempFile;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int read = read(this.single, 0, 1);
+
+            if (read == -1) {
+                return -1;
+            } else {
+                return this.single[0] & 0xff;
+            }
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            final int read;
+
+            try {
+                read = this.source.read(bytes, offset, length);
+            } catch (final IOException e) {
+                abort();
+
+                throw e;
+            }
+
+            if ((read > 0) && !this.done) {
+                try {
+                    this.sink.write(bytes, offset, read);
+                    this.count += read;
+                } catch (final IOException e) {
+                    // Failing to cache must not break the consumer.
+                    abort();
+                }
+            }
+
+            if (read == -1) {
+                commit();
+            }
+
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.source.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            final long expectedSize = getWrappedRepresentation().getSize();
+
+            if ((expectedSize != UNKNOWN_SIZE) && (expectedSize == this.count)) {
+                commit();
+            } else {
+                // Closing before the end of the content means it is truncated.
+                abort();
+            }
+
+            this.source.close();
+        }
+
+        private void commit() {
+            if (this.done) {
+                return;
+            }
+
+            this.done = true;
+
+            final long expectedSize = getWrappedRepresentation().getSize();
+
+            try {
+                this.sink.close();
+            } catch (final IOException e) {
+                this.tempFile.delete();
+
+                return;
+            }
+
+            if ((expectedSize != UNKNOWN_SIZE) && (expectedSize != this.count)) {
+                this.tempFile.delete();
+            } else if (TeeRepresentation.this.cache.putFile(TeeRepresentation.this.key,
+                    this.tempFile) && (TeeRepresentation.this.metadata != null)) {
+                TeeRepresentation.this.cache.setMetadata(TeeRepresentation.this.key,
+                        TeeRepresentation.this.metadata);
+            }
+        }
+
+        private void abort() {
+            if (!this.done) {
+                this.done = true;
+
+                IOUtils.closeQuietly(this.sink);
+                this.tempFile.delete();
+            }
+        }
+    }
+}
@@ -16,9 +16,51 @@
 
 package co.bitcode.android.os;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import co.bitcode.android.net.NetworkHelper;
+
 /**
  * Extends {@link android.os.AsyncTask} providing support for checked exception handling.
  * 
+ * Tasks started with {@link #submit(Object...)} run on the {@link TaskPool} they declare with
+ * {@link #setPool(String)}, with the priority set by {@link #setPriority(int)}, instead of the
+ * executor chosen by the platform. Versions before Android 3.0 cannot run an
+ * {@link android.os.AsyncTask} on a given executor, so there the task runs
+ * {@link #doInBackground(Object...)} on its pool and calls its callbacks itself: the platform task
+ * stays pending and {@link #cancel(boolean)} delivers {@link #onCancelled()} right away, without
+ * interrupting the background work, whose result is then dropped.
+ * 
+ * A task may also declare a key with {@link #setTaskKey(Object)}: submitting a task while another
+ * one with an equal key is running does not run it, but attaches it to the running one instead.
+ * When the running task completes, every attached task receives the same result through
+ * {@link #onFinish(Object)} or {@link #onCatchException(Exception)}, followed by
+ * {@link #onFinalize()}. Attached tasks do not go through {@link #onPreExecute()}. If the running
+ * task is cancelled, the attached tasks which are not cancelled are submitted again. Tasks sharing a
+ * key must produce results of the same type.
+ * 
+ * A task with a {@link RetryPolicy} runs {@link #doInBackgroundThread(Object...)} again, with the
+ * same parameters, when it fails with an exception the policy considers transient. Nothing is
+ * delivered until the last attempt: the delay between attempts is spent on the main thread's
+ * message queue, and optionally waiting for connectivity, not on a pool thread; retries then run
+ * on the {@link TaskPool} of the task. The task keeps its key and its place in the
+ * {@link TaskRegistry} while retrying. Since a finished {@link android.os.AsyncTask} cannot be
+ * cancelled, use {@link #cancelRetries()} to stop a task between attempts.
+ * 
  * @param <Params>
  *        The type of the parameters sent to the task upon execution.
  * @param <Result>
@@ -27,29 +69,326 @@ package co.bitcode.android.os;
  * @author Lorenzo Villani
  */
 public abstract class AsyncTask<Params, Result> extends android.os.AsyncTask<Params, Void, Result> {
+    private static final Method EXECUTE_ON_EXECUTOR = getExecuteOnExecutor();
+    /** Running tasks which declare a key. Guarded by itself. */
+    private static final Map<Object, AsyncTask<?, ?>> RUNNING =
+            new HashMap<Object, AsyncTask<?, ?>>();
+    private static int coalescedCount;
+    private static Handler mainHandler;
+
     private Exception exception;
+    private String pool = TaskPool.DEFAULT;
+    private int priority = TaskPool.PRIORITY_NORMAL;
+    private Object taskKey;
+    /** Tasks attached to this one, guarded by {@link #RUNNING}. */
+    private List<AsyncTask<Params, Result>> followers;
+    /** Parameters of an attached task, used to submit it again if needed. */
+    private Params[] followerParams;
+    private TaskRegistry registry;
+    private RetryPolicy retryPolicy;
+    /** Parameters of the first attempt, used by the following ones. */
+    private Params[] params;
+    private volatile int attemptCount;
+    /** The retry waiting for its delay or for connectivity, if any. */
+    private Retry pendingRetry;
+    /** The retry running on the pool, if any. */
+    private FutureTask<Result> runningRetry;
+    private boolean retriesCancelled;
+    /** Set once the result has been delivered, on the main thread. */
+    private boolean finished;
+
+    /**
+     * Executes this task on its {@link TaskPool}, or attaches it to the running task with the same
+     * key, if any.
+     * 
+     * @param params
+     *        The parameters of the task.
+     * @return This task.
+     * @throws IllegalStateException
+     *         If the task has already been started.
+     * @throws java.util.concurrent.RejectedExecutionException
+     *         If the pool is full and its rejection policy is
+     *         {@link TaskPool.RejectionPolicy#ABORT}.
+     * @since 1.0.0
+     */
+    public final AsyncTask<Params, Result> submit(final Params... params) {
+        start(params, true);
+
+        return this;
+    }
+
+    /**
+     * @return The number of submitted tasks which have been attached to a running task with the
+     *         same key instead of being run.
+     * @since 1.0.0
+     */
+    public static int coalescedCount() {
+        synchronized (RUNNING) {
+            return coalescedCount;
+        }
+    }
+
+    /**
+     * @return The key of this task, or <code>null</code>.
+     * @since 1.0.0
+     */
+    public Object getTaskKey() {
+        return this.taskKey;
+    }
+
+    /**
+     * Sets the key identifying the work done by this task, see {@link #submit(Object...)}.
+     * 
+     * @param taskKey
+     *        The key, compared with {@link Object#equals(Object)}, or <code>null</code> to always
+     *        run this task.
+     * @since 1.0.0
+     */
+    public void setTaskKey(final Object taskKey) {
+        this.taskKey = taskKey;
+    }
+
+    /**
+     * Runs this task, or attaches it to the running task with the same key.
+     */
+    private void start(final Params[] params, final boolean counted) {
+        // An attached task never leaves the pending state, it would otherwise run again.
+        if (this.finished) {
+            throw new IllegalStateException("Cannot submit a finished task");
+        }
+
+        if (this.taskKey != null) {
+            synchronized (RUNNING) {
+                @SuppressWarnings("unchecked")
+                final AsyncTask<Params, Result> leader = (AsyncTask<Params, Result>) RUNNING
+                        .get(this.taskKey);
+
+                if (leader == this) {
+                    throw new IllegalStateException("Cannot submit a running task");
+                } else if (leader != null) {
+                    if (leader.followers == null) {
+                        leader.followers = new ArrayList<AsyncTask<Params, Result>>();
+                    }
+
+                    leader.followers.add(this);
+                    this.followerParams = params;
+
+                    if (counted) {
+                        coalescedCount++;
+                    }
+
+                    return;
+                }
+
+                RUNNING.put(this.taskKey, this);
+            }
+        }
 
-    @Override
-    protected final Result doInBackground(final Params... params) {
         try {
-            return doInBackgroundThread(params);
-            /* CHECKSTYLE IGNORE ALL CHECKS NEXT LINE */
-        } catch (final Exception e) {
-            this.exception = e;
+            dispatch(params);
+        } catch (final RuntimeException e) {
+            release();
 
-            return null;
+            throw e;
+        }
+    }
+
+    private void dispatch(final Params... params) {
+        if (EXECUTE_ON_EXECUTOR == null) {
+            runOnPool(params);
+
+            return;
+        }
+
+        final Executor executor = TaskPool.get(getPool()).withPriority(getPriority());
+
+        try {
+            EXECUTE_ON_EXECUTOR.invoke(this, executor, params);
+        } catch (final IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (final InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Runs this task on its pool without the help of the platform, see {@link AsyncTask}.
+     */
+    private void runOnPool(final Params[] params) {
+        final FutureTask<Result> work = new FutureTask<Result>(new Callable<Result>() {
+            @Override
+            public Result call() {
+                return doInBackground(params);
+            }
+        }) {
+            @Override
+            protected void done() {
+                final FutureTask<Result> future = this;
+
+                getMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onWorkDone(future);
+                    }
+                });
+            }
+        };
+
+        onPreExecute();
+        TaskPool.get(getPool()).execute(work, getPriority());
+    }
+
+    /**
+     * @return The name of the {@link TaskPool} used by {@link #submit(Object...)}.
+     * @since 1.0.0
+     */
+    public String getPool() {
+        return this.pool;
+    }
+
+    /**
+     * Sets the {@link TaskPool} used by {@link #submit(Object...)}. {@link TaskPool#DEFAULT} is
+     * used unless specified otherwise.
+     * 
+     * @param pool
+     *        The name of the pool, e.g.: {@link TaskPool#NETWORK}.
+     * @since 1.0.0
+     */
+    public void setPool(final String pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return The priority of this task within its {@link TaskPool}.
+     * @since 1.0.0
+     */
+    public int getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Sets the priority of this task within its {@link TaskPool}. {@link TaskPool#PRIORITY_NORMAL}
+     * is used unless specified otherwise.
+     * 
+     * @param priority
+     *        The priority, e.g.: {@link TaskPool#PRIORITY_HIGH}.
+     * @since 1.0.0
+     */
+    public void setPriority(final int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return The retry policy of this task, or <code>null</code>.
+     * @since 1.0.0
+     */
+    public RetryPolicy getRetryPolicy() {
+        return this.retryPolicy;
+    }
+
+    /**
+     * Sets the policy deciding whether this task runs again when it fails. Failures are not
+     * retried unless specified otherwise.
+     * 
+     * @param retryPolicy
+     *        The policy, or <code>null</code>.
+     * @since 1.0.0
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @return The number of times {@link #doInBackgroundThread(Object...)} has been called so far.
+     * @since 1.0.0
+     */
+    public int getAttemptCount() {
+        return this.attemptCount;
+    }
+
+    /**
+     * Stops retrying this task. A retry waiting for its delay or for connectivity is dropped and a
+     * running one is interrupted, then the task completes as cancelled through
+     * {@link #onCancelled()}. A task which has not failed yet will not be retried. Must be called on
+     * the main thread.
+     * 
+     * @since 1.0.0
+     */
+    public void cancelRetries() {
+        this.retriesCancelled = true;
+
+        if (this.pendingRetry != null) {
+            getMainHandler().removeCallbacks(this.pendingRetry);
+
+            if (this.retryPolicy.getConnectivityContext() != null) {
+                NetworkHelper.cancelRunWhenConnected(this.retryPolicy.getConnectivityContext(),
+                        this.pendingRetry);
+            }
+
+            this.pendingRetry = null;
+            onCancelled();
+        } else if (this.runningRetry != null) {
+            // onCancelled() is called once the retry is done.
+            this.runningRetry.cancel(true);
         }
     }
 
+    @Override
+    protected final Result doInBackground(final Params... params) {
+        this.params = params;
+
+        return attempt();
+    }
+
     @Override
     protected final void onPostExecute(final Result result) {
-        if (this.exception != null) {
-            onCatchException(this.exception);
-        } else {
-            onFinish(result);
+        if ((this.exception != null) && scheduleRetry()) {
+            return;
         }
 
-        onFinalize();
+        complete(result);
+    }
+
+    private void complete(final Result result) {
+        final List<AsyncTask<Params, Result>> attached = release();
+
+        unregister();
+
+        deliver(result, this.exception);
+
+        // Attached tasks never run, so they do not leave their registry on their own.
+        for (final AsyncTask<Params, Result> follower : attached) {
+            follower.unregister();
+
+            if (!follower.isCancelled()) {
+                follower.deliver(result, this.exception);
+            }
+        }
+    }
+
+    /**
+     * Submits again the tasks attached to this one and leaves the {@link TaskRegistry}, if any.
+     * Attached tasks which have been cancelled leave their registry too. Subclasses overriding this
+     * method must call through to the super class implementation.
+     */
+    @Override
+    protected void onCancelled() {
+        super.onCancelled();
+
+        unregister();
+
+        for (final AsyncTask<Params, Result> follower : release()) {
+            if (follower.isCancelled()) {
+                follower.unregister();
+            } else {
+                // Still live: it leaves its registry once it completes in turn.
+                follower.start(follower.followerParams, false);
+            }
+        }
     }
 
     /**
@@ -98,4 +437,197 @@ public abstract class AsyncTask<Params, Result> extends android.os.AsyncTask<Par
      */
     protected void onFinish(final Result result) {
     }
+
+    /**
+     * Sets the registry this task belongs to.
+     */
+    void setRegistry(final TaskRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Runs {@link #doInBackgroundThread(Object...)} once, recording the exception it raises.
+     */
+    private Result attempt() {
+        this.attemptCount++;
+        this.exception = null;
+
+        try {
+            return doInBackgroundThread(this.params);
+            /* CHECKSTYLE IGNORE ALL CHECKS NEXT LINE */
+        } catch (final Exception e) {
+            this.exception = e;
+
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the delay given by the retry policy, if the failure of the last attempt allows
+     * another one.
+     * 
+     * @return <code>true</code> if a retry has been scheduled.
+     */
+    private boolean scheduleRetry() {
+        if ((this.retryPolicy == null) || this.retriesCancelled || isCancelled()
+                || !this.retryPolicy.shouldRetry(this.exception, this.attemptCount)) {
+            return false;
+        }
+
+        this.pendingRetry = new Retry();
+        getMainHandler().postDelayed(this.pendingRetry,
+                this.retryPolicy.getDelay(this.attemptCount));
+
+        return true;
+    }
+
+    /**
+     * Queues the next attempt on the pool of this task, once its delay and, if required, the wait
+     * for connectivity are over.
+     */
+    private void runRetry() {
+        this.pendingRetry = null;
+
+        final FutureTask<Result> retry = new FutureTask<Result>(new Callable<Result>() {
+            @Override
+            public Result call() {
+                return attempt();
+            }
+        }) {
+            @Override
+            protected void done() {
+                getMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onRetryDone();
+                    }
+                });
+            }
+        };
+
+        this.runningRetry = retry;
+
+        try {
+            TaskPool.get(getPool()).execute(retry, getPriority());
+        } catch (final RejectedExecutionException e) {
+            this.runningRetry = null;
+            this.exception = e;
+            complete(null);
+        }
+    }
+
+    private void onRetryDone() {
+        final FutureTask<Result> retry = this.runningRetry;
+
+        this.runningRetry = null;
+        onWorkDone(retry);
+    }
+
+    /**
+     * Delivers the outcome of work run on the pool by this task rather than by the platform.
+     */
+    private void onWorkDone(final FutureTask<Result> work) {
+        final Result result;
+
+        // The platform task has already delivered onCancelled().
+        if (isCancelled()) {
+            return;
+        }
+
+        // Cancelled through cancelRetries() or discarded by the pool.
+        if (work.isCancelled()) {
+            onCancelled();
+
+            return;
+        }
+
+        try {
+            result = work.get();
+        } catch (final InterruptedException e) {
+            throw new IllegalStateException(e);
+        } catch (final ExecutionException e) {
+            // Errors are not caught by attempt().
+            throw new RuntimeException(e.getCause());
+        }
+
+        onPostExecute(result);
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+
+        return mainHandler;
+    }
+
+    private void unregister() {
+        if (this.registry != null) {
+            this.registry.unregister(this);
+            this.registry = null;
+        }
+    }
+
+    private void deliver(final Result result, final Exception e) {
+        this.finished = true;
+
+        if (e != null) {
+            onCatchException(e);
+        } else {
+            onFinish(result);
+        }
+
+        onFinalize();
+    }
+
+    /**
+     * Stops accepting followers.
+     * 
+     * @return The tasks attached to this one.
+     */
+    private List<AsyncTask<Params, Result>> release() {
+        synchronized (RUNNING) {
+            final List<AsyncTask<Params, Result>> attached = this.followers;
+
+            if ((this.taskKey != null) && (RUNNING.get(this.taskKey) == this)) {
+                RUNNING.remove(this.taskKey);
+            }
+
+            this.followers = null;
+
+            if (attached != null) {
+                return attached;
+            } else {
+                return new ArrayList<AsyncTask<Params, Result>>(0);
+            }
+        }
+    }
+
+    private static Method getExecuteOnExecutor() {
+        try {
+            return android.os.AsyncTask.class.getMethod("executeOnExecutor", Executor.class,
+                    Object[].class);
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A retry waiting for its delay, then for connectivity if the retry policy requires it.
+     */
+    private final class Retry implements Runnable {
+        private boolean delayElapsed;
+
+        @Override
+        public void run() {
+            final Context context = AsyncTask.this.retryPolicy.getConnectivityContext();
+
+            if (!this.delayElapsed && (context != null)) {
+                this.delayElapsed = true;
+                NetworkHelper.runWhenConnected(context, this);
+            } else {
+                runRetry();
+            }
+        }
+    }
 }
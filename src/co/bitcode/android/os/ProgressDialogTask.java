@@ -56,6 +56,7 @@ public abstract class ProgressDialogTask<Params, Result> extends ContextAsyncTas
     @Override
     public void onCancel(final DialogInterface dialog) {
         cancel(true);
+        cancelRetries();
         onFinalize();
     }
 
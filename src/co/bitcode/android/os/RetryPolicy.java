@@ -0,0 +1,228 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.os;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.content.Context;
+
+import co.bitcode.android.net.NetworkHelper;
+
+/**
+ * Decides whether and when an {@link AsyncTask} which failed runs again, see
+ * {@link AsyncTask#setRetryPolicy(RetryPolicy)}.
+ * 
+ * The delay before attempt <i>n + 1</i> grows exponentially: it is the initial delay multiplied
+ * <i>n - 1</i> times by the multiplier, capped to the maximum delay, then reduced by a random
+ * fraction of up to the jitter, so that clients failing together do not retry in lockstep.
+ * 
+ * Only exceptions accepted by {@link #isRetryable(Exception)} are retried: by default those which
+ * are instances of the types added with {@link #addRetryableException(Class)}, or
+ * {@link IOException}s when no type has been added. Override {@link #isRetryable(Exception)} to
+ * use a different predicate.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class RetryPolicy {
+    /**
+     * Delay before the first retry used unless specified otherwise, in milliseconds.
+     */
+    public static final long DEFAULT_INITIAL_DELAY = 1000;
+    /**
+     * Maximum delay between two attempts used unless specified otherwise, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_DELAY = 60000;
+    /**
+     * Factor applied to the delay after each failed attempt, unless specified otherwise.
+     */
+    public static final double DEFAULT_MULTIPLIER = 2;
+    /**
+     * Fraction of the delay which may be randomly removed, unless specified otherwise.
+     */
+    public static final double DEFAULT_JITTER = 0.5;
+
+    private static final Random RANDOM = new Random();
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final List<Class<? extends Exception>> retryableExceptions =
+            new ArrayList<Class<? extends Exception>>();
+    private double multiplier = DEFAULT_MULTIPLIER;
+    private double jitter = DEFAULT_JITTER;
+    private Context connectivityContext;
+
+    /**
+     * Constructor. Uses {@link #DEFAULT_INITIAL_DELAY} and {@link #DEFAULT_MAX_DELAY}.
+     * 
+     * @param maxAttempts
+     *        The maximum number of attempts, including the first one.
+     * @since 1.0.0
+     */
+    public RetryPolicy(final int maxAttempts) {
+        this(maxAttempts, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param maxAttempts
+     *        The maximum number of attempts, including the first one.
+     * @param initialDelay
+     *        The delay before the first retry, in milliseconds.
+     * @param maxDelay
+     *        The maximum delay between two attempts, in milliseconds.
+     * @since 1.0.0
+     */
+    public RetryPolicy(final int maxAttempts, final long initialDelay, final long maxDelay) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts <= 0");
+        }
+
+        if ((initialDelay < 0) || (maxDelay < initialDelay)) {
+            throw new IllegalArgumentException("Invalid delays");
+        }
+
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return The maximum number of attempts, including the first one.
+     * @since 1.0.0
+     */
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * Sets the factor applied to the delay after each failed attempt.
+     * 
+     * @param multiplier
+     *        The factor, at least 1.
+     * @since 1.0.0
+     */
+    public void setMultiplier(final double multiplier) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier < 1");
+        }
+
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * Sets the fraction of each delay which may be randomly removed.
+     * 
+     * @param jitter
+     *        The fraction, between 0 (fixed delays) and 1 (anywhere between no delay and the full
+     *        one).
+     * @since 1.0.0
+     */
+    public void setJitter(final double jitter) {
+        if ((jitter < 0) || (jitter > 1)) {
+            throw new IllegalArgumentException("jitter not in [0, 1]");
+        }
+
+        this.jitter = jitter;
+    }
+
+    /**
+     * Makes exceptions of the given type, or of its subtypes, retryable.
+     * 
+     * @param type
+     *        The type of exception.
+     * @since 1.0.0
+     */
+    public void addRetryableException(final Class<? extends Exception> type) {
+        this.retryableExceptions.add(type);
+    }
+
+    /**
+     * Keeps retries waiting, after their delay, until the active network interface is connected.
+     * 
+     * @param context
+     *        The {@link Context} passed to {@link NetworkHelper#isConnected(Context)}, or
+     *        <code>null</code> to retry regardless of connectivity.
+     * @see NetworkHelper#runWhenConnected(Context, Runnable)
+     * @since 1.0.0
+     */
+    public void setConnectivityRequired(final Context context) {
+        if (context != null) {
+            this.connectivityContext = context.getApplicationContext();
+        } else {
+            this.connectivityContext = null;
+        }
+    }
+
+    /**
+     * @return The {@link Context} used to wait for connectivity, or <code>null</code>.
+     * @since 1.0.0
+     */
+    public Context getConnectivityContext() {
+        return this.connectivityContext;
+    }
+
+    /**
+     * @param e
+     *        An exception raised by a task.
+     * @return <code>true</code> if a task failing with <code>e</code> may be retried.
+     * @since 1.0.0
+     */
+    public boolean isRetryable(final Exception e) {
+        if (this.retryableExceptions.isEmpty()) {
+            return e instanceof IOException;
+        }
+
+        for (final Class<? extends Exception> type : this.retryableExceptions) {
+            if (type.isInstance(e)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param e
+     *        The exception raised by the last attempt.
+     * @param attempt
+     *        The number of the last attempt, starting from 1.
+     * @return <code>true</code> if the task should run again.
+     * @since 1.0.0
+     */
+    public boolean shouldRetry(final Exception e, final int attempt) {
+        return (attempt < this.maxAttempts) && isRetryable(e);
+    }
+
+    /**
+     * @param attempt
+     *        The number of the failed attempt, starting from 1.
+     * @return The delay before the next attempt, jitter included, in milliseconds.
+     * @since 1.0.0
+     */
+    public long getDelay(final int attempt) {
+        final double delay = Math.min(this.maxDelay,
+                this.initialDelay * Math.pow(this.multiplier, attempt - 1));
+
+        return Math.round(delay * (1 - (this.jitter * RANDOM.nextDouble())));
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A named {@link Executor} with its own worker threads, a concurrency limit and a queue ordered by
+ * priority, so that unrelated kinds of {@link AsyncTask}s (e.g.: image decoding and API calls) do
+ * not starve each other.
+ * 
+ * Queued work runs highest priority first and, within the same priority, in submission order.
+ * Worker threads are started on demand, up to the concurrency limit, and stop after being idle for
+ * {@link #KEEP_ALIVE} milliseconds. When the queue is full, the {@link RejectionPolicy} of the pool
+ * decides what happens to the new work; discarded work which is a {@link Future} (such as the one
+ * queued by {@link android.os.AsyncTask}) is cancelled, so that its task completes as cancelled.
+ * 
+ * Like in {@link java.util.concurrent.ThreadPoolExecutor}, work which throws terminates its worker
+ * thread with the exception, which reaches the uncaught exception handler. The thread is replaced
+ * if work is still queued.
+ * 
+ * Pools are registered by name: {@link #DEFAULT}, {@link #IMAGE} and {@link #NETWORK} are
+ * predefined and can be replaced with {@link #register(TaskPool)}.
+ * 
+ * This class does not depend on the Android framework.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class TaskPool implements Executor {
+    /**
+     * Name of the pool used by tasks which do not declare one.
+     */
+    public static final String DEFAULT = "default";
+    /**
+     * Name of the pool for image loading and decoding.
+     */
+    public static final String IMAGE = "image";
+    /**
+     * Name of the pool for network transfers.
+     */
+    public static final String NETWORK = "network";
+    /**
+     * Priority of work which should run before anything else.
+     */
+    public static final int PRIORITY_HIGH = 1;
+    /**
+     * Priority used when none is specified.
+     */
+    public static final int PRIORITY_NORMAL = 0;
+    /**
+     * Priority of work which may be delayed, e.g.: prefetching.
+     */
+    public static final int PRIORITY_LOW = -1;
+    /**
+     * Time an idle worker thread waits for new work before stopping, in milliseconds.
+     */
+    public static final long KEEP_ALIVE = 1000;
+
+    private static final Map<String, TaskPool> POOLS = new HashMap<String, TaskPool>();
+
+    private final String name;
+    private final int concurrency;
+    private final int maxQueued;
+    private final RejectionPolicy rejectionPolicy;
+    private final int threadPriority;
+    private final PriorityQueue<Work> queue = new PriorityQueue<Work>();
+    private int threadCount;
+    private int idleThreadCount;
+    private int busyThreadCount;
+    private long sequence;
+    private int completedCount;
+    private int rejectedCount;
+
+    static {
+        register(new TaskPool(DEFAULT, 2, Integer.MAX_VALUE, RejectionPolicy.ABORT));
+        register(new TaskPool(IMAGE, 2, Integer.MAX_VALUE, RejectionPolicy.ABORT));
+        register(new TaskPool(NETWORK, 2, Integer.MAX_VALUE, RejectionPolicy.ABORT));
+    }
+
+    /**
+     * What to do with new work when the queue of a pool is full.
+     * 
+     * @since 1.0.0
+     * @author Lorenzo Villani
+     */
+    public static enum RejectionPolicy {
+        /**
+         * Throw a {@link RejectedExecutionException}.
+         */
+        ABORT,
+        /**
+         * Discard the new work.
+         */
+        DISCARD,
+        /**
+         * Discard the queued work with the lowest priority, the most recent one among equals, if
+         * its priority is lower than the priority of the new work. Otherwise discard the new work.
+         */
+        DISCARD_LOWEST
+    }
+
+    /**
+     * Constructor. Worker threads run with {@link Thread#MIN_PRIORITY}.
+     * 
+     * @param name
+     *        The name of the pool.
+     * @param concurrency
+     *        The maximum number of worker threads.
+     * @param maxQueued
+     *        The maximum number of queued units of work, not counting the running ones.
+     * @param rejectionPolicy
+     *        What to do when the queue is full.
+     * @since 1.0.0
+     */
+    public TaskPool(final String name, final int concurrency, final int maxQueued,
+            final RejectionPolicy rejectionPolicy) {
+        this(name, concurrency, maxQueued, rejectionPolicy, Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param name
+     *        The name of the pool.
+     * @param concurrency
+     *        The maximum number of worker threads.
+     * @param maxQueued
+     *        The maximum number of queued units of work, not counting the running ones.
+     * @param rejectionPolicy
+     *        What to do when the queue is full.
+     * @param threadPriority
+     *        The priority of worker threads, see {@link Thread#setPriority(int)}.
+     * @since 1.0.0
+     */
+    public TaskPool(final String name, final int concurrency, final int maxQueued,
+            final RejectionPolicy rejectionPolicy, final int threadPriority) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency <= 0");
+        }
+
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("maxQueued < 0");
+        }
+
+        this.name = name;
+        this.concurrency = concurrency;
+        this.maxQueued = maxQueued;
+        this.rejectionPolicy = rejectionPolicy;
+        this.threadPriority = threadPriority;
+    }
+
+    /**
+     * Registers a pool under its name, replacing the previous pool with the same name. Work already
+     * submitted to the previous pool is not affected.
+     * 
+     * @param pool
+     *        The pool.
+     * @since 1.0.0
+     */
+    public static void register(final TaskPool pool) {
+        synchronized (POOLS) {
+            POOLS.put(pool.getName(), pool);
+        }
+    }
+
+    /**
+     * @param name
+     *        The name of a pool.
+     * @return The pool registered under <code>name</code>.
+     * @throws IllegalArgumentException
+     *         If there is no such pool.
+     * @since 1.0.0
+     */
+    public static TaskPool get(final String name) {
+        synchronized (POOLS) {
+            final TaskPool pool = POOLS.get(name);
+
+            if (pool == null) {
+                throw new IllegalArgumentException("Unknown pool: " + name);
+            }
+
+            return pool;
+        }
+    }
+
+    /**
+     * @return The name of this pool.
+     * @since 1.0.0
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Queues work with {@link #PRIORITY_NORMAL}.
+     * 
+     * @param runnable
+     *        The work.
+     * @throws RejectedExecutionException
+     *         If the queue is full and the policy is {@link RejectionPolicy#ABORT}.
+     */
+    @Override
+    public void execute(final Runnable runnable) {
+        execute(runnable, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Queues work.
+     * 
+     * @param runnable
+     *        The work.
+     * @param priority
+     *        The priority, e.g.: {@link #PRIORITY_HIGH}.
+     * @throws RejectedExecutionException
+     *         If the queue is full and the policy is {@link RejectionPolicy#ABORT}.
+     * @since 1.0.0
+     */
+    public void execute(final Runnable runnable, final int priority) {
+        final Work work;
+        Work discarded = null;
+
+        synchronized (this) {
+            work = new Work(runnable, priority, this.sequence++);
+
+            // Work which a free thread is about to pick up does not count as queued.
+            if ((this.queue.size() - (this.concurrency - this.busyThreadCount)) >= this.maxQueued) {
+                discarded = reject(work);
+            }
+
+            if (discarded != work) {
+                this.queue.add(work);
+
+                if ((this.queue.size() > this.idleThreadCount)
+                        && (this.threadCount < this.concurrency)) {
+                    startThread();
+                }
+
+                notify();
+            }
+        }
+
+        if (discarded != null) {
+            discarded.cancel();
+        }
+    }
+
+    /**
+     * @param priority
+     *        The priority.
+     * @return An {@link Executor} queuing work to this pool with the given priority.
+     * @since 1.0.0
+     */
+    public Executor withPriority(final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                TaskPool.this.execute(runnable, priority);
+            }
+        };
+    }
+
+    /**
+     * @return The number of units of work waiting for a thread.
+     * @since 1.0.0
+     */
+    public synchronized int queuedCount() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return The number of units of work currently running.
+     * @since 1.0.0
+     */
+    public synchronized int activeCount() {
+        return this.busyThreadCount;
+    }
+
+    /**
+     * @return The number of units of work run to completion so far.
+     * @since 1.0.0
+     */
+    public synchronized int completedCount() {
+        return this.completedCount;
+    }
+
+    /**
+     * @return The number of units of work discarded so far.
+     * @since 1.0.0
+     */
+    public synchronized int rejectedCount() {
+        return this.rejectedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TaskPool[name=%s,active=%d,queued=%d,completed=%d,rejected=%d]",
+                this.name, activeCount(), this.queue.size(), this.completedCount,
+                this.rejectedCount);
+    }
+
+    /**
+     * Applies the rejection policy to work which does not fit in the queue.
+     * 
+     * @return The work to discard, which may be <code>work</code> itself.
+     */
+    private Work reject(final Work work) {
+        if (this.rejectionPolicy == RejectionPolicy.ABORT) {
+            throw new RejectedExecutionException("Pool " + this.name + " is full");
+        }
+
+        this.rejectedCount++;
+
+        if (this.rejectionPolicy == RejectionPolicy.DISCARD_LOWEST) {
+            Work lowest = null;
+
+            for (final Work queued : this.queue) {
+                if ((lowest == null) || (queued.compareTo(lowest) > 0)) {
+                    lowest = queued;
+                }
+            }
+
+            if ((lowest != null) && (lowest.priority < work.priority)) {
+                this.queue.remove(lowest);
+
+                return lowest;
+            }
+        }
+
+        return work;
+    }
+
+    private void startThread() {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean stopped = false;
+
+                try {
+                    Work work;
+
+                    while ((work = take()) != null) {
+                        try {
+                            work.runnable.run();
+                        } finally {
+                            // Do not leak the interrupt of a cancelled task to the next one.
+                            Thread.interrupted();
+                            completed();
+                        }
+                    }
+
+                    stopped = true;
+                } finally {
+                    if (!stopped) {
+                        threadDied();
+                    }
+                }
+            }
+        }, "TaskPool-" + this.name);
+
+        thread.setDaemon(true);
+        thread.setPriority(this.threadPriority);
+        thread.start();
+
+        this.threadCount++;
+    }
+
+    /**
+     * Waits for work, up to {@link #KEEP_ALIVE} milliseconds.
+     * 
+     * @return The next unit of work, or <code>null</code> if the calling worker thread must stop.
+     */
+    private synchronized Work take() {
+        if (this.queue.isEmpty()) {
+            this.idleThreadCount++;
+
+            try {
+                wait(KEEP_ALIVE);
+            } catch (final InterruptedException e) {
+                // Stop.
+            } finally {
+                this.idleThreadCount--;
+            }
+        }
+
+        final Work work = this.queue.poll();
+
+        if (work == null) {
+            this.threadCount--;
+        } else {
+            this.busyThreadCount++;
+        }
+
+        return work;
+    }
+
+    private synchronized void completed() {
+        this.busyThreadCount--;
+        this.completedCount++;
+    }
+
+    /**
+     * Accounts for a worker thread terminated by an exception, starting a replacement if work is
+     * waiting.
+     */
+    private synchronized void threadDied() {
+        this.threadCount--;
+
+        if ((this.queue.size() > this.idleThreadCount) && (this.threadCount < this.concurrency)) {
+            startThread();
+        }
+    }
+
+    /**
+     * Queued work.
+     */
+    private static final class Work implements Comparable<Work> {
+        private final Runnable runnable;
+        private final int priority;
+        private final long sequence;
+
+        Work(final Runnable runnable, final int priority, final long sequence) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        void cancel() {
+            if (this.runnable instanceof Future) {
+                ((Future<?>) this.runnable).cancel(false);
+            }
+        }
+
+        @Override
+        public int compareTo(final Work other) {
+            // Higher priority first, then first come first served.
+            if (this.priority != other.priority) {
+                return (this.priority > other.priority) ? -1 : 1;
+            } else if (this.sequence != other.sequence) {
+                return (this.sequence < other.sequence) ? -1 : 1;
+            } else {
+                return 0;
+            }
+        }
+    }
+}
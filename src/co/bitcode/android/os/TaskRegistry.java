@@ -0,0 +1,155 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.os;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import co.bitcode.android.app.observable.ObservableActivity;
+import co.bitcode.android.app.observable.OnDestroyListener;
+
+/**
+ * Keeps track of the {@link AsyncTask}s bound to an {@link ObservableActivity} and cancels them
+ * all when the activity is destroyed.
+ * 
+ * Each activity gets a single registry, which installs a single {@link OnDestroyListener} on it,
+ * preserving the listener which was set before. Tasks are referenced weakly and leave the registry
+ * as soon as they finish or are cancelled, so the registry only holds live tasks and does not keep
+ * finished ones, nor the activity, from being garbage collected.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public final class TaskRegistry {
+    private static final Map<ObservableActivity, TaskRegistry> REGISTRIES =
+            new WeakHashMap<ObservableActivity, TaskRegistry>();
+
+    /** Live tasks, used as a weak set. */
+    private final Map<AsyncTask<?, ?>, Boolean> tasks = new WeakHashMap<AsyncTask<?, ?>, Boolean>();
+    private boolean destroyed;
+
+    private TaskRegistry() {
+    }
+
+    /**
+     * @param activity
+     *        The activity.
+     * @return The registry of <code>activity</code>, created on first use.
+     * @since 1.0.0
+     */
+    public static TaskRegistry get(final ObservableActivity activity) {
+        synchronized (REGISTRIES) {
+            TaskRegistry registry = REGISTRIES.get(activity);
+
+            if (registry == null) {
+                registry = new TaskRegistry();
+                registry.install(activity);
+                REGISTRIES.put(activity, registry);
+            }
+
+            return registry;
+        }
+    }
+
+    /**
+     * Binds a task to the activity of this registry. A task registered after the activity has been
+     * destroyed is cancelled immediately.
+     * 
+     * @param task
+     *        The task.
+     * @since 1.0.0
+     */
+    public void register(final AsyncTask<?, ?> task) {
+        synchronized (this) {
+            if (!this.destroyed) {
+                this.tasks.put(task, Boolean.TRUE);
+                task.setRegistry(this);
+
+                return;
+            }
+        }
+
+        task.cancel(true);
+    }
+
+    /**
+     * Cancels all the live tasks of this registry, including those waiting to be retried. Must be
+     * called on the main thread.
+     * 
+     * @since 1.0.0
+     */
+    public void cancelAll() {
+        final List<AsyncTask<?, ?>> liveTasks;
+
+        synchronized (this) {
+            liveTasks = new ArrayList<AsyncTask<?, ?>>(this.tasks.keySet());
+            this.tasks.clear();
+        }
+
+        for (final AsyncTask<?, ?> task : liveTasks) {
+            task.cancelRetries();
+
+            if (!task.isCancelled()) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return The number of live tasks in this registry.
+     * @since 1.0.0
+     */
+    public synchronized int size() {
+        return this.tasks.size();
+    }
+
+    /**
+     * Removes a task which has finished or has been cancelled.
+     * 
+     * @param task
+     *        The task.
+     */
+    synchronized void unregister(final AsyncTask<?, ?> task) {
+        this.tasks.remove(task);
+    }
+
+    private void install(final ObservableActivity activity) {
+        final OnDestroyListener originalListener = activity.getOnDestroyListener();
+
+        // The listener must not reference the activity, which is a weak key of REGISTRIES.
+        activity.setOnDestroyListener(new OnDestroyListener() {
+            @Override
+            public void onDestroy() {
+                if (originalListener != null) {
+                    originalListener.onDestroy();
+                }
+
+                destroy();
+            }
+        });
+    }
+
+    private void destroy() {
+        synchronized (this) {
+            this.destroyed = true;
+        }
+
+        cancelAll();
+    }
+}
@@ -21,17 +21,38 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 import android.util.AttributeSet;
 
-import co.bitcode.android.widget.util.RemoteImageTask;
+import co.bitcode.android.widget.util.RemoteImageLoader;
 
 /**
  * An ImageView which downloads a picture from the network and displays it when done.
  * 
+ * Pictures are loaded by the default {@link RemoteImageLoader}: binding the view to a new URI
+ * cancels the pending request for the previous one, and views bound to the same URI with the same
+ * size share a single download.
+ * 
  * @since 1.0.0
  * @author Lorenzo Villani
  */
 public abstract class RemoteImageView extends RoundedCornerImageView {
+    private final RemoteImageLoader.Fetcher fetcher = new RemoteImageLoader.Fetcher() {
+        @Override
+        public Bitmap fetch(final Uri uri, final int width, final int height) {
+            return fetchRemoteImage(uri, width, height);
+        }
+    };
+    private final RemoteImageLoader.Callback callback = new RemoteImageLoader.Callback() {
+        @Override
+        public void onImageLoaded(final Bitmap bitmap) {
+            RemoteImageView.this.request = null;
+            RemoteImageView.this.pendingUri = null;
+
+            onImageFetched(bitmap);
+        }
+    };
     private OnImageDownloaded onImageDownloaded;
-    private RemoteImageTask asyncTask;
+    private RemoteImageLoader.Request request;
+    /** URI being loaded, kept while detached from the window to resume loading afterwards. */
+    private Uri pendingUri;
 
     /**
      * Interface definition for a callback to be invoked when the RemoteImageView has finished
@@ -96,16 +117,16 @@ public abstract class RemoteImageView extends RoundedCornerImageView {
      * @since 1.0.0
      */
     public void cancel() {
-        if ((this.asyncTask != null) && !this.asyncTask.isCancelled()) {
-            this.asyncTask.cancel(true);
-            this.asyncTask = null;
+        if (this.pendingUri != null) {
+            cancelRequest();
+            this.pendingUri = null;
 
             setImageResource(getNotFoundDrawable());
         }
     }
 
     /**
-     * Triggers an asynchronous image download.
+     * Triggers an asynchronous image download, cancelling the previous one if any.
      * 
      * @param uri
      *        Uri of image to download.
@@ -114,19 +135,31 @@ public abstract class RemoteImageView extends RoundedCornerImageView {
      */
     @Override
     public void setImageURI(final Uri uri) {
-        this.asyncTask = new RemoteImageTask(this) {
-            @Override
-            protected void onFinish(final Bitmap result) {
-                super.onFinish(result);
-
-                if (RemoteImageView.this.onImageDownloaded != null) {
-                    RemoteImageView.this.onImageDownloaded.onImageDownloaded(result);
-                }
-
-                RemoteImageView.this.asyncTask = null;
-            }
-        };
-        this.asyncTask.execute(uri);
+        if ((uri != null) && uri.equals(this.pendingUri)) {
+            return;
+        }
+
+        cancelRequest();
+        this.pendingUri = uri;
+
+        if (uri == null) {
+            onImageFetched(null);
+        } else {
+            requestImage();
+        }
+    }
+
+    /**
+     * Downloads a picture in advance with a low priority, e.g.: for a row which is about to be
+     * scrolled into view. The picture is downloaded with the size this view currently has, and is
+     * retained only if {@link #fetchRemoteImage(Uri, int, int)} caches it.
+     * 
+     * @param uri
+     *        Uri of image to download.
+     * @since 1.0.0
+     */
+    public void prefetch(final Uri uri) {
+        RemoteImageLoader.getDefault().prefetch(uri, getWidth(), getHeight(), this.fetcher);
     }
 
     public void setOnImageDownloaded(final OnImageDownloaded onImageDownloaded) {
@@ -148,4 +181,63 @@ public abstract class RemoteImageView extends RoundedCornerImageView {
      * @since 1.0.0
      */
     public abstract Bitmap fetchRemoteImage(Uri uri);
+
+    /**
+     * Callback method invoked on a worker thread whenever this {@link RemoteImageView} needs to
+     * download data from the network. Override it to decode the picture to the size of the view,
+     * for example with {@link co.bitcode.android.graphics.BitmapHelper}.
+     * 
+     * @param uri
+     *        Uri of the image to download.
+     * @param width
+     *        The width of this view, or 0 if it has not been laid out yet.
+     * @param height
+     *        The height of this view, or 0 if it has not been laid out yet.
+     * @return A {@link Bitmap} containing the downloaded resource.
+     * @since 1.0.0
+     */
+    public Bitmap fetchRemoteImage(final Uri uri, final int width, final int height) {
+        return fetchRemoteImage(uri);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        if ((this.pendingUri != null) && (this.request == null)) {
+            requestImage();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        // Off-screen views must not hold workers, loading resumes if the view is attached again.
+        cancelRequest();
+
+        super.onDetachedFromWindow();
+    }
+
+    private void requestImage() {
+        this.request = RemoteImageLoader.getDefault().load(this.pendingUri, getWidth(),
+                getHeight(), RemoteImageLoader.PRIORITY_VISIBLE, this.fetcher, this.callback);
+    }
+
+    private void cancelRequest() {
+        if (this.request != null) {
+            this.request.cancel();
+            this.request = null;
+        }
+    }
+
+    private void onImageFetched(final Bitmap bitmap) {
+        if (bitmap == null) {
+            setImageResource(getNotFoundDrawable());
+        } else {
+            setImageBitmap(bitmap);
+        }
+
+        if (this.onImageDownloaded != null) {
+            this.onImageDownloaded.onImageDownloaded(bitmap);
+        }
+    }
 }
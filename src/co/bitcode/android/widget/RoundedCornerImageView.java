@@ -28,6 +28,8 @@ import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.widget.ImageView;
 
+import co.bitcode.android.graphics.BitmapPool;
+
 /**
  * A {@link TransitionImageView} with rounded corners.
  * 
@@ -119,11 +121,18 @@ public class RoundedCornerImageView extends ImageView {
         invalidateCache();
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        releaseCache();
+    }
+
     private Bitmap getComposedBitmap() {
-        final int height = getWidth();
-        final int width = getHeight();
-        final Bitmap composedBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        final Bitmap originalBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final int width = getWidth();
+        final int height = getHeight();
+        final BitmapPool pool = BitmapPool.getDefault();
+        final Bitmap composedBitmap = pool.obtain(width, height, Bitmap.Config.ARGB_8888);
+        final Bitmap originalBitmap = pool.obtain(width, height, Bitmap.Config.ARGB_8888);
         final Canvas composedCanvas = new Canvas(composedBitmap);
         final Canvas originalCanvas = new Canvas(originalBitmap);
         final Paint paint = new Paint();
@@ -147,11 +156,18 @@ public class RoundedCornerImageView extends ImageView {
 
         composedCanvas.drawBitmap(originalBitmap, 0, 0, paint);
 
+        pool.release(originalBitmap);
+
         return composedBitmap;
     }
 
     private void invalidateCache() {
-        this.cache = null;
+        releaseCache();
         invalidate();
     }
+
+    private void releaseCache() {
+        BitmapPool.getDefault().release(this.cache);
+        this.cache = null;
+    }
 }
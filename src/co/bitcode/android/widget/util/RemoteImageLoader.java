@@ -0,0 +1,416 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.widget.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import co.bitcode.android.os.TaskPool;
+import co.bitcode.android.widget.RemoteImageView;
+
+/**
+ * Loads remote images on behalf of {@link RemoteImageView}s, on the worker threads of a
+ * {@link TaskPool}. The default loader uses the {@link TaskPool#IMAGE} pool, so that images share a
+ * single concurrency limit with the rest of the image work of the application.
+ * 
+ * Requests are keyed by URI and target size: a request for an image which is already being loaded
+ * is attached to the in-flight job instead of starting a new one, and all the callers receive the
+ * same {@link Bitmap}. Pending jobs are scheduled by priority and, within the same priority, last
+ * in first out, so that the views which have just been bound (i.e.: those on screen while
+ * scrolling) are served before older ones and before prefetches. A job whose requests have all been
+ * cancelled before it starts is dropped from the queue. The loader keeps its own queue of jobs and
+ * hands the pool one unit of work per job, which runs the best job pending when a thread is free.
+ * 
+ * Results are delivered on the main thread.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class RemoteImageLoader {
+    /**
+     * Priority of requests for images which are about to be displayed.
+     */
+    public static final int PRIORITY_VISIBLE = 1;
+    /**
+     * Priority of requests for images which may be displayed later.
+     */
+    public static final int PRIORITY_PREFETCH = 0;
+
+    private static RemoteImageLoader defaultLoader;
+
+    private final Map<String, Job> inFlight = new HashMap<String, Job>();
+    // Jobs waiting for a thread, best first.
+    private final PriorityQueue<Job> queue = new PriorityQueue<Job>();
+    private final TaskPool pool;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private long sequence;
+    private int requestCount;
+    private int coalescedCount;
+    private int cancelledCount;
+
+    /**
+     * Interface definition of the function which actually loads an image, invoked on a worker
+     * thread.
+     * 
+     * @since 1.0.0
+     * @author Lorenzo Villani
+     */
+    public static interface Fetcher {
+        /**
+         * Loads an image.
+         * 
+         * @param uri
+         *        The URI of the image.
+         * @param width
+         *        The target width, or 0 if unknown.
+         * @param height
+         *        The target height, or 0 if unknown.
+         * @return The image, or <code>null</code> if it cannot be found.
+         * @throws Exception
+         *         If loading fails, which is reported as a missing image.
+         * @since 1.0.0
+         */
+        Bitmap fetch(Uri uri, int width, int height) throws Exception;
+    }
+
+    /**
+     * Interface definition for a callback to be invoked on the main thread when a request
+     * completes.
+     * 
+     * @since 1.0.0
+     * @author Lorenzo Villani
+     */
+    public static interface Callback {
+        /**
+         * Called when the image has been loaded.
+         * 
+         * @param bitmap
+         *        The image, or <code>null</code> if it could not be loaded.
+         * @since 1.0.0
+         */
+        void onImageLoaded(Bitmap bitmap);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param pool
+     *        The pool running the jobs. It should not discard work, or the discarded jobs would
+     *        never complete.
+     * @since 1.0.0
+     */
+    public RemoteImageLoader(final TaskPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return The loader shared by the library, created on the {@link TaskPool#IMAGE} pool on first
+     *         use.
+     * @since 1.0.0
+     */
+    public static synchronized RemoteImageLoader getDefault() {
+        if (defaultLoader == null) {
+            defaultLoader = new RemoteImageLoader(TaskPool.get(TaskPool.IMAGE));
+        }
+
+        return defaultLoader;
+    }
+
+    /**
+     * Replaces the loader shared by the library.
+     * 
+     * @param loader
+     *        The new default loader.
+     * @since 1.0.0
+     */
+    public static synchronized void setDefault(final RemoteImageLoader loader) {
+        defaultLoader = loader;
+    }
+
+    /**
+     * Requests an image.
+     * 
+     * Requests with the same URI and target size share the same job, thus the same
+     * <code>fetcher</code>: only the one of the request which started the job is invoked.
+     * 
+     * @param uri
+     *        The URI of the image.
+     * @param width
+     *        The target width, or 0 if unknown.
+     * @param height
+     *        The target height, or 0 if unknown.
+     * @param priority
+     *        The priority, e.g.: {@link #PRIORITY_VISIBLE}.
+     * @param fetcher
+     *        The function which loads the image.
+     * @param callback
+     *        The callback invoked on the main thread when done, or <code>null</code>.
+     * @return A handle which can be used to cancel the request.
+     * @since 1.0.0
+     */
+    public synchronized Request load(final Uri uri, final int width, final int height,
+            final int priority, final Fetcher fetcher, final Callback callback) {
+        final String key = uri + "#" + width + "x" + height;
+        final Request request = new Request(callback);
+        Job job = this.inFlight.get(key);
+
+        this.requestCount++;
+
+        if (job == null) {
+            job = new Job(key, uri, width, height, fetcher, priority);
+            this.inFlight.put(key, job);
+        } else {
+            this.coalescedCount++;
+
+            // Move the job ahead of the queue, unless it is already running.
+            if (job.started || !this.queue.remove(job)) {
+                attach(job, request);
+
+                return request;
+            }
+
+            job.priority = Math.max(job.priority, priority);
+            job.sequence = this.sequence++;
+            attach(job, request);
+
+            // The pool already holds a unit of work for this job.
+            this.queue.add(job);
+
+            return request;
+        }
+
+        job.sequence = this.sequence++;
+        attach(job, request);
+        this.queue.add(job);
+        this.pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Job next = poll();
+
+                if (next != null) {
+                    next.run();
+                }
+            }
+        }, (priority >= PRIORITY_VISIBLE) ? TaskPool.PRIORITY_NORMAL : TaskPool.PRIORITY_LOW);
+
+        return request;
+    }
+
+    /**
+     * Requests an image which may be displayed later, e.g.: because it belongs to the next page of
+     * a list. This is useful when <code>fetcher</code> stores the image in a cache.
+     * 
+     * @param uri
+     *        The URI of the image.
+     * @param width
+     *        The target width, or 0 if unknown.
+     * @param height
+     *        The target height, or 0 if unknown.
+     * @param fetcher
+     *        The function which loads the image.
+     * @return A handle which can be used to cancel the request.
+     * @since 1.0.0
+     */
+    public Request prefetch(final Uri uri, final int width, final int height,
+            final Fetcher fetcher) {
+        return load(uri, width, height, PRIORITY_PREFETCH, fetcher, null);
+    }
+
+    /**
+     * @return The number of requests received so far.
+     * @since 1.0.0
+     */
+    public synchronized int requestCount() {
+        return this.requestCount;
+    }
+
+    /**
+     * @return The number of requests which have been attached to a job already in flight.
+     * @since 1.0.0
+     */
+    public synchronized int coalescedCount() {
+        return this.coalescedCount;
+    }
+
+    /**
+     * @return The number of requests cancelled before completion.
+     * @since 1.0.0
+     */
+    public synchronized int cancelledCount() {
+        return this.cancelledCount;
+    }
+
+    private void attach(final Job job, final Request request) {
+        job.requests.add(request);
+        request.job = job;
+    }
+
+    private synchronized void cancel(final Request request) {
+        final Job job = request.job;
+
+        if ((job == null) || !job.requests.remove(request)) {
+            return;
+        }
+
+        this.cancelledCount++;
+
+        // A running job is left to complete, its fetcher may store the image in a cache.
+        if (job.requests.isEmpty() && !job.started && this.queue.remove(job)) {
+            this.inFlight.remove(job.key);
+        }
+    }
+
+    /**
+     * @return The best job waiting for a thread, or <code>null</code> if cancellations emptied the
+     *         queue.
+     */
+    private synchronized Job poll() {
+        return this.queue.poll();
+    }
+
+    private synchronized boolean start(final Job job) {
+        if (job.requests.isEmpty()) {
+            this.inFlight.remove(job.key);
+
+            return false;
+        }
+
+        job.started = true;
+
+        return true;
+    }
+
+    private synchronized List<Request> finish(final Job job) {
+        final List<Request> targets = new ArrayList<Request>(job.requests);
+
+        this.inFlight.remove(job.key);
+        job.requests.clear();
+
+        return targets;
+    }
+
+    /**
+     * A request submitted to {@link RemoteImageLoader}.
+     * 
+     * @since 1.0.0
+     * @author Lorenzo Villani
+     */
+    public final class Request {
+        private final Callback callback;
+        private volatile boolean cancelled;
+        private Job job;
+
+        Request(final Callback callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * Cancels this request: its callback will not be invoked. The image is still loaded if
+         * other requests are waiting for it.
+         * 
+         * @since 1.0.0
+         */
+        public void cancel() {
+            this.cancelled = true;
+
+            RemoteImageLoader.this.cancel(this);
+        }
+
+        /**
+         * @return <code>true</code> if this request has been cancelled.
+         * @since 1.0.0
+         */
+        public boolean isCancelled() {
+            return this.cancelled;
+        }
+    }
+
+    /**
+     * Loads an image on behalf of all the requests attached to it.
+     */
+    private final class Job implements Runnable, Comparable<Job> {
+        private final String key;
+        private final Uri uri;
+        private final int width;
+        private final int height;
+        private final Fetcher fetcher;
+        private final List<Request> requests = new ArrayList<Request>();
+        private int priority;
+        private long sequence;
+        private boolean started;
+
+        Job(final String key, final Uri uri, final int width, final int height,
+                final Fetcher fetcher, final int priority) {
+            this.key = key;
+            this.uri = uri;
+            this.width = width;
+            this.height = height;
+            this.fetcher = fetcher;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            if (!start(this)) {
+                return;
+            }
+
+            Bitmap bitmap;
+
+            try {
+                bitmap = this.fetcher.fetch(this.uri, this.width, this.height);
+                /* CHECKSTYLE IGNORE ALL CHECKS NEXT LINE */
+            } catch (final Exception e) {
+                bitmap = null;
+            }
+
+            final Bitmap result = bitmap;
+            final List<Request> targets = finish(this);
+
+            RemoteImageLoader.this.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (final Request request : targets) {
+                        if (!request.isCancelled() && (request.callback != null)) {
+                            request.callback.onImageLoaded(result);
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(final Job other) {
+            // Higher priority first, then most recent first.
+            if (this.priority != other.priority) {
+                return (this.priority > other.priority) ? -1 : 1;
+            } else if (this.sequence != other.sequence) {
+                return (this.sequence > other.sequence) ? -1 : 1;
+            } else {
+                return 0;
+            }
+        }
+    }
+}
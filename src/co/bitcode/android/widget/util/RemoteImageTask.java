@@ -20,14 +20,18 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 
 import co.bitcode.android.os.AsyncTask;
+import co.bitcode.android.os.TaskPool;
 import co.bitcode.android.widget.RemoteImageView;
 
 /**
  * Worker {@link AsyncTask} for {@link RemoteImageView}.
  * 
+ * @deprecated {@link RemoteImageView} loads its pictures through {@link RemoteImageLoader}, which
+ *             coalesces and prioritizes requests. This task is kept for existing callers.
  * @since 1.0.0
  * @author Lorenzo Villani
  */
+@Deprecated
 public class RemoteImageTask extends AsyncTask<Uri, Bitmap> {
     private final RemoteImageView remoteImageView;
 
@@ -41,6 +45,8 @@ public class RemoteImageTask extends AsyncTask<Uri, Bitmap> {
         super();
 
         this.remoteImageView = remoteImageView;
+
+        setPool(TaskPool.IMAGE);
     }
 
     @Override
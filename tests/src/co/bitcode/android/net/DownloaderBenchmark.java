@@ -0,0 +1,150 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.net;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Measures the throughput of {@link Downloader} against a local {@link RangeServer}, as a single
+ * stream and in segments, next to the byte at a time copy it replaces. Results are printed to
+ * standard output.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class DownloaderBenchmark extends AndroidTestCase {
+    private static final int CONTENT_SIZE = 16 * 1024 * 1024;
+    private static final int SEGMENT_COUNT = 4;
+    private static final int RUN_COUNT = 5;
+
+    private RangeServer server;
+    private Downloader downloader;
+    private File destination;
+
+    /**
+     * A way to download the resource.
+     */
+    private interface Target {
+        void download() throws IOException;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        final byte[] content = new byte[CONTENT_SIZE];
+
+        new Random(0).nextBytes(content);
+        this.server = new RangeServer(content, "\"benchmark\"");
+        this.downloader = new Downloader();
+        this.destination = new File(getContext().getCacheDir(), "download");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.server.close();
+        this.downloader.discardPartialFile(this.destination);
+        this.destination.delete();
+
+        super.tearDown();
+    }
+
+    public void testThroughput() throws IOException {
+        final long byteCopy = run(new Target() {
+            @Override
+            public void download() throws IOException {
+                copyByteAtATime();
+            }
+        });
+        final long singleStream = run(new Target() {
+            @Override
+            public void download() throws IOException {
+                DownloaderBenchmark.this.downloader.download(
+                        DownloaderBenchmark.this.server.getUrl(),
+                        DownloaderBenchmark.this.destination, null);
+            }
+        });
+        final long segmented = run(new Target() {
+            @Override
+            public void download() throws IOException {
+                DownloaderBenchmark.this.downloader.download(
+                        DownloaderBenchmark.this.server.getUrl(),
+                        DownloaderBenchmark.this.destination, SEGMENT_COUNT, null);
+            }
+        });
+
+        System.out.println(String.format("Byte at a time %,d KB/s, single stream %,d KB/s (%.1fx), "
+                + "%d segments %,d KB/s (%.1fx)", byteCopy, singleStream, (double) singleStream
+                / byteCopy, SEGMENT_COUNT, segmented, (double) segmented / byteCopy));
+    }
+
+    /**
+     * @return The best throughput of <code>target</code>, in kilobytes per second.
+     */
+    private long run(final Target target) throws IOException {
+        long best = Long.MAX_VALUE;
+
+        // The first run warms up.
+        for (int i = 0; i <= RUN_COUNT; i++) {
+            final long start = System.nanoTime();
+
+            target.download();
+
+            final long elapsed = System.nanoTime() - start;
+
+            assertEquals(CONTENT_SIZE, this.destination.length());
+            this.destination.delete();
+
+            if (i > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+
+        return ((CONTENT_SIZE / 1024L) * 1000000000L) / best;
+    }
+
+    /**
+     * Copies the resource the way <code>DownloadImageTask</code> used to.
+     */
+    private void copyByteAtATime() throws IOException {
+        final InputStream input = this.server.getUrl().openStream();
+        final OutputStream output = new BufferedOutputStream(new FileOutputStream(
+                this.destination));
+
+        try {
+            int read;
+
+            while ((read = input.read()) != -1) {
+                output.write(read);
+            }
+        } finally {
+            IOUtils.closeQuietly(output);
+            IOUtils.closeQuietly(input);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests {@link Downloader} against a local {@link RangeServer}.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class DownloaderTest extends AndroidTestCase {
+    private static final int SEGMENT_COUNT = 4;
+    private static final int CONTENT_SIZE = (int) (SEGMENT_COUNT * Downloader.MIN_SEGMENT_SIZE);
+    private static final long FAIL_AFTER = 64 * 1024;
+
+    private byte[] content;
+    private RangeServer server;
+    private Downloader downloader;
+    private File destination;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.content = createContent(1);
+        this.server = new RangeServer(this.content, "\"v1\"");
+        this.downloader = new Downloader();
+        this.destination = new File(getContext().getCacheDir(), "download");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.server.close();
+        this.downloader.discardPartialFile(this.destination);
+        this.destination.delete();
+
+        super.tearDown();
+    }
+
+    public void testFailedSegmentsAreRetried() throws Exception {
+        // Cuts the first response of each segment, the probe is too short to be cut.
+        this.server.fail(SEGMENT_COUNT, FAIL_AFTER);
+
+        this.downloader.download(this.server.getUrl(), this.destination, SEGMENT_COUNT, null);
+
+        assertChecksum(this.content, this.destination);
+        assertEquals(SEGMENT_COUNT, this.downloader.segmentRetryCount());
+        // The probe, then each segment twice.
+        assertEquals(1 + (2 * SEGMENT_COUNT), this.server.getRanges().size());
+        // Retries resume where the segments stopped.
+        assertEquals(CONTENT_SIZE + 1, this.server.getSentBytes());
+    }
+
+    public void testServerWithoutRangesGetsSingleStream() throws Exception {
+        this.server.setRangeSupported(false);
+
+        this.downloader.download(this.server.getUrl(), this.destination, SEGMENT_COUNT, null);
+
+        assertChecksum(this.content, this.destination);
+        assertEquals(Arrays.asList("bytes=0-0", null), this.server.getRanges());
+    }
+
+    public void testServerDroppingRangesFallsBackToSingleStream() throws Exception {
+        // Only the probe is honored.
+        this.server.stopRangesAfter(1);
+
+        this.downloader.download(this.server.getUrl(), this.destination, SEGMENT_COUNT, null);
+
+        assertChecksum(this.content, this.destination);
+        assertTrue(this.server.getRanges().contains(null));
+        assertFalse(Downloader.getPartialFile(this.destination).exists());
+        assertFalse(SegmentedDownload.getStateFile(this.destination).exists());
+    }
+
+    public void testFailedSegmentedDownloadIsResumed() throws Exception {
+        failSegmentedDownload();
+
+        assertTrue(Downloader.getPartialFile(this.destination).isFile());
+
+        this.downloader.download(this.server.getUrl(), this.destination, SEGMENT_COUNT, null);
+
+        assertChecksum(this.content, this.destination);
+        // At least the segment which failed the download is not fetched again from its start.
+        assertTrue(this.server.getSentBytes() <= (CONTENT_SIZE - FAIL_AFTER));
+        assertFalse(Downloader.getPartialFile(this.destination).exists());
+        assertFalse(SegmentedDownload.getStateFile(this.destination).exists());
+    }
+
+    public void testChangedResourceIsDownloadedAgain() throws Exception {
+        final byte[] changed = createContent(2);
+
+        failSegmentedDownload();
+        this.server.setContent(changed, "\"v2\"");
+
+        this.downloader.download(this.server.getUrl(), this.destination, SEGMENT_COUNT, null);
+
+        assertChecksum(changed, this.destination);
+    }
+
+    public void testSingleStreamPartialFileIsNotDiscarded() throws Exception {
+        this.server.fail(1, FAIL_AFTER);
+
+        try {
+            this.downloader.download(this.server.getUrl(), this.destination, null);
+            fail("Expected IOException");
+        } catch (final IOException e) {
+            // Expected.
+        }
+
+        this.server.awaitIdle();
+        this.server.reset();
+
+        this.downloader.download(this.server.getUrl(), this.destination, SEGMENT_COUNT, null);
+
+        assertChecksum(this.content, this.destination);
+        assertEquals(Arrays.asList("bytes=" + FAIL_AFTER + "-"), this.server.getRanges());
+        assertEquals(CONTENT_SIZE - FAIL_AFTER, this.server.getSentBytes());
+    }
+
+    /**
+     * Runs a segmented download whose segments all fail after {@link #FAIL_AFTER} bytes.
+     */
+    private void failSegmentedDownload() throws Exception {
+        this.server.fail(Integer.MAX_VALUE, FAIL_AFTER);
+
+        try {
+            this.downloader.download(this.server.getUrl(), this.destination, SEGMENT_COUNT, null);
+            fail("Expected IOException");
+        } catch (final IOException e) {
+            // Expected.
+        }
+
+        this.server.awaitIdle();
+        this.server.fail(0, 0);
+        this.server.reset();
+    }
+
+    private static void assertChecksum(final byte[] expected, final File file)
+            throws IOException, NoSuchAlgorithmException {
+        final MessageDigest digest = MessageDigest.getInstance("MD5");
+        final byte[] expectedChecksum = digest.digest(expected);
+
+        assertTrue(Arrays.equals(expectedChecksum,
+                digest.digest(FileUtils.readFileToByteArray(file))));
+    }
+
+    private static byte[] createContent(final long seed) {
+        final byte[] content = new byte[CONTENT_SIZE];
+
+        new Random(seed).nextBytes(content);
+
+        return content;
+    }
+}
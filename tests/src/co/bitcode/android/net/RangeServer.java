@@ -0,0 +1,273 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal HTTP server standing in for a remote host in {@link Downloader} tests. It serves a
+ * single resource with an <code>ETag</code>, honors <code>Range</code> and <code>If-Range</code>
+ * headers unless told otherwise, and can cut responses short to simulate broken connections.
+ * 
+ * Every connection is closed after one response.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+final class RangeServer {
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final ServerSocket serverSocket;
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger failureCount = new AtomicInteger();
+    private final AtomicInteger rangeCount = new AtomicInteger(Integer.MAX_VALUE);
+    private volatile byte[] content;
+    private volatile String entityTag;
+    private volatile long failAfter;
+
+    /**
+     * Starts serving <code>content</code> on a free port of the loopback interface.
+     * 
+     * @param content
+     *        The resource.
+     * @param entityTag
+     *        The entity tag of the resource, or <code>null</code>.
+     * @throws IOException
+     *         If the server socket cannot be opened.
+     */
+    RangeServer(final byte[] content, final String entityTag) throws IOException {
+        this.content = content;
+        this.entityTag = entityTag;
+        this.serverSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "RangeServer");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The URL of the resource.
+     */
+    URL getUrl() throws MalformedURLException {
+        return new URL("http", "127.0.0.1", this.serverSocket.getLocalPort(), "/resource");
+    }
+
+    /**
+     * Replaces the resource.
+     */
+    void setContent(final byte[] content, final String entityTag) {
+        this.content = content;
+        this.entityTag = entityTag;
+    }
+
+    /**
+     * Makes the server answer range requests with the whole resource.
+     */
+    void setRangeSupported(final boolean rangeSupported) {
+        this.rangeCount.set(rangeSupported ? Integer.MAX_VALUE : 0);
+    }
+
+    /**
+     * Makes the server answer range requests with the whole resource after the next
+     * <code>count</code> ones.
+     */
+    void stopRangesAfter(final int count) {
+        this.rangeCount.set(count);
+    }
+
+    /**
+     * Cuts the next <code>count</code> responses longer than <code>bytes</code> after their first
+     * <code>bytes</code> bytes.
+     */
+    void fail(final int count, final long bytes) {
+        this.failAfter = bytes;
+        this.failureCount.set(count);
+    }
+
+    /**
+     * @return The <code>Range</code> header of each request received so far, <code>null</code> for
+     *         requests without one.
+     */
+    List<String> getRanges() {
+        synchronized (this.ranges) {
+            return new ArrayList<String>(this.ranges);
+        }
+    }
+
+    /**
+     * @return The number of body bytes sent so far.
+     */
+    long getSentBytes() {
+        return this.sentBytes.get();
+    }
+
+    /**
+     * Waits for the responses in progress, such as those of segments abandoned by a failed
+     * download, to be over.
+     */
+    void awaitIdle() throws InterruptedException {
+        while (this.activeCount.get() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Forgets the requests received and the bytes sent so far.
+     */
+    void reset() {
+        this.ranges.clear();
+        this.sentBytes.set(0);
+    }
+
+    void close() throws IOException {
+        this.serverSocket.close();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = this.serverSocket.accept();
+
+                this.activeCount.incrementAndGet();
+
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (final IOException e) {
+                            // The client went away.
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (final IOException e) {
+                                // Ignore.
+                            }
+
+                            RangeServer.this.activeCount.decrementAndGet();
+                        }
+                    }
+                }, "RangeServer-connection");
+
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (final IOException e) {
+            // Closed.
+        }
+    }
+
+    private void serve(final Socket socket) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), "ISO-8859-1"));
+        final byte[] resource = this.content;
+        final String tag = this.entityTag;
+        String range = null;
+        String ifRange = null;
+        String line = reader.readLine();
+
+        while (((line = reader.readLine()) != null) && (line.length() > 0)) {
+            final int colon = line.indexOf(':');
+            final String name = line.substring(0, colon).trim();
+            final String value = line.substring(colon + 1).trim();
+
+            if (name.equalsIgnoreCase("Range")) {
+                range = value;
+            } else if (name.equalsIgnoreCase("If-Range")) {
+                ifRange = value;
+            }
+        }
+
+        this.ranges.add(range);
+
+        long start = 0;
+        long end = resource.length - 1;
+        int status = 200;
+
+        if ((range != null) && (this.rangeCount.getAndDecrement() > 0)
+                && ((ifRange == null) || ifRange.equals(tag))) {
+            final int dash = range.indexOf('-');
+
+            start = Long.parseLong(range.substring("bytes=".length(), dash));
+
+            if (dash < (range.length() - 1)) {
+                end = Math.min(end, Long.parseLong(range.substring(dash + 1)));
+            }
+
+            status = (start < resource.length) ? HTTP_PARTIAL_CONTENT : HTTP_RANGE_NOT_SATISFIABLE;
+        }
+
+        final StringBuilder headers = new StringBuilder();
+
+        headers.append("HTTP/1.1 ").append(status).append(" Status\r\n");
+        headers.append("Connection: close\r\n");
+
+        if (tag != null) {
+            headers.append("ETag: ").append(tag).append("\r\n");
+        }
+
+        if (status == HTTP_RANGE_NOT_SATISFIABLE) {
+            headers.append("Content-Range: bytes */").append(resource.length).append("\r\n");
+            headers.append("Content-Length: 0\r\n\r\n");
+            socket.getOutputStream().write(headers.toString().getBytes("ISO-8859-1"));
+
+            return;
+        } else if (status == HTTP_PARTIAL_CONTENT) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(resource.length).append("\r\n");
+        }
+
+        final long length = (end - start) + 1;
+        long sent = length;
+
+        headers.append("Content-Length: ").append(length).append("\r\n\r\n");
+
+        if ((length > this.failAfter) && (this.failureCount.getAndDecrement() > 0)) {
+            sent = this.failAfter;
+        }
+
+        final OutputStream output = socket.getOutputStream();
+
+        output.write(headers.toString().getBytes("ISO-8859-1"));
+        output.write(resource, (int) start, (int) sent);
+        output.flush();
+        this.sentBytes.addAndGet(sent);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.net.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests {@link CacheJanitor}.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class CacheJanitorTest extends AndroidTestCase {
+    private static final long EXPIRY_TIME = 60 * 1000;
+    private static final long TMP_FILE_AGE = 2 * 60 * 60 * 1000;
+    private static final int ENTRY_SIZE = 100;
+
+    private final List<StringCache> zones = new ArrayList<StringCache>();
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (final StringCache zone : this.zones) {
+            FileUtils.deleteQuietly(zone.getCacheDir());
+        }
+
+        super.tearDown();
+    }
+
+    public void testLeftoverFilesAreDeleted() throws Exception {
+        final StringCache zone = createZone(1);
+        final CacheJanitor janitor = new CacheJanitor(Long.MAX_VALUE);
+        final File stray = createFile(zone, "stray", ENTRY_SIZE);
+        final File orphan = createFile(zone, "orphan.meta", ENTRY_SIZE);
+        final File oldTmpFile = createFile(zone, "old" + CacheJournal.TMP_SUFFIX, ENTRY_SIZE);
+        final File tmpFile = createFile(zone, "new" + CacheJournal.TMP_SUFFIX, ENTRY_SIZE);
+
+        oldTmpFile.setLastModified(System.currentTimeMillis() - TMP_FILE_AGE);
+        janitor.addZone(zone);
+
+        assertEquals(3 * ENTRY_SIZE, janitor.runPass());
+        assertEquals(3, janitor.deletedFileCount());
+        assertFalse(stray.exists());
+        assertFalse(orphan.exists());
+        assertFalse(oldTmpFile.exists());
+        // It may still be written to.
+        assertTrue(tmpFile.exists());
+        assertEquals(ENTRY_SIZE, zone.diskSize());
+        assertNotNull(zone.get("key-0"));
+    }
+
+    public void testExpiredEntriesAreDeleted() throws Exception {
+        final StringCache zone = createZone(2);
+        final CacheJanitor janitor = new CacheJanitor(Long.MAX_VALUE);
+        final File expired = zone.getCacheFile("key-0");
+
+        // Entries held in memory are never deleted by the janitor.
+        zone.evictAll();
+        expired.setLastModified(System.currentTimeMillis() - (10 * EXPIRY_TIME));
+        janitor.addZone(zone);
+
+        assertEquals(ENTRY_SIZE, janitor.runPass());
+        assertFalse(expired.exists());
+        assertFalse(zone.has("key-0"));
+        assertNotNull(zone.get("key-1"));
+        assertEquals(ENTRY_SIZE, zone.diskSize());
+    }
+
+    public void testQuotaIsSharedFairly() throws Exception {
+        final StringCache small = createZone(1);
+        final StringCache big = createZone(10);
+        final StringCache bigger = createZone(12);
+        final long quota = 10 * ENTRY_SIZE;
+        final CacheJanitor janitor = new CacheJanitor(quota);
+
+        janitor.addZone(big);
+        janitor.addZone(small);
+        janitor.addZone(bigger);
+
+        // The small zone keeps all of its entry, the others split what it leaves.
+        assertEquals((23 - 9) * ENTRY_SIZE, janitor.runPass());
+        assertEquals(ENTRY_SIZE, small.diskSize());
+        assertEquals(4 * ENTRY_SIZE, big.diskSize());
+        assertEquals(4 * ENTRY_SIZE, bigger.diskSize());
+        assertEquals(23 - 9, janitor.deletedFileCount());
+        assertEquals((23 - 9) * ENTRY_SIZE, janitor.reclaimedBytes());
+
+        // Zones within their share are left alone.
+        assertEquals(0, janitor.runPass());
+    }
+
+    /**
+     * @return A zone holding <code>entryCount</code> entries of {@link #ENTRY_SIZE} bytes on disk.
+     */
+    private StringCache createZone(final int entryCount) throws InterruptedException {
+        final StringCache zone = new StringCache();
+
+        this.zones.add(zone);
+
+        for (int i = 0; i < entryCount; i++) {
+            final StringBuilder value = new StringBuilder("key-" + i);
+
+            while (value.length() < ENTRY_SIZE) {
+                value.append('.');
+            }
+
+            zone.put("key-" + i, value.toString());
+        }
+
+        zone.flush();
+
+        return zone;
+    }
+
+    private static File createFile(final FileCache<?, ?> zone, final String name, final int size)
+            throws IOException {
+        final File file = new File(zone.getCacheDir(), name);
+
+        FileUtils.writeByteArrayToFile(file, new byte[size]);
+
+        return file;
+    }
+
+    private final class StringCache extends ExpirationFileCache<String, String> {
+        StringCache() {
+            super(getContext(), 100, EXPIRY_TIME, "test-" + System.nanoTime());
+        }
+
+        @Override
+        protected String load(final File cacheFile) {
+            try {
+                return FileUtils.readFileToString(cacheFile);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected void store(final File cacheFile, final String value) {
+            try {
+                FileUtils.writeStringToFile(cacheFile, value);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the throughput of {@link LruCache} and {@link ConcurrentLruCache} under a read-mostly
+ * workload, with 1, 4 and 8 threads. Results are printed to standard output.
+ * 
+ * Each thread looks up keys drawn from a range slightly larger than the cache, so that most
+ * lookups hit and the remaining ones put a new value, causing an eviction.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class ConcurrentLruCacheBenchmark extends TestCase {
+    private static final int CACHE_SIZE = 1000;
+    private static final int KEY_COUNT = 1200;
+    private static final int[] THREAD_COUNTS = { 1, 4, 8 };
+    private static final long WARM_UP_MILLIS = 500;
+    private static final long RUN_MILLIS = 2000;
+
+    private final Integer[] keys = new Integer[KEY_COUNT];
+
+    /**
+     * Operations performed on the cache under test.
+     */
+    private interface Target {
+        Object get(Integer key);
+
+        void put(Integer key, Object value);
+
+        int size();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        for (int i = 0; i < KEY_COUNT; i++) {
+            this.keys[i] = Integer.valueOf(i);
+        }
+    }
+
+    public void testThroughput() throws InterruptedException {
+        for (final int threadCount : THREAD_COUNTS) {
+            final long lruCache = run(newLruCache(), threadCount);
+            final long concurrentLruCache = run(newConcurrentLruCache(), threadCount);
+
+            System.out.println(String.format("%d thread(s): LruCache %,d ops/s, "
+                    + "ConcurrentLruCache %,d ops/s (%.1fx)", threadCount, lruCache,
+                    concurrentLruCache, (double) concurrentLruCache / lruCache));
+        }
+    }
+
+    private static Target newLruCache() {
+        final LruCache<Integer, Object> cache = new LruCache<Integer, Object>(CACHE_SIZE);
+
+        return new Target() {
+            @Override
+            public Object get(final Integer key) {
+                return cache.get(key);
+            }
+
+            @Override
+            public void put(final Integer key, final Object value) {
+                cache.put(key, value);
+            }
+
+            @Override
+            public int size() {
+                return cache.size();
+            }
+        };
+    }
+
+    private static Target newConcurrentLruCache() {
+        final ConcurrentLruCache<Integer, Object> cache = new ConcurrentLruCache<Integer, Object>(
+                CACHE_SIZE);
+
+        return new Target() {
+            @Override
+            public Object get(final Integer key) {
+                return cache.get(key);
+            }
+
+            @Override
+            public void put(final Integer key, final Object value) {
+                cache.put(key, value);
+            }
+
+            @Override
+            public int size() {
+                return cache.size();
+            }
+        };
+    }
+
+    /**
+     * @return The number of operations per second.
+     */
+    private long run(final Target target, final int threadCount) throws InterruptedException {
+        measure(target, threadCount, WARM_UP_MILLIS);
+
+        final long operations = measure(target, threadCount, RUN_MILLIS);
+
+        assertTrue("Cache exceeds its maximum size", target.size() <= CACHE_SIZE);
+
+        return (operations * 1000) / RUN_MILLIS;
+    }
+
+    private long measure(final Target target, final int threadCount, final long millis)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicLong operations = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + millis;
+        final Object value = new Object();
+
+        for (int i = 0; i < threadCount; i++) {
+            final Random random = new Random(i);
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+
+                    try {
+                        start.await();
+
+                        while (System.currentTimeMillis() < deadline) {
+                            // Check the deadline every 1024 operations.
+                            for (int j = 0; j < 1024; j++) {
+                                final Integer key = ConcurrentLruCacheBenchmark.this.keys[random
+                                        .nextInt(KEY_COUNT)];
+
+                                if (target.get(key) == null) {
+                                    target.put(key, value);
+                                }
+                            }
+
+                            count += 1024;
+                        }
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        operations.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        done.await();
+
+        return operations.get();
+    }
+}
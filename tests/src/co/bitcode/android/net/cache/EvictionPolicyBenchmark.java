@@ -0,0 +1,128 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.bitcode.android.net.cache;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Replays synthetic access traces through an {@link LruCache} with each {@link EvictionPolicy}
+ * and prints the resulting hit ratios to standard output.
+ * 
+ * Each trace mixes a small set of hot keys, which fits in the cache, with keys which are seen only
+ * once, the way a scroll through a long list of thumbnails interleaves with avatars shown on every
+ * screen.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class EvictionPolicyBenchmark extends TestCase {
+    private static final int CACHE_SIZE = 500;
+    private static final int HOT_KEYS = 300;
+    private static final int TRACE_LENGTH = 200000;
+    private static final int ZIPF_KEYS = 10000;
+    private static final double ZIPF_EXPONENT = 0.9;
+
+    /**
+     * 70% of the accesses go to the hot set, the others to keys which are never seen again.
+     */
+    public void testMixedScan() {
+        final Random random = new Random(1);
+        final int[] trace = new int[TRACE_LENGTH];
+        int next = HOT_KEYS;
+
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            trace[i] = (random.nextInt(10) < 7) ? random.nextInt(HOT_KEYS) : next++;
+        }
+
+        assertTinyLfuNotWorse("mixed scan", trace);
+    }
+
+    /**
+     * Phases of 2000 accesses to the hot set alternate with scans of 2000 new keys.
+     */
+    public void testBurstyScan() {
+        final Random random = new Random(2);
+        final int[] trace = new int[TRACE_LENGTH];
+        final int phase = 2000;
+        int next = HOT_KEYS;
+
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            trace[i] = (((i / phase) % 2) == 0) ? random.nextInt(HOT_KEYS) : next++;
+        }
+
+        assertTinyLfuNotWorse("bursty scan", trace);
+    }
+
+    /**
+     * Skewed popularity over a key space much larger than the cache, with no scan.
+     */
+    public void testZipf() {
+        final Random random = new Random(3);
+        final double[] cumulative = new double[ZIPF_KEYS];
+        final int[] trace = new int[TRACE_LENGTH];
+        double sum = 0;
+
+        for (int i = 0; i < ZIPF_KEYS; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            final int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+
+            trace[i] = (index >= 0) ? index : -(index + 1);
+        }
+
+        replay("zipf", trace);
+    }
+
+    private static void assertTinyLfuNotWorse(final String name, final int[] trace) {
+        final double[] ratios = replay(name, trace);
+
+        assertTrue("TinyLFU hit ratio below LRU on " + name, ratios[1] >= ratios[0]);
+    }
+
+    /**
+     * @return The hit ratios of LRU and TinyLFU, in this order.
+     */
+    private static double[] replay(final String name, final int[] trace) {
+        final double lru = hitRatio(new LruEvictionPolicy<Integer>(), trace);
+        final double tinyLfu = hitRatio(new TinyLfuEvictionPolicy<Integer>(CACHE_SIZE), trace);
+
+        System.out.println(String.format("%s: LRU %.1f%%, TinyLFU %.1f%%", name, lru * 100,
+                tinyLfu * 100));
+
+        return new double[] { lru, tinyLfu };
+    }
+
+    private static double hitRatio(final EvictionPolicy<Integer> policy, final int[] trace) {
+        final LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(CACHE_SIZE, policy);
+
+        for (final int key : trace) {
+            final Integer boxedKey = Integer.valueOf(key);
+
+            if (cache.get(boxedKey) == null) {
+                cache.put(boxedKey, boxedKey);
+            }
+        }
+
+        return (double) cache.hitCount() / trace.length;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.net.cache;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Measures the latency of {@link ExpirationFileCache#get(Object)} on memory hits, which check
+ * freshness against the write times held in memory, next to the same lookups followed by the
+ * <code>lastModified()</code> check hits used to make on the cache file. Results are printed to
+ * standard output.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class ExpirationFileCacheBenchmark extends AndroidTestCase {
+    private static final int KEY_COUNT = 100;
+    private static final long EXPIRY_TIME = 60 * 60 * 1000;
+    private static final int WARM_UP_LOOKUPS = 100000;
+    private static final int LOOKUPS = 1000000;
+
+    private final String[] keys = new String[KEY_COUNT];
+    private StringCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.cache = new StringCache();
+
+        for (int i = 0; i < KEY_COUNT; i++) {
+            this.keys[i] = "key-" + i;
+            this.cache.put(this.keys[i], "value-" + i);
+        }
+
+        this.cache.flush();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteQuietly(this.cache.getCacheDir());
+
+        super.tearDown();
+    }
+
+    public void testHitLatency() {
+        measureHits(WARM_UP_LOOKUPS);
+        measureStatHits(WARM_UP_LOOKUPS);
+
+        final long hit = measureHits(LOOKUPS);
+        final long statHit = measureStatHits(LOOKUPS);
+
+        System.out.println(String.format("Memory hit: %,d ns, with lastModified(): %,d ns "
+                + "(%.1fx)", hit, statHit, (double) statHit / hit));
+    }
+
+    /**
+     * @return The average latency of a hit, in nanoseconds.
+     */
+    private long measureHits(final int lookups) {
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < lookups; i++) {
+            assertNotNull(this.cache.get(this.keys[i % KEY_COUNT]));
+        }
+
+        return (System.nanoTime() - start) / lookups;
+    }
+
+    /**
+     * @return The average latency of a hit checked against the modification time of its file, in
+     *         nanoseconds.
+     */
+    private long measureStatHits(final int lookups) {
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < lookups; i++) {
+            final String key = this.keys[i % KEY_COUNT];
+
+            assertNotNull(this.cache.getStale(key));
+            assertTrue((System.currentTimeMillis() - this.cache.getCacheFile(key).lastModified())
+                    < EXPIRY_TIME);
+        }
+
+        return (System.nanoTime() - start) / lookups;
+    }
+
+    private final class StringCache extends ExpirationFileCache<String, String> {
+        StringCache() {
+            super(getContext(), KEY_COUNT, EXPIRY_TIME, "benchmark-" + System.nanoTime());
+        }
+
+        @Override
+        protected String load(final File cacheFile) {
+            try {
+                return FileUtils.readFileToString(cacheFile);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected void store(final File cacheFile, final String value) {
+            try {
+                FileUtils.writeStringToFile(cacheFile, value);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
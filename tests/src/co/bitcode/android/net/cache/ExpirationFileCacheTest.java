@@ -0,0 +1,191 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.net.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.test.AndroidTestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests {@link ExpirationFileCache}.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class ExpirationFileCacheTest extends AndroidTestCase {
+    private static final long EXPIRY_TIME = 60 * 1000;
+    private static final long SHORT_EXPIRY_TIME = 500;
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final int THREAD_COUNT = 4;
+
+    private StringCache cache;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (this.cache != null) {
+            FileUtils.deleteQuietly(this.cache.getCacheDir());
+        }
+
+        super.tearDown();
+    }
+
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        this.cache = new StringCache(EXPIRY_TIME);
+        this.cache.put("a", "A");
+        this.cache.evictAll();
+        this.cache.blockLoads();
+
+        final String[] results = new String[THREAD_COUNT];
+        final Thread[] threads = new Thread[THREAD_COUNT];
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int index = i;
+
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    results[index] = ExpirationFileCacheTest.this.cache.get("a");
+                }
+            });
+            threads[i].start();
+        }
+
+        assertTrue(this.cache.awaitLoad());
+
+        // The other misses must wait on the load in progress, not on the cache lock.
+        final long deadline = System.currentTimeMillis()
+                + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+
+        while ((this.cache.coalescedCount() < THREAD_COUNT - 1)
+                && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(THREAD_COUNT - 1, this.cache.coalescedCount());
+
+        // Memory hits are not held up by the load either.
+        this.cache.put("b", "B");
+        assertEquals("B", this.cache.get("b"));
+
+        this.cache.unblockLoads();
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, this.cache.loadCount());
+
+        for (final String result : results) {
+            assertEquals("A", result);
+        }
+    }
+
+    public void testRewrittenEntryIsFreshAfterExpiry() throws Exception {
+        this.cache = new StringCache(SHORT_EXPIRY_TIME);
+        this.cache.put("a", "A");
+        this.cache.evictAll();
+
+        Thread.sleep(2 * SHORT_EXPIRY_TIME);
+
+        // Expired: the file is deleted.
+        assertNull(this.cache.get("a"));
+        assertFalse(this.cache.has("a"));
+
+        final File source = this.cache.createTempFile();
+
+        FileUtils.writeStringToFile(source, "A2");
+
+        assertTrue(this.cache.putFile("a", source));
+        assertEquals("A2", this.cache.get("a"));
+    }
+
+    public void testEntryFromTheFutureIsStale() throws Exception {
+        this.cache = new StringCache(EXPIRY_TIME);
+        this.cache.put("a", "A");
+        this.cache.evictAll();
+
+        // E.g.: written before the system time was moved back.
+        assertTrue(this.cache.getCacheFile("a").setLastModified(
+                System.currentTimeMillis() + (EXPIRY_TIME / 2)));
+
+        assertNull(this.cache.get("a"));
+        assertFalse(this.cache.has("a"));
+    }
+
+    /**
+     * Caches strings, optionally blocking loads until released.
+     */
+    private final class StringCache extends ExpirationFileCache<String, String> {
+        private final AtomicInteger loadCount = new AtomicInteger();
+        private final CountDownLatch loadStarted = new CountDownLatch(1);
+        private volatile CountDownLatch gate;
+
+        StringCache(final long expiryTime) {
+            super(getContext(), 10, expiryTime, "test-" + System.nanoTime());
+        }
+
+        void blockLoads() {
+            this.gate = new CountDownLatch(1);
+        }
+
+        void unblockLoads() {
+            this.gate.countDown();
+        }
+
+        boolean awaitLoad() throws InterruptedException {
+            return this.loadStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        int loadCount() {
+            return this.loadCount.get();
+        }
+
+        @Override
+        protected String load(final File cacheFile) {
+            this.loadCount.incrementAndGet();
+            this.loadStarted.countDown();
+
+            try {
+                if ((this.gate != null) && !this.gate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Load never released");
+                }
+
+                return FileUtils.readFileToString(cacheFile);
+            } catch (final InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected void store(final File cacheFile, final String value) {
+            try {
+                FileUtils.writeStringToFile(cacheFile, value);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
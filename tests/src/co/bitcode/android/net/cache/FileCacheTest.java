@@ -0,0 +1,161 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.net.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests {@link FileCache}.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class FileCacheTest extends AndroidTestCase {
+    /** Keys whose {@link String#hashCode()} collide. */
+    private static final String[] COLLIDING_KEYS = { "Aa", "BB", "AaAa", "BBBB", "AaBB", "BBAa" };
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private String cacheZone;
+    private StringCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.cacheZone = "test-" + System.nanoTime();
+        this.cache = new StringCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteQuietly(this.cache.getCacheDir());
+
+        super.tearDown();
+    }
+
+    public void testCollidingKeysKeepTheirValues() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+
+        for (final String key : COLLIDING_KEYS) {
+            this.cache.put(key, "value of " + key);
+        }
+
+        // Served from disk.
+        this.cache.evictAll();
+
+        for (final String key : COLLIDING_KEYS) {
+            assertTrue(this.cache.has(key));
+            assertEquals("value of " + key, this.cache.get(key));
+        }
+
+        this.cache.remove("Aa");
+
+        assertFalse(this.cache.has("Aa"));
+        assertEquals("value of BB", this.cache.get("BB"));
+    }
+
+    public void testLegacyFilesAreDropped() throws IOException {
+        final File cacheDir = this.cache.getCacheDir();
+        final File legacyFile = new File(cacheDir, Integer.toHexString("Aa".hashCode()));
+        final File legacyMetadataFile = new File(legacyFile.getPath() + ".meta");
+
+        // Written by an older version for "BB", which collides with "Aa".
+        FileUtils.writeStringToFile(legacyFile, "value of BB");
+        FileUtils.writeStringToFile(legacyMetadataFile, "");
+        new File(cacheDir, CacheJournal.JOURNAL_FILE).delete();
+
+        this.cache = new StringCache();
+
+        assertFalse(legacyFile.exists());
+        assertFalse(legacyMetadataFile.exists());
+        assertFalse(this.cache.has("Aa"));
+        assertNull(this.cache.get("Aa"));
+        assertEquals(0, this.cache.diskSize());
+    }
+
+    public void testCloseDrainsWriteBehindAndStopsWriter() throws InterruptedException {
+        this.cache.setWriteBehind(2);
+
+        final Thread writer = findThread("FileCache-" + this.cacheZone);
+
+        assertNotNull(writer);
+
+        for (final String key : COLLIDING_KEYS) {
+            this.cache.put(key, "value of " + key);
+        }
+
+        this.cache.close();
+        writer.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertFalse(writer.isAlive());
+
+        for (final String key : COLLIDING_KEYS) {
+            assertFalse(this.cache.isWritePending(key));
+            assertTrue(this.cache.getCacheFile(key).exists());
+        }
+
+        // Written inline from now on.
+        this.cache.put("after", "value of after");
+
+        assertTrue(this.cache.getCacheFile("after").exists());
+        assertNull(findThread("FileCache-" + this.cacheZone));
+    }
+
+    private static Thread findThread(final String name) {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName()) && thread.isAlive()) {
+                return thread;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Caches strings.
+     */
+    private final class StringCache extends FileCache<String, String> {
+        StringCache() {
+            super(getContext(), COLLIDING_KEYS.length, FileCacheTest.this.cacheZone);
+        }
+
+        @Override
+        protected String load(final File cacheFile) {
+            try {
+                return FileUtils.readFileToString(cacheFile);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected void store(final File cacheFile, final String value) {
+            try {
+                FileUtils.writeStringToFile(cacheFile, value);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.net.cache.restlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.restlet.data.MediaType;
+import org.restlet.engine.io.BufferingRepresentation;
+import org.restlet.representation.ByteArrayRepresentation;
+import org.restlet.representation.Representation;
+
+/**
+ * Compares loading cache files of 10 KB, 1 MB and 10 MB through a {@link MappedFileRepresentation}
+ * and through a buffered representation read on the heap, the two ways
+ * {@link RestletFileCache} loads an entry. Each load reads the whole content back. Results are
+ * printed to standard output.
+ * 
+ * Allocated bytes are measured per thread when the virtual machine can tell, as HotSpot does.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class MappedFileRepresentationBenchmark extends TestCase {
+    private static final int[] SIZES = { 10 * 1024, 1024 * 1024, 10 * 1024 * 1024 };
+    /** Bytes loaded by each measurement, so that small files are loaded more times. */
+    private static final long BYTES_PER_RUN = 200L * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private File file;
+
+    /**
+     * A way to load a cache file.
+     */
+    private interface Loader {
+        Representation load(File cacheFile) throws IOException;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.file = File.createTempFile("benchmark", null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.file.delete();
+
+        super.tearDown();
+    }
+
+    public void testLoad() throws IOException {
+        final Loader mapped = new Loader() {
+            @Override
+            public Representation load(final File cacheFile) throws IOException {
+                return new MappedFileRepresentation(cacheFile, MediaType.APPLICATION_OCTET_STREAM);
+            }
+        };
+        final Loader buffered = new Loader() {
+            @Override
+            public Representation load(final File cacheFile) throws IOException {
+                return new BufferingRepresentation(new ByteArrayRepresentation(
+                        FileUtils.readFileToByteArray(cacheFile)));
+            }
+        };
+
+        for (final int size : SIZES) {
+            final byte[] content = new byte[size];
+            final int loadCount = (int) Math.max(1, BYTES_PER_RUN / size);
+
+            new Random(size).nextBytes(content);
+            FileUtils.writeByteArrayToFile(this.file, content);
+
+            // Warm up.
+            run(mapped, (loadCount / 10) + 1, size);
+            run(buffered, (loadCount / 10) + 1, size);
+
+            final Result mappedResult = run(mapped, loadCount, size);
+            final Result bufferedResult = run(buffered, loadCount, size);
+
+            System.out.println(String.format("%,d bytes: mapped %s, buffered %s", size,
+                    mappedResult, bufferedResult));
+        }
+    }
+
+    private Result run(final Loader loader, final int loadCount, final int size)
+            throws IOException {
+        final long allocatedBefore = getAllocatedBytes();
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < loadCount; i++) {
+            final InputStream inputStream = loader.load(this.file).getStream();
+            long read = 0;
+            int count;
+
+            try {
+                while ((count = inputStream.read(this.readBuffer)) != -1) {
+                    read += count;
+                }
+            } finally {
+                IOUtils.closeQuietly(inputStream);
+            }
+
+            assertEquals(size, read);
+        }
+
+        final long elapsed = System.nanoTime() - start;
+        final long allocatedAfter = getAllocatedBytes();
+
+        return new Result(elapsed / loadCount, ((allocatedBefore < 0) || (allocatedAfter < 0)) ? -1
+                : (allocatedAfter - allocatedBefore) / loadCount);
+    }
+
+    /**
+     * @return The number of bytes allocated so far by the calling thread, or -1 if unknown.
+     */
+    private static long getAllocatedBytes() {
+        try {
+            final Object threadBean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            final Method getThreadAllocatedBytes = Class.forName(
+                    "com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes",
+                    long.class);
+
+            return (Long) getThreadAllocatedBytes.invoke(threadBean, Thread.currentThread()
+                    .getId());
+            /* CHECKSTYLE IGNORE ALL CHECKS NEXT LINE */
+        } catch (final Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Average cost of one load.
+     */
+    private static final class Result {
+        private final long nanos;
+        private final long allocatedBytes;
+
+        Result(final long nanos, final long allocatedBytes) {
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            if (this.allocatedBytes < 0) {
+                return String.format("%,d us/load", this.nanos / 1000);
+            } else {
+                return String.format("%,d us/load, %,d bytes allocated/load", this.nanos / 1000,
+                        this.allocatedBytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.net.cache.restlet;
+
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Reference;
+import org.restlet.data.Status;
+import org.restlet.representation.StringRepresentation;
+
+/**
+ * Tests {@link RestletCacheFilter}.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class RestletCacheFilterTest extends AndroidTestCase {
+    private static final long EXPIRY_TIME = 60 * 1000;
+    private static final Reference KEY = new Reference("http://example.com/items.json");
+
+    private RestletCacheFilter filter;
+    private CountingRestlet origin;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.origin = new CountingRestlet();
+        this.filter = new RestletCacheFilter(getContext(), EXPIRY_TIME, EXPIRY_TIME);
+        this.filter.setNext(this.origin);
+        this.filter.getEntityCache().put(KEY,
+                new StringRepresentation("cached", MediaType.APPLICATION_JSON));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteQuietly(FileUtils.getFile(getContext().getCacheDir(),
+                RestletCacheFilter.ZONE_ENTITY));
+        FileUtils.deleteQuietly(FileUtils.getFile(getContext().getCacheDir(),
+                RestletCacheFilter.ZONE_IMAGE));
+
+        super.tearDown();
+    }
+
+    public void testGetIsServedFromCache() throws IOException {
+        assertEquals("cached", handle(Method.GET).getEntity().getText());
+        assertEquals(0, this.origin.handleCount);
+    }
+
+    public void testUnsafeMethodsReachTheServer() throws IOException {
+        final Method[] methods = {
+                Method.POST, Method.PUT, Method.DELETE
+        };
+
+        for (int i = 0; i < methods.length; i++) {
+            assertEquals("origin", handle(methods[i]).getEntity().getText());
+            assertEquals(i + 1, this.origin.handleCount);
+        }
+
+        // Neither served nor replaced by the responses to other methods.
+        assertEquals("cached", handle(Method.GET).getEntity().getText());
+        assertEquals(methods.length, this.origin.handleCount);
+    }
+
+    private Response handle(final Method method) {
+        final Request request = new Request(method, KEY);
+        final Response response = new Response(request);
+
+        this.filter.handle(request, response);
+
+        return response;
+    }
+
+    /**
+     * Answers every request with a fresh entity.
+     */
+    private static final class CountingRestlet extends Restlet {
+        private int handleCount;
+
+        @Override
+        public void handle(final Request request, final Response response) {
+            this.handleCount++;
+
+            response.setStatus(Status.SUCCESS_OK);
+            response.setEntity(new StringRepresentation("origin", MediaType.APPLICATION_JSON));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.os;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link RetryPolicy}. Runs on the JVM, since delays and retry decisions do not depend on the
+ * Android framework.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class RetryPolicyTest extends TestCase {
+    private static final long INITIAL_DELAY = 100;
+    private static final long MAX_DELAY = 1000;
+    private static final int SAMPLE_COUNT = 10000;
+
+    public void testDelayGrowsExponentiallyUpToMaxDelay() {
+        final RetryPolicy policy = new RetryPolicy(10, INITIAL_DELAY, MAX_DELAY);
+
+        policy.setJitter(0);
+
+        assertEquals(100, policy.getDelay(1));
+        assertEquals(200, policy.getDelay(2));
+        assertEquals(400, policy.getDelay(3));
+        assertEquals(800, policy.getDelay(4));
+        assertEquals(MAX_DELAY, policy.getDelay(5));
+        assertEquals(MAX_DELAY, policy.getDelay(10));
+    }
+
+    public void testMultiplierScalesDelays() {
+        final RetryPolicy policy = new RetryPolicy(10, INITIAL_DELAY, MAX_DELAY);
+
+        policy.setJitter(0);
+        policy.setMultiplier(3);
+
+        assertEquals(100, policy.getDelay(1));
+        assertEquals(300, policy.getDelay(2));
+        assertEquals(900, policy.getDelay(3));
+        assertEquals(MAX_DELAY, policy.getDelay(4));
+    }
+
+    public void testJitterStaysWithinBounds() {
+        final RetryPolicy policy = new RetryPolicy(10, INITIAL_DELAY, MAX_DELAY);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        policy.setJitter(0.5);
+
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            final long delay = policy.getDelay(3);
+
+            assertTrue("Delay out of bounds: " + delay, (delay >= 200) && (delay <= 400));
+
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        // Retries are spread over the whole range.
+        assertTrue(min < 220);
+        assertTrue(max > 380);
+    }
+
+    public void testCappedDelayIsJitteredToo() {
+        final RetryPolicy policy = new RetryPolicy(10, INITIAL_DELAY, MAX_DELAY);
+
+        policy.setJitter(1);
+
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            final long delay = policy.getDelay(10);
+
+            assertTrue("Delay out of bounds: " + delay, (delay >= 0) && (delay <= MAX_DELAY));
+        }
+    }
+
+    public void testShouldRetryStopsAtMaxAttempts() {
+        final RetryPolicy policy = new RetryPolicy(3);
+        final IOException e = new IOException();
+
+        assertTrue(policy.shouldRetry(e, 1));
+        assertTrue(policy.shouldRetry(e, 2));
+        assertFalse(policy.shouldRetry(e, 3));
+        assertFalse(new RetryPolicy(1).shouldRetry(e, 1));
+    }
+
+    public void testOnlyIOExceptionsAreRetryableByDefault() {
+        final RetryPolicy policy = new RetryPolicy(3);
+
+        assertTrue(policy.shouldRetry(new IOException(), 1));
+        assertTrue(policy.shouldRetry(new SocketTimeoutException(), 1));
+        assertFalse(policy.shouldRetry(new IllegalStateException(), 1));
+    }
+
+    public void testRetryableExceptionsReplaceTheDefault() {
+        final RetryPolicy policy = new RetryPolicy(3);
+
+        policy.addRetryableException(IllegalArgumentException.class);
+
+        assertTrue(policy.shouldRetry(new IllegalArgumentException(), 1));
+        assertTrue(policy.shouldRetry(new NumberFormatException(), 1));
+        assertFalse(policy.shouldRetry(new IOException(), 1));
+    }
+
+    public void testOverriddenPredicateIsUsed() {
+        final RetryPolicy policy = new RetryPolicy(3) {
+            @Override
+            public boolean isRetryable(final Exception e) {
+                return "transient".equals(e.getMessage());
+            }
+        };
+
+        assertTrue(policy.shouldRetry(new IllegalStateException("transient"), 1));
+        assertFalse(policy.shouldRetry(new IOException("permanent"), 1));
+    }
+
+    public void testInvalidSettingsAreRejected() {
+        try {
+            new RetryPolicy(0);
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+
+        try {
+            new RetryPolicy(3, MAX_DELAY, INITIAL_DELAY);
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+
+        final RetryPolicy policy = new RetryPolicy(3);
+
+        try {
+            policy.setJitter(1.5);
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+
+        try {
+            policy.setMultiplier(0.5);
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
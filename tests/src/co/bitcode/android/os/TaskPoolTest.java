@@ -0,0 +1,260 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.os;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import co.bitcode.android.os.TaskPool.RejectionPolicy;
+
+/**
+ * Tests {@link TaskPool}. Runs on the JVM, since the pool does not depend on the Android framework.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class TaskPoolTest extends TestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private Thread.UncaughtExceptionHandler defaultHandler;
+    private final AtomicInteger uncaughtCount = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // Failing work reaches the handler, which would otherwise kill the test process.
+        this.defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(final Thread thread, final Throwable throwable) {
+                TaskPoolTest.this.uncaughtCount.incrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Thread.setDefaultUncaughtExceptionHandler(this.defaultHandler);
+
+        super.tearDown();
+    }
+
+    public void testThrowingWorkDoesNotStallPool() throws InterruptedException {
+        final TaskPool pool = new TaskPool("test", 1, Integer.MAX_VALUE, RejectionPolicy.ABORT);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        for (int i = 0; i < 3; i++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("Failing work");
+                }
+            });
+        }
+
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        awaitIdle(pool);
+
+        assertEquals(4, pool.completedCount());
+
+        // Reported by the dying threads, after their work completed.
+        final long deadline = System.currentTimeMillis()
+                + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+
+        while ((this.uncaughtCount.get() < 3) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(3, this.uncaughtCount.get());
+    }
+
+    public void testHighestPriorityRunsFirst() throws InterruptedException {
+        final TaskPool pool = new TaskPool("test", 1, Integer.MAX_VALUE, RejectionPolicy.ABORT);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                await(gate);
+            }
+        });
+
+        for (final int priority : new int[] { TaskPool.PRIORITY_LOW, TaskPool.PRIORITY_NORMAL,
+                TaskPool.PRIORITY_HIGH, TaskPool.PRIORITY_NORMAL }) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(priority);
+                }
+            }, priority);
+        }
+
+        gate.countDown();
+        awaitIdle(pool);
+
+        assertEquals(4, order.size());
+        assertEquals(TaskPool.PRIORITY_HIGH, order.get(0).intValue());
+        assertEquals(TaskPool.PRIORITY_NORMAL, order.get(1).intValue());
+        assertEquals(TaskPool.PRIORITY_NORMAL, order.get(2).intValue());
+        assertEquals(TaskPool.PRIORITY_LOW, order.get(3).intValue());
+    }
+
+    public void testConcurrencyIsLimited() throws InterruptedException {
+        final int concurrency = 2;
+        final TaskPool pool = new TaskPool("test", concurrency, Integer.MAX_VALUE,
+                RejectionPolicy.ABORT);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        for (int i = 0; i < 20; i++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final int current = running.incrementAndGet();
+
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), current));
+                    }
+
+                    sleep(5);
+                    running.decrementAndGet();
+                }
+            });
+        }
+
+        awaitIdle(pool);
+
+        assertEquals(20, pool.completedCount());
+        assertTrue(maxRunning.get() <= concurrency);
+    }
+
+    public void testDiscardLowestCancelsDiscardedFuture() throws InterruptedException {
+        final TaskPool pool = new TaskPool("test", 1, 1, RejectionPolicy.DISCARD_LOWEST);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final FutureTask<Void> low = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null);
+
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                await(gate);
+            }
+        });
+        awaitActive(pool);
+        pool.execute(low, TaskPool.PRIORITY_LOW);
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, TaskPool.PRIORITY_HIGH);
+
+        assertTrue(low.isCancelled());
+        assertEquals(1, pool.rejectedCount());
+
+        gate.countDown();
+        awaitIdle(pool);
+    }
+
+    public void testAbortRejectsWhenFull() throws InterruptedException {
+        final TaskPool pool = new TaskPool("test", 1, 0, RejectionPolicy.ABORT);
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                await(gate);
+            }
+        });
+        awaitActive(pool);
+
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("Expected RejectedExecutionException");
+        } catch (final RejectedExecutionException e) {
+            // Expected.
+        } finally {
+            gate.countDown();
+        }
+
+        awaitIdle(pool);
+    }
+
+    private static void awaitActive(final TaskPool pool) throws InterruptedException {
+        final long deadline = System.currentTimeMillis()
+                + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+
+        while ((pool.activeCount() == 0) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(1, pool.activeCount());
+    }
+
+    private static void awaitIdle(final TaskPool pool) throws InterruptedException {
+        final long deadline = System.currentTimeMillis()
+                + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+
+        while (((pool.activeCount() > 0) || (pool.queuedCount() > 0))
+                && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(0, pool.activeCount());
+        assertEquals(0, pool.queuedCount());
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Android Utilities
+ * Copyright (C) 2010, 2011, 2012  Lorenzo Villani
+ *
+ * This library is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package co.bitcode.android.os;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import co.bitcode.android.app.observable.ObservableActivity;
+import co.bitcode.android.app.observable.OnDestroyListener;
+
+/**
+ * Tests {@link TaskRegistry} with many tasks bound to the same activity. Needs a device, since
+ * tasks complete on the main thread.
+ * 
+ * @since 1.0.0
+ * @author Lorenzo Villani
+ */
+public class TaskRegistryTest extends AndroidTestCase {
+    private static final int TASK_COUNT = 10000;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final CountDownLatch done = new CountDownLatch(1);
+    private TestActivity activity;
+    private TaskRegistry registry;
+    // Written on the main thread, read once done has been counted down.
+    private int firstStackDepth;
+    private int maxStackDepth;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.activity = new TestActivity();
+        this.registry = TaskRegistry.get(this.activity);
+    }
+
+    public void testFinishedTasksLeaveTheRegistry() throws InterruptedException {
+        final OnDestroyListener listener = this.activity.getOnDestroyListener();
+
+        // Each task submits the next one once finished, so that only one is live at a time.
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                submitChained(0);
+            }
+        });
+
+        assertTrue(this.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals(0, this.registry.size());
+        assertEquals(this.firstStackDepth, this.maxStackDepth);
+        assertSame(this.registry, TaskRegistry.get(this.activity));
+        assertSame(listener, this.activity.getOnDestroyListener());
+
+        this.activity.getOnDestroyListener().onDestroy();
+
+        assertEquals(1, this.activity.destroyCount);
+    }
+
+    public void testAttachedTasksLeaveTheRegistry() throws InterruptedException {
+        final Object taskKey = new Object();
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(TASK_COUNT);
+
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < TASK_COUNT; i++) {
+                    final GatedTask task = new GatedTask(gate, finished);
+
+                    task.setTaskKey(taskKey);
+                    TaskRegistryTest.this.registry.register(task);
+                    task.submit(i);
+                }
+            }
+        });
+
+        // The first task runs, the others are attached to it.
+        assertEquals(TASK_COUNT, this.registry.size());
+
+        gate.countDown();
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, this.registry.size());
+    }
+
+    private void submitChained(final int index) {
+        final ChainedTask task = new ChainedTask(index);
+
+        this.registry.register(task);
+        task.submit(index);
+    }
+
+    private void runOnMainThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        this.mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    ran.countDown();
+                }
+            }
+        });
+
+        assertTrue(ran.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static final class TestActivity implements ObservableActivity {
+        private OnDestroyListener onDestroyListener = new OnDestroyListener() {
+            @Override
+            public void onDestroy() {
+                TestActivity.this.destroyCount++;
+            }
+        };
+        private int destroyCount;
+
+        @Override
+        public void setOnDestroyListener(final OnDestroyListener onDestroyListener) {
+            this.onDestroyListener = onDestroyListener;
+        }
+
+        @Override
+        public OnDestroyListener getOnDestroyListener() {
+            return this.onDestroyListener;
+        }
+    }
+
+    private final class ChainedTask extends AsyncTask<Integer, Integer> {
+        private final int index;
+
+        public ChainedTask(final int index) {
+            super();
+
+            this.index = index;
+        }
+
+        @Override
+        protected Integer doInBackgroundThread(final Integer... params) {
+            return params[0];
+        }
+
+        @Override
+        protected void onFinalize() {
+            super.onFinalize();
+
+            final int depth = Thread.currentThread().getStackTrace().length;
+
+            if (this.index == 0) {
+                TaskRegistryTest.this.firstStackDepth = depth;
+            }
+
+            TaskRegistryTest.this.maxStackDepth = Math.max(TaskRegistryTest.this.maxStackDepth,
+                    depth);
+
+            if (this.index + 1 < TASK_COUNT) {
+                submitChained(this.index + 1);
+            } else {
+                TaskRegistryTest.this.done.countDown();
+            }
+        }
+    }
+
+    private static final class GatedTask extends AsyncTask<Integer, Integer> {
+        private final CountDownLatch gate;
+        private final CountDownLatch finished;
+
+        public GatedTask(final CountDownLatch gate, final CountDownLatch finished) {
+            super();
+
+            this.gate = gate;
+            this.finished = finished;
+        }
+
+        @Override
+        protected Integer doInBackgroundThread(final Integer... params)
+                throws InterruptedException {
+            this.gate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            return params[0];
+        }
+
+        @Override
+        protected void onFinalize() {
+            super.onFinalize();
+
+            this.finished.countDown();
+        }
+    }
+}